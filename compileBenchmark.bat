@@ -0,0 +1 @@
+"C:/Program Files/Java/jdk1.7.0_09/bin/javac.exe" -d bin/benchmark/ src/benchmark/*.java src/server/*.java src/common/*.java
\ No newline at end of file
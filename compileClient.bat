@@ -1 +1 @@
-"C:/Program Files/Java/jdk1.7.0_09/bin/javac.exe" -d bin/client/ src/client/*.java
\ No newline at end of file
+"C:/Program Files/Java/jdk1.7.0_09/bin/javac.exe" -d bin/client/ src/client/*.java src/common/*.java
\ No newline at end of file
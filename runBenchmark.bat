@@ -0,0 +1,3 @@
+cd bin
+cd benchmark
+java BenchmarkRunner -baseline ../../benchmarks/baseline.txt %*
\ No newline at end of file
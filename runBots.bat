@@ -0,0 +1,3 @@
+cd bin
+cd client
+java BotClient %*
\ No newline at end of file
@@ -0,0 +1,3 @@
+cd bin
+cd benchmark
+java SelfPlay %*
\ No newline at end of file
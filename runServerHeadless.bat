@@ -0,0 +1,3 @@
+cd bin
+cd server
+java Server -headless -log server.log
\ No newline at end of file
@@ -0,0 +1,167 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Benchmark measures the average time and allocation of one operation.
+ * The operation runs in batches sized to take about a millisecond, first for a warm-up period
+ * so the JIT compiler has settled, then for a number of timed iterations.
+ * Each operation returns a value which is summed into a sink, so its work cannot be optimised away.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public abstract class Benchmark {
+
+	/** Reads bytes allocated by the measuring thread, null if the JVM does not support it */
+	protected static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	/** Benchmark name, group and operation separated by dots */
+	protected final String name;
+	/** Values returned by the operation */
+	protected long sink;
+
+	/**
+	 * Result of a benchmark
+	 */
+	public static class Result {
+		/** Benchmark name */
+		public final String name;
+		/** Mean time per operation in nanoseconds */
+		public final double nanos;
+		/** Standard deviation of the iterations' time per operation */
+		public final double error;
+		/** Bytes allocated per operation, -1 if not measured */
+		public final double bytes;
+
+		Result(String name, double nanos, double error, double bytes) {
+			this.name = name;
+			this.nanos = nanos;
+			this.error = error;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-36s %12.1f %8.1f %10.1f", name, nanos, error, bytes);
+		}
+	}
+
+	/**
+	 * @param name Benchmark name, group and operation separated by dots
+	 */
+	public Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Prepares state before the benchmark runs
+	 * @throws Exception if the state cannot be prepared
+	 */
+	protected void setUp() throws Exception {
+	}
+
+	/**
+	 * Releases state after the benchmark has run
+	 * @throws Exception if the state cannot be released
+	 */
+	protected void tearDown() throws Exception {
+	}
+
+	/**
+	 * Runs the operation once
+	 * @return Any value depending on the work done
+	 * @throws Exception if the operation fails
+	 */
+	protected abstract int run() throws Exception;
+
+	/**
+	 * Warms up and measures the operation
+	 * @param warmup Warm-up time in milliseconds
+	 * @param iterations Number of timed iterations
+	 * @param iterationTime Length of each iteration in milliseconds
+	 * @return Result
+	 * @throws Exception if the operation fails
+	 */
+	public Result measure(long warmup, int iterations, long iterationTime) throws Exception {
+		setUp();
+		try {
+			return measureSetUp(warmup, iterations, iterationTime);
+		} finally {
+			tearDown();
+		}
+	}
+
+	/**
+	 * Warms up and measures the operation once its state has been prepared
+	 * @param warmup Warm-up time in milliseconds
+	 * @param iterations Number of timed iterations
+	 * @param iterationTime Length of each iteration in milliseconds
+	 * @return Result
+	 * @throws Exception if the operation fails
+	 */
+	protected Result measureSetUp(long warmup, int iterations, long iterationTime) throws Exception {
+		int batch = 1;
+		long end = System.nanoTime() + warmup * 1000000;
+		while (System.nanoTime() < end) {
+			long start = System.nanoTime();
+			runBatch(batch);
+			if (System.nanoTime() - start < 1000000 && batch < (1 << 24))
+				batch <<= 1;
+		}
+
+		double[] times = new double[iterations];
+		long operations = 0, allocated = 0;
+		long thread = Thread.currentThread().getId();
+		for (int i=0; i<iterations; i++) {
+			long ops = 0;
+			long bytes = THREADS != null ? THREADS.getThreadAllocatedBytes(thread) : 0;
+			long start = System.nanoTime();
+			end = start + iterationTime * 1000000;
+			long now;
+			do {
+				runBatch(batch);
+				ops += batch;
+			} while ((now = System.nanoTime()) < end);
+			if (THREADS != null)
+				allocated += THREADS.getThreadAllocatedBytes(thread) - bytes;
+			times[i] = (now - start) / (double)ops;
+			operations += ops;
+		}
+
+		double mean = 0;
+		for (double t : times)
+			mean += t / iterations;
+		double variance = 0;
+		for (double t : times)
+			variance += (t - mean) * (t - mean) / Math.max(1, iterations - 1);
+		return new Result(name, mean, Math.sqrt(variance), THREADS != null ? allocated / (double)operations : -1);
+	}
+
+	/**
+	 * Runs a batch of operations
+	 * @param batch Number of operations
+	 * @throws Exception if an operation fails
+	 */
+	protected void runBatch(int batch) throws Exception {
+		long sum = 0;
+		for (int i=0; i<batch; i++)
+			sum += run();
+		sink += sum;
+	}
+
+	/**
+	 * @return Bean reading allocated bytes per thread, null if not supported
+	 */
+	private static com.sun.management.ThreadMXBean threads() {
+		try {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+			if (!threads.isThreadAllocatedMemorySupported())
+				return null;
+			threads.setThreadAllocatedMemoryEnabled(true);
+			return threads;
+		} catch (RuntimeException e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmark runner runs all benchmarks, or those whose name starts with a filter, and prints a table:
+ * mean time per operation, its standard deviation across iterations and bytes allocated per operation.
+ * Given a baseline file, written earlier by the runner, it adds the change of each mean against the baseline.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class BenchmarkRunner {
+
+	protected static final String USAGE = "Usage: java BenchmarkRunner [-warmup milliseconds] [-iterations count]"
+			+ " [-time milliseconds] [-baseline file] [name prefix]";
+	protected static final String HEADER = String.format("%-36s %12s %8s %10s", "benchmark", "ns/op", "+-", "B/op");
+
+	public static void main(String[] args) throws Exception {
+		long warmup = 2000, time = 1000;
+		int iterations = 5;
+		String baselineFile = null, filter = "";
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-warmup")) warmup = Long.parseLong(args[++i]);
+				else if (args[i].equals("-iterations")) iterations = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-time")) time = Long.parseLong(args[++i]);
+				else if (args[i].equals("-baseline")) baselineFile = args[++i];
+				else if (args[i].startsWith("-")) throw new IllegalArgumentException(args[i]);
+				else filter = args[i];
+			}
+			if (iterations < 1)
+				throw new IllegalArgumentException("At least one iteration is needed");
+		} catch (RuntimeException e) {
+			System.out.println(USAGE);
+			return;
+		}
+
+		Map<String, Double> baseline = baselineFile != null ? readBaseline(baselineFile) : new HashMap<String, Double>();
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		BoardBenchmarks.register(benchmarks);
+		ProtocolBenchmarks.register(benchmarks);
+		JournalBenchmarks.register(benchmarks);
+
+		System.out.println("# java " + System.getProperty("java.version") + ", " + System.getProperty("os.name")
+				+ ", " + Runtime.getRuntime().availableProcessors() + " cpus, warm-up " + warmup + " ms, "
+				+ iterations + " x " + time + " ms");
+		System.out.println(HEADER + (baseline.isEmpty() ? "" : String.format(" %10s", "vs base")));
+		for (Benchmark benchmark : benchmarks) {
+			if (!benchmark.name.startsWith(filter))
+				continue;
+			Benchmark.Result result = benchmark.measure(warmup, iterations, time);
+			Double base = baseline.get(result.name);
+			if (base == null)
+				System.out.println(result);
+			else
+				System.out.println(result + String.format(" %+9.1f%%", (result.nanos / base - 1) * 100));
+		}
+	}
+
+	/**
+	 * Reads mean times from a file written by the runner
+	 * @param file Baseline file
+	 * @return Mean time per operation by benchmark name
+	 * @throws IOException if the file cannot be read
+	 */
+	protected static Map<String, Double> readBaseline(String file) throws IOException {
+		Map<String, Double> baseline = new HashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] columns = line.trim().split("\\s+");
+				if (columns.length < 2 || line.startsWith("#"))
+					continue;
+				try {
+					baseline.put(columns[0], Double.parseDouble(columns[1]));
+				} catch (NumberFormatException e) {
+					//Header line
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return baseline;
+	}
+}
@@ -0,0 +1,116 @@
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks of fleet placement and turn resolution on the server:
+ * placing a fleet for a new session, shooting, checking for a win, building the field sent to clients
+ * and the AI player choosing a shot.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class BoardBenchmarks {
+
+	/** Seed shared by all benchmarks so runs are comparable */
+	protected static final long SEED = 3319;
+
+	/**
+	 * Adds the benchmarks of this group
+	 * @param benchmarks List to add to
+	 */
+	public static void register(List<Benchmark> benchmarks) {
+		benchmarks.add(new Benchmark("placement.place") {
+			FleetPlacer placer = new FleetPlacer(SEED);
+			Board board = new Board();
+
+			@Override
+			protected int run() {
+				placer.place(board);
+				return board.cellsAlive(0);
+			}
+		});
+
+		benchmarks.add(new Benchmark("board.shoot") {
+			Board board = new Board();
+			int[] cells = new int[Board.CELLS];
+			int next;
+
+			@Override
+			protected void setUp() {
+				new FleetPlacer(SEED).place(board);
+				for (int i=0; i<cells.length; i++)
+					cells[i] = i;
+				Random random = new Random(SEED);
+				for (int i=cells.length-1; i>0; i--) {
+					int k = random.nextInt(i + 1);
+					int cell = cells[i];
+					cells[i] = cells[k];
+					cells[k] = cell;
+				}
+			}
+
+			@Override
+			protected int run() {
+				if (next == cells.length) {
+					//Every cell has been shot at, start a new game on the same fleet
+					board.reset();
+					next = 0;
+				}
+				int cell = cells[next++];
+				return board.shoot(cell / Board.SIZE, cell % Board.SIZE);
+			}
+		});
+
+		benchmarks.add(new Benchmark("board.checkWin") {
+			Board board = new Board();
+
+			@Override
+			protected void setUp() {
+				new FleetPlacer(SEED).place(board);
+			}
+
+			@Override
+			protected int run() {
+				return board.allSunk() ? 1 : 0;
+			}
+		});
+
+		benchmarks.add(new Benchmark("board.toField") {
+			Board board = new Board();
+
+			@Override
+			protected void setUp() {
+				new FleetPlacer(SEED).place(board);
+			}
+
+			@Override
+			protected int run() {
+				return board.toField()[1][1];
+			}
+		});
+
+		benchmarks.add(new Benchmark("ai.shot") {
+			FleetPlacer placer = new FleetPlacer(SEED);
+			ShotPlanner planner = new ShotPlanner(new Random(SEED));
+			Board board = new Board();
+
+			@Override
+			protected void setUp() {
+				placer.place(board);
+			}
+
+			@Override
+			protected int run() {
+				if (board.allSunk()) {
+					placer.place(board);
+					planner.reset();
+				}
+				int cell = planner.next();
+				int row = cell / Board.SIZE, column = cell % Board.SIZE;
+				int result = board.shoot(row, column);
+				planner.record(row, column, result, result == Board.MISS ? Board.EMPTY : board.shipAt(row, column));
+				return result;
+			}
+		});
+	}
+}
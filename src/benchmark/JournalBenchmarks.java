@@ -0,0 +1,94 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Benchmarks of match journal appends as done by session threads: a shot record encoded and copied
+ * into the mapped segment, alone and with WRITERS other threads appending at the same time
+ * the way many sessions do. Segments roll over during the run, their files are deleted afterwards.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class JournalBenchmarks {
+
+	/** Number of background threads appending in the contended benchmark */
+	protected static final int WRITERS = 3;
+	/** Segment size of the benchmark journals */
+	protected static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Appends shot records to a journal in a temporary directory
+	 */
+	protected static class AppendBenchmark extends Benchmark {
+		/** Number of background writers */
+		final int writers;
+		/** Journal appended to */
+		MatchJournal journal;
+		/** Background writers */
+		Thread[] threads;
+		/** Stops the background writers */
+		volatile boolean running;
+		/** Recorder of the measuring thread */
+		MatchJournal.Recorder recorder;
+		/** Cell of the next shot */
+		int cell;
+
+		AppendBenchmark(String name, int writers) {
+			super(name);
+			this.writers = writers;
+		}
+
+		@Override
+		protected void setUp() throws IOException {
+			File directory = File.createTempFile("journal", "");
+			if (!directory.delete())
+				throw new IOException("Could not create " + directory);
+			journal = new MatchJournal(directory, SEGMENT_SIZE);
+			recorder = journal.recorder(0);
+			running = true;
+			threads = new Thread[writers];
+			for (int i=0; i<writers; i++) {
+				final MatchJournal.Recorder background = journal.recorder(i + 1);
+				threads[i] = new Thread(new Runnable() {
+					public void run() {
+						int n = 0;
+						while (running) {
+							background.shot(1, n / Board.SIZE, n % Board.SIZE, Board.MISS);
+							n = (n + 1) % Board.CELLS;
+						}
+					}
+				}, "journal-writer-" + i);
+				threads[i].setDaemon(true);
+				threads[i].start();
+			}
+		}
+
+		@Override
+		protected int run() {
+			recorder.shot(1, cell / Board.SIZE, cell % Board.SIZE, Board.HIT);
+			cell = (cell + 1) % Board.CELLS;
+			return cell;
+		}
+
+		@Override
+		protected void tearDown() throws InterruptedException {
+			running = false;
+			for (Thread thread : threads)
+				thread.join();
+			journal.close();
+			for (File file : MatchJournal.segmentFiles(journal.getDirectory()))
+				file.delete();
+			journal.getDirectory().delete();
+		}
+	}
+
+	/**
+	 * Adds the benchmarks of this group
+	 * @param benchmarks List to add to
+	 */
+	public static void register(List<Benchmark> benchmarks) {
+		benchmarks.add(new AppendBenchmark("journal.shot", 0));
+		benchmarks.add(new AppendBenchmark("journal.shot.contended", WRITERS));
+	}
+}
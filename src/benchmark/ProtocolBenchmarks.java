@@ -0,0 +1,324 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Benchmarks of message encoding on the server and decoding on the client,
+ * serialised objects as sent to legacy clients against binary frames.
+ * Like a connection, an object stream carries many messages, each a new object,
+ * so class descriptors are only sent once; streams are replaced every MESSAGES messages.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class ProtocolBenchmarks {
+
+	/** Number of messages sent through one object stream */
+	protected static final int MESSAGES = 1024;
+
+	/**
+	 * Output stream discarding everything written to it
+	 */
+	protected static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+
+	/**
+	 * Adds the benchmarks of this group
+	 * @param benchmarks List to add to
+	 */
+	public static void register(List<Benchmark> benchmarks) {
+		final Board board = new Board();
+		new FleetPlacer(BoardBenchmarks.SEED).place(board);
+		final int[][] field = board.toField();
+		final int[] placements = board.placements();
+		final int[] myShips = {1,1,0,1,2,1,2,3,0,4};
+		final int[] ships = {1,0,1,1,2,2,0,3,3,2};
+
+		benchmarks.add(new Benchmark("encode.field.objectStream") {
+			ObjectOutputStream out;
+			int[][][] fields = new int[MESSAGES][][];
+			int written = MESSAGES;
+
+			@Override
+			protected void setUp() {
+				for (int i=0; i<MESSAGES; i++)
+					fields[i] = board.toField();
+			}
+
+			@Override
+			protected int run() throws IOException {
+				if (written == MESSAGES) {
+					out = new ObjectOutputStream(new NullOutputStream());
+					written = 0;
+				}
+				out.writeObject(fields[written++]);
+				out.flush();
+				return written;
+			}
+		});
+
+		benchmarks.add(new Benchmark("encode.field.binary") {
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+			@Override
+			protected int run() {
+				buffer.clear();
+				WireFormat.putField(buffer, field);
+				return buffer.position();
+			}
+		});
+
+		benchmarks.add(new Benchmark("encode.fleet.binary") {
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+			@Override
+			protected int run() {
+				buffer.clear();
+				WireFormat.putPlacements(buffer, placements);
+				return buffer.position();
+			}
+		});
+
+		benchmarks.add(new Benchmark("encode.turnResults.objectStream") {
+			ObjectOutputStream out;
+			int written = MESSAGES;
+
+			@Override
+			protected int run() throws IOException {
+				if (written == MESSAGES) {
+					out = new ObjectOutputStream(new NullOutputStream());
+					written = 0;
+				}
+				written++;
+				out.writeObject(legacyTurnResults(4, 7, 0, myShips, ships));
+				out.flush();
+				return written;
+			}
+		});
+
+		benchmarks.add(new Benchmark("encode.turnResults.binary") {
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+
+			@Override
+			protected int run() {
+				buffer.clear();
+				WireFormat.putTurnResults(buffer, 4, 7, 0, myShips, ships);
+				return buffer.position();
+			}
+		});
+
+		benchmarks.add(new Benchmark("encode.update.binary") {
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+
+			@Override
+			protected int run() {
+				buffer.clear();
+				WireFormat.putUpdate(buffer, 4, 7, 0, WireFormat.MY_SHIP, 9, 3);
+				return buffer.position();
+			}
+		});
+
+		benchmarks.add(new Benchmark("encode.shotResult.binary") {
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+
+			@Override
+			protected int run() {
+				buffer.clear();
+				WireFormat.putShotResult(buffer, 4, 7, WireFormat.SHOT_HIT, 5, 9, 3);
+				return buffer.position();
+			}
+		});
+
+		benchmarks.add(new Benchmark("decode.field.objectStream") {
+			byte[] data;
+			ObjectInputStream in;
+			int read = MESSAGES;
+
+			@Override
+			protected void setUp() throws IOException {
+				Object[] messages = new Object[MESSAGES];
+				for (int i=0; i<MESSAGES; i++)
+					messages[i] = board.toField();
+				data = serialise(messages);
+			}
+
+			@Override
+			protected int run() throws Exception {
+				if (read == MESSAGES) {
+					in = new ObjectInputStream(new ByteArrayInputStream(data));
+					read = 0;
+				}
+				read++;
+				return ((int[][])in.readObject())[1][1];
+			}
+		});
+
+		benchmarks.add(new Benchmark("decode.field.binary") {
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+			@Override
+			protected void setUp() {
+				WireFormat.putField(buffer, field);
+				buffer.flip();
+			}
+
+			@Override
+			protected int run() {
+				buffer.rewind();
+				return WireFormat.getField(buffer)[1][1];
+			}
+		});
+
+		benchmarks.add(new Benchmark("decode.fleet.binary") {
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+			@Override
+			protected void setUp() {
+				WireFormat.putPlacements(buffer, placements);
+				buffer.flip();
+			}
+
+			@Override
+			protected int run() {
+				buffer.rewind();
+				return WireFormat.getPlacements(buffer)[0];
+			}
+		});
+
+		benchmarks.add(new Benchmark("decode.turnResults.objectStream") {
+			byte[] data;
+			ObjectInputStream in;
+			int read = MESSAGES;
+			int[][] input = new int[3][10];
+
+			@Override
+			protected void setUp() throws IOException {
+				Object[] messages = new Object[MESSAGES];
+				for (int i=0; i<MESSAGES; i++)
+					messages[i] = legacyTurnResults(4, 7, 0, myShips, ships);
+				data = serialise(messages);
+			}
+
+			@Override
+			protected int run() throws Exception {
+				if (read == MESSAGES) {
+					in = new ObjectInputStream(new ByteArrayInputStream(data));
+					read = 0;
+				}
+				read++;
+				//Unboxed the way the client did before binary frames
+				Integer[][] results = (Integer[][])in.readObject();
+				for (int i=0; i<3; i++)
+					input[0][i] = results[0][i];
+				for (int i=0; i<10; i++) {
+					input[1][i] = results[1][i];
+					input[2][i] = results[2][i];
+				}
+				return input[0][2];
+			}
+		});
+
+		benchmarks.add(new Benchmark("decode.turnResults.binary") {
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+			int[][] input = new int[3][10];
+
+			@Override
+			protected void setUp() {
+				WireFormat.putTurnResults(buffer, 4, 7, 0, myShips, ships);
+				buffer.flip();
+			}
+
+			@Override
+			protected int run() {
+				buffer.rewind();
+				WireFormat.getTurnResults(buffer, input);
+				return input[0][2];
+			}
+		});
+
+		benchmarks.add(new Benchmark("decode.update.binary") {
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+			int[] update = new int[6];
+
+			@Override
+			protected void setUp() {
+				WireFormat.putUpdate(buffer, 4, 7, 0, WireFormat.MY_SHIP, 9, 3);
+				buffer.flip();
+			}
+
+			@Override
+			protected int run() {
+				buffer.rewind();
+				WireFormat.getUpdate(buffer, update);
+				return update[5];
+			}
+		});
+
+		benchmarks.add(new Benchmark("decode.shotResult.binary") {
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+			int[] result = new int[6];
+
+			@Override
+			protected void setUp() {
+				WireFormat.putShotResult(buffer, 4, 7, WireFormat.SHOT_HIT, 5, 9, 3);
+				buffer.flip();
+			}
+
+			@Override
+			protected int run() {
+				buffer.rewind();
+				WireFormat.getShotResult(buffer, result);
+				return result[5];
+			}
+		});
+	}
+
+	/**
+	 * Builds turn results the way they are sent to serialised object clients
+	 * @param x Row number
+	 * @param y Column number
+	 * @param result Result code
+	 * @param myShips Cells alive of the player's ships
+	 * @param ships Cells alive of the opponent's ships
+	 * @return Turn results
+	 */
+	protected static Integer[][] legacyTurnResults(int x, int y, int result, int[] myShips, int[] ships) {
+		Integer[][] results = new Integer[3][Math.max(3, myShips.length)];
+		results[0][0] = x;
+		results[0][1] = y;
+		results[0][2] = result;
+		for (int i=0; i<myShips.length; i++) {
+			results[1][i] = myShips[i];
+			results[2][i] = ships[i];
+		}
+		return results;
+	}
+
+	/**
+	 * Serialises messages into one object stream
+	 * @param messages Messages
+	 * @return Stream content
+	 * @throws IOException if a message cannot be serialised
+	 */
+	protected static byte[] serialise(Object[] messages) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		for (Object message : messages) {
+			out.writeObject(message);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+}
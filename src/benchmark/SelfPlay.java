@@ -0,0 +1,361 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Self-play runner plays games between two shooting strategies in process, without sockets or messages,
+ * to compare strategies and measure how fast the rules engine runs on all cores.
+ * Fleets are placed by FleetPlacer, as for the server's layout pool, and turns follow the game session's rules:
+ * a player shoots until he misses, rejected shots are shot again and the first to sink the whole fleet wins.
+ * The strategies swap seats every game, player 1 always shoots first.
+ *
+ * Games are split between worker threads, each with its own random number generator, boards,
+ * strategies and counters, which are added up once the workers have finished. Nothing is shared while playing.
+ * The same games are played with each thread count given, the scaling efficiency is the rate per thread
+ * against the rate per thread of the first run, one thread unless other counts are given.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class SelfPlay {
+
+	protected static final String USAGE = "Usage: java SelfPlay [-games count] [-threads counts, comma separated]"
+			+ " [-strategies first,second of random|hunt|density] [-seed number]";
+	/** Shots after which a game is given up, a strategy shooting the same cells again could go on for ever */
+	protected static final int MAX_SHOTS = 4 * Board.CELLS;
+
+	/**
+	 * Chooses the shots of one player. Not thread safe, each worker creates its own.
+	 */
+	public interface Strategy {
+		/**
+		 * Forgets the last game
+		 */
+		void reset();
+
+		/**
+		 * @return Cell to shoot at, row times Board.SIZE plus column
+		 */
+		int next();
+
+		/**
+		 * @param row Row number
+		 * @param column Column number
+		 * @param result Board.MISS, HIT, SUNK, REPEATED or INVALID
+		 * @param ship Index of the ship hit, Board.EMPTY if none
+		 */
+		void record(int row, int column, int result, int ship);
+	}
+
+	/**
+	 * Shoots at every cell once in random order
+	 */
+	protected static class RandomStrategy implements Strategy {
+		final Random random;
+		/** Cells in the order they are shot at */
+		final int[] cells = new int[Board.CELLS];
+		/** Number of cells shot at */
+		int next;
+
+		RandomStrategy(Random random) {
+			this.random = random;
+			for (int i=0; i<cells.length; i++)
+				cells[i] = i;
+		}
+
+		public void reset() {
+			for (int i=cells.length-1; i>0; i--) {
+				int k = random.nextInt(i + 1);
+				int cell = cells[i];
+				cells[i] = cells[k];
+				cells[k] = cell;
+			}
+			next = 0;
+		}
+
+		public int next() {
+			return cells[next++ % cells.length];
+		}
+
+		public void record(int row, int column, int result, int ship) {
+		}
+	}
+
+	/**
+	 * Shoots at random until a ship is hit, then at the cells next to its hits until it sinks
+	 */
+	protected static class HuntStrategy extends RandomStrategy {
+		/** Cells shot at */
+		final boolean[] shot = new boolean[Board.CELLS];
+		/** Cells next to hits, to be shot at before hunting on */
+		final int[] targets = new int[Board.CELLS];
+		/** Number of targets */
+		int count;
+
+		HuntStrategy(Random random) {
+			super(random);
+		}
+
+		@Override
+		public void reset() {
+			super.reset();
+			Arrays.fill(shot, false);
+			count = 0;
+		}
+
+		@Override
+		public int next() {
+			while (count > 0) {
+				int cell = targets[--count];
+				if (!shot[cell])
+					return cell;
+			}
+			while (next < cells.length && shot[cells[next]])
+				next++;
+			return next < cells.length ? cells[next] : 0;
+		}
+
+		@Override
+		public void record(int row, int column, int result, int ship) {
+			if (result == Board.INVALID)
+				return;
+			shot[row * Board.SIZE + column] = true;
+			if (result == Board.SUNK) {
+				count = 0;
+			}
+			else if (result == Board.HIT) {
+				target(row - 1, column);
+				target(row + 1, column);
+				target(row, column - 1);
+				target(row, column + 1);
+			}
+		}
+
+		private void target(int row, int column) {
+			if (row >= 0 && row < Board.SIZE && column >= 0 && column < Board.SIZE && !shot[row * Board.SIZE + column]
+					&& count < targets.length)
+				targets[count++] = row * Board.SIZE + column;
+		}
+	}
+
+	/**
+	 * The server's AI player's shot planner
+	 */
+	protected static class DensityStrategy extends ShotPlanner implements Strategy {
+		DensityStrategy(Random random) {
+			super(random);
+		}
+	}
+
+	/**
+	 * Counters of one worker, added up at the end
+	 */
+	protected static class Result {
+		/** Games played */
+		long games;
+		/** Games given up after MAX_SHOTS */
+		long unfinished;
+		/** Games won by each strategy */
+		final long[] wins = new long[2];
+		/** Shots fired by each strategy in the games it won */
+		final long[] winningShots = new long[2];
+		/** Games won from the first seat */
+		long firstSeatWins;
+		/** Shots fired in all games */
+		long shots;
+
+		void add(Result other) {
+			games += other.games;
+			unfinished += other.unfinished;
+			firstSeatWins += other.firstSeatWins;
+			shots += other.shots;
+			for (int i=0; i<2; i++) {
+				wins[i] += other.wins[i];
+				winningShots[i] += other.winningShots[i];
+			}
+		}
+	}
+
+	/**
+	 * Plays a share of the games on one thread
+	 */
+	protected static class Worker implements Callable<Result> {
+		final String[] strategies;
+		final long games;
+		final long seed;
+
+		Worker(String[] strategies, long games, long seed) {
+			this.strategies = strategies;
+			this.games = games;
+			this.seed = seed;
+		}
+
+		public Result call() {
+			Random random = new Random(seed);
+			FleetPlacer placer = new FleetPlacer(random);
+			Strategy[] players = {create(strategies[0], random), create(strategies[1], random)};
+			Board[] boards = {new Board(), new Board()};
+			int[] shots = new int[2];
+			Result result = new Result();
+			for (long game=0; game<games; game++) {
+				//Strategy 0 takes the first seat in even games
+				int first = (int)(game & 1);
+				Strategy[] seats = {players[first], players[1 - first]};
+				placer.place(boards[0]);
+				placer.place(boards[1]);
+				seats[0].reset();
+				seats[1].reset();
+				int winner = play(seats, boards, shots);
+				result.games++;
+				result.shots += shots[0] + shots[1];
+				if (winner < 0) {
+					result.unfinished++;
+					continue;
+				}
+				int strategy = winner == 0 ? first : 1 - first;
+				result.wins[strategy]++;
+				result.winningShots[strategy] += shots[winner];
+				if (winner == 0)
+					result.firstSeatWins++;
+			}
+			return result;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long games = 100000, seed = 3319;
+		String[] strategies = {"density", "hunt"};
+		int cpus = Runtime.getRuntime().availableProcessors();
+		List<Integer> threads = new ArrayList<Integer>();
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-games")) games = Long.parseLong(args[++i]);
+				else if (args[i].equals("-seed")) seed = Long.parseLong(args[++i]);
+				else if (args[i].equals("-strategies")) strategies = args[++i].split(",");
+				else if (args[i].equals("-threads")) {
+					for (String count : args[++i].split(","))
+						threads.add(Integer.parseInt(count));
+				}
+				else throw new IllegalArgumentException(args[i]);
+			}
+			if (games < 1 || strategies.length != 2)
+				throw new IllegalArgumentException();
+			for (String strategy : strategies)
+				create(strategy, new Random());
+			for (int count : threads) {
+				if (count < 1)
+					throw new IllegalArgumentException("Thread counts must be positive");
+			}
+		} catch (RuntimeException e) {
+			System.out.println(USAGE);
+			return;
+		}
+		if (threads.isEmpty()) {
+			for (int count=1; count<cpus; count*=2)
+				threads.add(count);
+			threads.add(cpus);
+		}
+
+		System.out.println("# java " + System.getProperty("java.version") + ", " + cpus + " cpus, " + strategies[0]
+				+ " vs " + strategies[1] + ", " + games + " games per run, seed " + seed);
+		System.out.println(String.format("%8s %12s %12s %11s", "threads", "games/s", "shots/s", "efficiency"));
+		//Warm up so the first run is not measured in the interpreter
+		run(strategies, Math.min(games, 2000), 1, seed);
+		double single = 0;
+		Result total = null;
+		for (int count : threads) {
+			long started = System.nanoTime();
+			Result result = run(strategies, games, count, seed);
+			double seconds = (System.nanoTime() - started) / 1e9;
+			double rate = result.games / seconds;
+			if (single == 0)
+				single = rate / count;
+			System.out.println(String.format("%8d %12.0f %12.0f %10.0f%%", count, rate, result.shots / seconds,
+					rate / (single * count) * 100));
+			total = result;
+		}
+
+		System.out.println(String.format("%s won %.1f%% in %.1f shots, %s won %.1f%% in %.1f shots; first seat won %.1f%%"
+				+ (total.unfinished > 0 ? ", " + total.unfinished + " games given up" : ""),
+				strategies[0], 100.0 * total.wins[0] / total.games, mean(total.winningShots[0], total.wins[0]),
+				strategies[1], 100.0 * total.wins[1] / total.games, mean(total.winningShots[1], total.wins[1]),
+				100.0 * total.firstSeatWins / total.games));
+	}
+
+	/**
+	 * Plays games split between worker threads
+	 * @param strategies Names of the two strategies
+	 * @param games Number of games
+	 * @param threads Number of threads
+	 * @param seed Seed, each thread's generator is seeded from it and the thread number
+	 * @return Counters of all workers
+	 * @throws Exception if a worker fails
+	 */
+	public static Result run(String[] strategies, long games, int threads, long seed) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Result>> results = new ArrayList<Future<Result>>();
+			for (int i=0; i<threads; i++) {
+				long share = games / threads + (i < games % threads ? 1 : 0);
+				results.add(pool.submit(new Worker(strategies, share, seed * 31 + i)));
+			}
+			Result total = new Result();
+			for (Future<Result> result : results)
+				total.add(result.get());
+			return total;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Plays one game with the game session's turn rules
+	 * @param seats Strategies of player 1 and player 2
+	 * @param boards Player 1's and player 2's boards
+	 * @param shots Array to count each player's shots in
+	 * @return Winner's seat, 0 or 1, -1 if the game has been given up
+	 */
+	protected static int play(Strategy[] seats, Board[] boards, int[] shots) {
+		shots[0] = shots[1] = 0;
+		int shooter = 0;
+		while (shots[0] + shots[1] < MAX_SHOTS) {
+			Board target = boards[1 - shooter];
+			int cell = seats[shooter].next();
+			int row = cell / Board.SIZE, column = cell % Board.SIZE;
+			int result = target.shoot(row, column);
+			shots[shooter]++;
+			boolean hit = result == Board.HIT || result == Board.SUNK;
+			seats[shooter].record(row, column, result, hit ? target.shipAt(row, column) : Board.EMPTY);
+			if (result == Board.MISS)
+				shooter = 1 - shooter;
+			else if (hit && target.allSunk())
+				return shooter;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param name Strategy name
+	 * @param random Random number generator of the strategy
+	 * @return New strategy
+	 * @throws IllegalArgumentException if there is no strategy by the name
+	 */
+	protected static Strategy create(String name, Random random) {
+		if (name.equals("random"))
+			return new RandomStrategy(random);
+		if (name.equals("hunt"))
+			return new HuntStrategy(random);
+		if (name.equals("density"))
+			return new DensityStrategy(random);
+		throw new IllegalArgumentException("Unknown strategy " + name);
+	}
+
+	private static double mean(long sum, long count) {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+}
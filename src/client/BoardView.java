@@ -0,0 +1,220 @@
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+import javax.swing.Icon;
+import javax.swing.JComponent;
+
+/**
+ * Board view paints one game field: a label row and column and a grid of tiles.
+ * The state of every tile is kept in a primitive array, mouse positions are mapped to tiles arithmetically
+ * and a change repaints only the rectangle of the tile that changed.
+ * Interactive views show the aim on the tile under the mouse and report clicks to a listener.
+ * Only the tiles inside the clip are painted, so a large board in a scroll pane costs no more to paint than a small one.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class BoardView extends JComponent {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Tile not shot at, without a known ship */
+	public static final int TILE = 0;
+	/** Tile shot at without hitting a ship */
+	public static final int WATER = 1;
+	/** Ship tile, add the tile shape */
+	public static final int SHIP = 2;
+	/** Hit ship tile, add the tile shape */
+	public static final int HIT = 9;
+	/** Tile size used when the images are not available */
+	protected static final int DEFAULT_CELL_SIZE = 25;
+	/** Letters column labels are made of */
+	protected static final String LETTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+	/**
+	 * Receives clicks on tiles of an interactive view
+	 */
+	public interface CellListener {
+		/**
+		 * @param row Row number from 0
+		 * @param column Column number from 0
+		 */
+		void cellClicked(int row, int column);
+	}
+
+	/** Number of rows and columns */
+	protected final int size;
+	/** Width and height of a tile in pixels */
+	protected final int cellSize;
+	/** State of each tile, row by row */
+	protected final byte[] state;
+	/** Icons of the tiles */
+	protected final IconCache images;
+	/** Receives clicks, null for views which do not react to the mouse */
+	protected CellListener listener;
+	/** Tile under the mouse, -1 if there is none */
+	protected int hover = -1;
+
+	/**
+	 * @param size Number of rows and columns
+	 * @param images Icons of the tiles
+	 */
+	public BoardView(int size, IconCache images) {
+		this.size = size;
+		this.images = images;
+		int width = images.tile().getIconWidth();
+		cellSize = width > 0 ? width : DEFAULT_CELL_SIZE;
+		state = new byte[size * size];
+		Dimension preferred = new Dimension((size + 1) * cellSize, (size + 1) * cellSize);
+		setPreferredSize(preferred);
+		setMinimumSize(preferred);
+	}
+
+	/**
+	 * Makes the view interactive
+	 * @param listener Receives clicks on tiles
+	 */
+	public void setCellListener(CellListener listener) {
+		this.listener = listener;
+		MouseAdapter mouse = new MouseAdapter() {
+			@Override
+			public void mouseMoved(MouseEvent e) {
+				setHover(cellAt(e.getX(), e.getY()));
+			}
+
+			@Override
+			public void mouseExited(MouseEvent e) {
+				setHover(-1);
+			}
+
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				int cell = cellAt(e.getX(), e.getY());
+				if (cell >= 0 && state[cell] == TILE)
+					BoardView.this.listener.cellClicked(cell / size, cell % size);
+			}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+	}
+
+	/**
+	 * Changes the state of a tile and repaints it
+	 * @param row Row number from 0
+	 * @param column Column number from 0
+	 * @param value TILE, WATER, SHIP plus shape or HIT plus shape
+	 */
+	public void setCell(int row, int column, int value) {
+		int cell = row * size + column;
+		if (state[cell] == value)
+			return;
+		state[cell] = (byte)value;
+		repaintCell(cell);
+	}
+
+	/**
+	 * @param row Row number from 0
+	 * @param column Column number from 0
+	 * @return State of the tile
+	 */
+	public int getCell(int row, int column) {
+		return state[row * size + column];
+	}
+
+	/**
+	 * Maps a mouse position to a tile
+	 * @param x Horizontal position in pixels
+	 * @param y Vertical position in pixels
+	 * @return Tile number, -1 for the labels and outside the grid
+	 */
+	protected int cellAt(int x, int y) {
+		int column = x / cellSize - 1;
+		int row = y / cellSize - 1;
+		if (x < 0 || y < 0 || row < 0 || row >= size || column < 0 || column >= size)
+			return -1;
+		return row * size + column;
+	}
+
+	/**
+	 * Moves the aim to another tile, repainting the tiles it leaves and enters
+	 * @param cell Tile number, -1 for none
+	 */
+	protected void setHover(int cell) {
+		if (cell == hover)
+			return;
+		if (hover >= 0)
+			repaintCell(hover);
+		hover = cell;
+		if (cell >= 0)
+			repaintCell(cell);
+	}
+
+	/**
+	 * Repaints a single tile
+	 * @param cell Tile number
+	 */
+	protected void repaintCell(int cell) {
+		repaint((cell % size + 1) * cellSize, (cell / size + 1) * cellSize, cellSize, cellSize);
+	}
+
+	/**
+	 * @param value State of a tile
+	 * @param aimed true if the mouse is over the tile
+	 * @return Icon of the tile
+	 */
+	protected Icon iconFor(int value, boolean aimed) {
+		if (value == TILE)
+			return aimed ? images.aim() : images.tile();
+		if (value == WATER)
+			return images.empty();
+		if (value >= HIT)
+			return images.hit(value - HIT);
+		return images.ship(value - SHIP);
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		int firstRow = Math.max(0, clip.y / cellSize - 1);
+		int lastRow = Math.min(size - 1, (clip.y + clip.height - 1) / cellSize - 1);
+		int firstColumn = Math.max(0, clip.x / cellSize - 1);
+		int lastColumn = Math.min(size - 1, (clip.x + clip.width - 1) / cellSize - 1);
+
+		for (int row=firstRow; row<=lastRow; row++) {
+			for (int column=firstColumn; column<=lastColumn; column++) {
+				int cell = row * size + column;
+				iconFor(state[cell], cell == hover && listener != null)
+						.paintIcon(this, g, (column + 1) * cellSize, (row + 1) * cellSize);
+			}
+		}
+
+		if (clip.x < cellSize || clip.y < cellSize) {
+			g.setColor(getForeground());
+			FontMetrics metrics = g.getFontMetrics();
+			int baseline = (cellSize + metrics.getAscent() - metrics.getDescent()) / 2;
+			for (int i=0; i<size; i++) {
+				String letter = columnLabel(i);
+				String number = String.valueOf(i + 1);
+				g.drawString(letter, (i + 1) * cellSize + (cellSize - metrics.stringWidth(letter)) / 2, baseline);
+				g.drawString(number, (cellSize - metrics.stringWidth(number)) / 2, (i + 1) * cellSize + baseline);
+			}
+		}
+	}
+
+	/**
+	 * @param column Column number from 0
+	 * @return Column label: A to Z, then AA, AB and so on
+	 */
+	protected static String columnLabel(int column) {
+		StringBuilder label = new StringBuilder();
+		for (int n=column+1; n>0; n=(n-1)/LETTERS.length())
+			label.insert(0, LETTERS.charAt((n-1) % LETTERS.length()));
+		return label.toString();
+	}
+}
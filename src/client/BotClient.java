@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bot client plays complete matches against the server without a display.
+ * It speaks the same protocol as Client and GameBoard: lobby handshake with serialised objects,
+ * then binary frames with shots resolved by the server, on whatever board size and fleet the server's rules set.
+ * Started from main it opens a number of concurrent connections for soak and throughput testing
+ * and reports shot round trip percentiles and matches per second.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class BotClient implements Runnable {
+
+	protected static final int CONTINUE = 1;
+	protected static final int WIN = 3;
+	protected static final int LOSE = 4;
+	/** Returned when the lobby pairing has been aborted */
+	protected static final int DISCONNECT = -4;
+
+	/** Time to wait for a message from the server in milliseconds */
+	protected static final int READ_TIMEOUT = 60000;
+	/** Seconds between progress reports */
+	protected static final int REPORT_INTERVAL = 5;
+
+	protected static final String USAGE = "Usage: java BotClient [-host address] [-port number] [-bots count]"
+			+ " [-matches per bot, 0 to play until stopped] [-strategy random|hunt] [-think milliseconds] [-seed number]";
+
+	/**
+	 * Results shared by all bots of a run
+	 */
+	protected static class Stats {
+		/** Shot round trips in microseconds, from sending a shot to receiving its result */
+		final LatencyHistogram shots = new LatencyHistogram();
+		/** Player matches claimed by bots, each match takes two */
+		final AtomicLong claimed = new AtomicLong();
+		/** Player matches finished with a win or a loss */
+		final AtomicLong finished = new AtomicLong();
+		/** Player matches won */
+		final AtomicLong won = new AtomicLong();
+		/** Matches ended by the opponent leaving, the server shutting down or a broken connection */
+		final AtomicLong failed = new AtomicLong();
+		/** Player matches to play in total, 0 for no limit */
+		final long limit;
+
+		Stats(long limit) {
+			this.limit = limit;
+		}
+	}
+
+	/**
+	 * Chooses shots for a bot
+	 */
+	protected static class Strategy {
+		/** Number of rows and columns */
+		protected int size;
+		/** Cells not shot at yet, as row*size+column, in the first remaining entries */
+		protected int[] cells = new int[0];
+		/** Index of each cell in cells, taken cells have an index of remaining or more */
+		protected int[] index = new int[0];
+		/** Number of cells not shot at yet */
+		protected int remaining;
+		protected Random random;
+
+		Strategy(Random random) {
+			this.random = random;
+		}
+
+		/**
+		 * Prepares for a new match
+		 * @param rules Rules of the match
+		 */
+		void reset(GameRules rules) {
+			size = rules.getSize();
+			if (cells.length != rules.getCells()) {
+				cells = new int[rules.getCells()];
+				index = new int[rules.getCells()];
+			}
+			for (int i=0; i<cells.length; i++) {
+				cells[i] = i;
+				index[i] = i;
+			}
+			remaining = cells.length;
+		}
+
+		/**
+		 * @return Next cell to shoot at, -1 if all cells have been shot at
+		 */
+		int next() {
+			if (remaining == 0)
+				return -1;
+			int cell = cells[random.nextInt(remaining)];
+			take(cell);
+			return cell;
+		}
+
+		/**
+		 * Takes a cell out of the cells left to shoot at
+		 * @param cell Cell number
+		 * @return true if the cell had not been shot at
+		 */
+		boolean take(int cell) {
+			int i = index[cell];
+			if (i >= remaining)
+				return false;
+			int last = cells[--remaining];
+			cells[i] = last;
+			index[last] = i;
+			cells[remaining] = cell;
+			index[cell] = remaining;
+			return true;
+		}
+
+		/**
+		 * Learns the result of a shot
+		 * @param cell Cell number
+		 * @param result One of the SHOT_ result codes
+		 */
+		void result(int cell, int result) {
+		}
+	}
+
+	/**
+	 * Shoots at random until a ship is hit, then at the cells next to the hits until it sinks
+	 */
+	protected static class HuntStrategy extends Strategy {
+		/** Cells next to hits of ships not sunk yet */
+		protected int[] targets = new int[0];
+		/** Number of target cells */
+		protected int targetCount;
+
+		HuntStrategy(Random random) {
+			super(random);
+		}
+
+		@Override
+		void reset(GameRules rules) {
+			super.reset(rules);
+			//A ship sinks before more than four targets per cell of the longest ship pile up
+			if (targets.length < 4 * rules.getMaxLength())
+				targets = new int[4 * rules.getMaxLength()];
+			targetCount = 0;
+		}
+
+		@Override
+		int next() {
+			while (targetCount > 0) {
+				int cell = targets[--targetCount];
+				if (take(cell))
+					return cell;
+			}
+			return super.next();
+		}
+
+		@Override
+		void result(int cell, int result) {
+			if (result == WireFormat.SHOT_SUNK) {
+				targetCount = 0;
+			}
+			else if (result == WireFormat.SHOT_HIT && targetCount + 4 <= targets.length) {
+				int row = cell / size, column = cell % size;
+				if (row > 0) targets[targetCount++] = cell - size;
+				if (row < size-1) targets[targetCount++] = cell + size;
+				if (column > 0) targets[targetCount++] = cell - 1;
+				if (column < size-1) targets[targetCount++] = cell + 1;
+			}
+		}
+	}
+
+	/** Server address */
+	protected String host;
+	/** Server port */
+	protected int port;
+	/** Results shared with the other bots */
+	protected Stats stats;
+	/** Chooses shots */
+	protected Strategy strategy;
+	/** Pause before each shot in milliseconds */
+	protected long thinkTime;
+	/** Identity the bot is rated by, bots sharing a host are rated apart */
+	protected long identity;
+
+	/**
+	 * @param host Server address
+	 * @param port Server port
+	 * @param stats Results shared with the other bots
+	 * @param strategy Chooses shots
+	 * @param thinkTime Pause before each shot in milliseconds
+	 */
+	public BotClient(String host, int port, Stats stats, Strategy strategy, long thinkTime) {
+		this.host = host;
+		this.port = port;
+		this.stats = stats;
+		this.strategy = strategy;
+		this.thinkTime = thinkTime;
+		while (identity == 0)
+			identity = strategy.random.nextLong();
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		String host = "127.0.0.1", strategy = "hunt";
+		int port = 3319, bots = 2, matches = 1;
+		long think = 0, seed = System.nanoTime();
+		try {
+			for (int i=0; i<args.length; i+=2) {
+				String value = args[i+1];
+				if (args[i].equals("-host")) host = value;
+				else if (args[i].equals("-port")) port = Integer.parseInt(value);
+				else if (args[i].equals("-bots")) bots = Integer.parseInt(value);
+				else if (args[i].equals("-matches")) matches = Integer.parseInt(value);
+				else if (args[i].equals("-strategy")) strategy = value;
+				else if (args[i].equals("-think")) think = Long.parseLong(value);
+				else if (args[i].equals("-seed")) seed = Long.parseLong(value);
+				else throw new IllegalArgumentException(args[i]);
+			}
+			if (bots < 2 || bots % 2 != 0)
+				throw new IllegalArgumentException("Number of bots must be even");
+			if (!strategy.equals("random") && !strategy.equals("hunt"))
+				throw new IllegalArgumentException("Unknown strategy " + strategy);
+		} catch (RuntimeException e) {
+			System.out.println(USAGE);
+			return;
+		}
+
+		final Stats stats = new Stats((long)bots * matches);
+		Thread[] threads = new Thread[bots];
+		for (int i=0; i<bots; i++) {
+			Random random = new Random(seed + i);
+			Strategy s = strategy.equals("hunt") ? new HuntStrategy(random) : new Strategy(random);
+			threads[i] = new Thread(new BotClient(host, port, stats, s, think), "bot-" + i);
+			threads[i].start();
+		}
+
+		final long start = System.nanoTime();
+		Thread reporter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(REPORT_INTERVAL * 1000L);
+						System.out.println(report(stats, start));
+					}
+				} catch (InterruptedException e) {
+					//Run has finished
+				}
+			}
+		}, "bot-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+
+		for (Thread t : threads)
+			t.join();
+		reporter.interrupt();
+		System.out.println("Finished: " + report(stats, start));
+	}
+
+	/**
+	 * Summarises results of a run
+	 * @param stats Results
+	 * @param start Start of the run from System.nanoTime()
+	 * @return Matches, matches per second and shot round trip percentiles
+	 */
+	protected static String report(Stats stats, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long matches = stats.finished.get() / 2;
+		return String.format("%d matches (%.1f/s), %d failed, shot round trip %s",
+				matches, matches / seconds, stats.failed.get(), stats.shots.summary("us"));
+	}
+
+	/**
+	 * Plays matches until the run's limit has been reached
+	 */
+	public void run() {
+		while (stats.limit == 0 || stats.claimed.incrementAndGet() <= stats.limit) {
+			try {
+				int result = playMatch();
+				if (result == WIN || result == LOSE) {
+					stats.finished.incrementAndGet();
+					if (result == WIN)
+						stats.won.incrementAndGet();
+				}
+				else stats.failed.incrementAndGet();
+			} catch (Exception e) {
+				stats.failed.incrementAndGet();
+				System.out.println(Thread.currentThread().getName() + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Connects to the server, waits for an opponent and plays one match
+	 * @return WIN or LOSE, or the code the match has been ended with
+	 * @throws Exception if the connection fails or a message is malformed
+	 */
+	protected int playMatch() throws Exception {
+		Socket socket = new Socket(host, port);
+		try {
+			socket.setSoTimeout(READ_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			ObjectOutputStream toServer = new ObjectOutputStream(socket.getOutputStream());
+			toServer.flush();
+			ObjectInputStream fromServer = new ObjectInputStream(socket.getInputStream());
+			if (!"connect".equals(fromServer.readObject()))
+				throw new IOException("Unexpected lobby message");
+			toServer.writeObject(WireFormat.hello(identity));
+			toServer.flush();
+			Object input = fromServer.readObject();
+			boolean lobbyOpen = false;
+			while (!"player2".equals(input)) {
+				if ("disconnect".equals(input))
+					return DISCONNECT;
+				if (WireFormat.parseHello(input) >= WireFormat.LOBBY_VERSION)
+					lobbyOpen = true;
+				input = fromServer.readObject();
+			}
+			toServer.writeObject("play");
+			toServer.flush();
+			//The bot stays ready when its opponent leaves, keepalives and new opponents need no answer
+			while (lobbyOpen && !WireFormat.START.equals(input)) {
+				input = fromServer.readObject();
+				if ("disconnect".equals(input))
+					return DISCONNECT;
+			}
+
+			FrameIO frames = new FrameIO(socket.getInputStream(), socket.getOutputStream(), WireFormat.VERSION);
+			//Servers speaking rules send them and the bot's fleet, older servers the field of the default rules
+			GameRules rules = GameRules.DEFAULT;
+			int type = frames.read();
+			if (type == WireFormat.RULES) {
+				rules = WireFormat.getRules(frames.payload());
+				frames.expect(WireFormat.FLEET);
+			}
+			else if (type != WireFormat.FIELD)
+				throw new IOException("Expected frame " + WireFormat.FIELD + " but received " + type);
+			if (frames.getVersion() < WireFormat.SHOT_VERSION)
+				throw new IOException("Server does not resolve shots");
+			return play(frames, rules);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Game loop, shoots whenever it is the bot's turn
+	 * @param frames Frames exchanged with the server
+	 * @param rules Rules of the match
+	 * @return WIN, LOSE or the code the match has been ended with
+	 * @throws Exception if the connection fails or a message is malformed
+	 */
+	protected int play(FrameIO frames, GameRules rules) throws Exception {
+		int size = rules.getSize();
+		int[][] results = new int[3][Math.max(3, rules.getShips())];
+		int[] update = new int[6];
+		int[] shot = new int[6];
+		long sentAt = 0;
+		int sunk = 0;
+		strategy.reset(rules);
+
+		while (true) {
+			int type = frames.read();
+			int code;
+			if (type == WireFormat.SHOT_RESULT) {
+				stats.shots.record((System.nanoTime() - sentAt) / 1000);
+				WireFormat.getShotResult(frames.payload(), shot);
+				strategy.result((shot[0]-1)*size + shot[1]-1, shot[2]);
+				if (shot[2] == WireFormat.SHOT_SUNK)
+					sunk++;
+				//After a miss the opponent plays, after the last ship has sunk the server announces the win
+				if (shot[2] == WireFormat.SHOT_MISS || sunk == rules.getShips())
+					continue;
+				code = CONTINUE;
+			}
+			else if (type == WireFormat.TURN_RESULTS) {
+				WireFormat.getTurnResults(frames.payload(), results);
+				code = results[0][2];
+			}
+			else if (type == WireFormat.UPDATE) {
+				WireFormat.getUpdate(frames.payload(), update);
+				code = update[2];
+			}
+			else if (type == WireFormat.PING) {
+				frames.sendPong();
+				continue;
+			}
+			else continue;
+
+			if (code == WIN || code == LOSE || code < 0)
+				return code;
+			if (code == CONTINUE) {
+				int cell = strategy.next();
+				if (cell < 0)
+					throw new IOException("No cells left to shoot at");
+				if (thinkTime > 0)
+					Thread.sleep(thinkTime);
+				sentAt = System.nanoTime();
+				frames.sendShot(cell / size, cell % size);
+			}
+		}
+	}
+}
@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.prefs.Preferences;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -14,15 +16,25 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 
 /** Client is used for connection to the server and starting the game
- * After the game is started a Game board is instantiated
+ * After the game is started a Game board is instantiated.
+ * Connecting and waiting for an opponent run on a lobby connector thread and can be cancelled.
+ * Servers keeping the lobby open start the game once both players have pressed play,
+ * until then the player is told if the opponent leaves and another joins.
  * 
  * @author Dmitri Samoilov
  *
  */
-public class Client extends JFrame implements WindowListener,ActionListener {
+public class Client extends JFrame implements WindowListener,ActionListener,LobbyConnector.Listener {
 		
 	private static final long serialVersionUID = 1L;
 	
+	/** Port of the server */
+	protected static final int PORT = 3319;
+	/** Preference the player's identity is kept under */
+	protected static final String IDENTITY_KEY = "identity";
+	protected static final String USAGE = "Usage: java Client [-timeout seconds to wait for an opponent]"
+			+ " [-stats, print message latency when the game ends]";
+	
 	/** Displays status information */
 	protected JLabel info;
 	/** Continues with connection when pressed */
@@ -31,22 +43,52 @@ public class Client extends JFrame implements WindowListener,ActionListener {
 	protected ObjectOutputStream toServer;
 	/** Used to receive objects from server */
 	protected ObjectInputStream fromServer;
+	/** Connection to server */
+	protected Socket socket;
+	/** Binary frames exchanged with server once the game has started */
+	protected FrameIO frames;
 	/** Indicates whether the game has been started */
 	protected boolean started;
+	/** Indicates whether the player has pressed play */
+	protected boolean ready;
 	/** Game board object */
 	protected GameBoard game;
 	/** Server IP address */
 	protected String serverIp;
+	/** Time allowed for connecting and finding an opponent, in milliseconds */
+	protected long waitTimeout;
+	/** Connects and waits for an opponent, null when not connecting */
+	protected LobbyConnector connector;
+	/** Indicates whether message latency is printed when the game ends */
+	protected boolean printStats;
 	
 	public static void main(String[] args) {
-		new Client();
+		long waitTimeout = LobbyConnector.DEFAULT_WAIT_TIMEOUT;
+		boolean printStats = false;
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-timeout")) waitTimeout = Long.parseLong(args[++i]) * 1000;
+				else if (args[i].equals("-stats")) printStats = true;
+				else throw new IllegalArgumentException(args[i]);
+			}
+			if (waitTimeout <= 0)
+				throw new IllegalArgumentException("Timeout must be positive");
+		} catch (RuntimeException e) {
+			System.out.println(USAGE);
+			return;
+		}
+		new Client(waitTimeout, printStats);
 	}	
 	
 	/**
 	 * Client constructor class
 	 * Creates client window, allows to connect to server
+	 * @param waitTimeout Time allowed for connecting and finding an opponent, in milliseconds
+	 * @param printStats true to print message latency when the game ends
 	 */
-	public Client() {
+	public Client(long waitTimeout, boolean printStats) {
+		this.waitTimeout = waitTimeout;
+		this.printStats = printStats;
 		started = false;
 		addWindowListener(this);
 		serverIp = JOptionPane.showInputDialog("Please enter server IP address. For localhost press Cancel");
@@ -65,66 +107,134 @@ public class Client extends JFrame implements WindowListener,ActionListener {
 		setVisible(true);	
 	}
 	/**
-	 * Connects to server, changes interface for user to start the game when connected
+	 * Starts connecting to server, the button cancels until an opponent has joined
 	 */
 	protected void connect() {
-		Socket client = null;
+		connectBtn.setText("Cancel");
+		connector = new LobbyConnector(serverIp, PORT, waitTimeout, identity(), this);
+		connector.start();
+	}
+	
+	/**
+	 * Reads the identity the server rates this player by, a random number made on first use
+	 * and kept in the user's preferences so the rating follows the player from game to game
+	 * @return Identity, not 0
+	 */
+	protected static long identity() {
+		long identity = 0;
 		try {
-			info.setText("Connecting to server...");
-			client = new Socket(serverIp, 3319);
-			toServer = new ObjectOutputStream(client.getOutputStream());
-			fromServer = new ObjectInputStream(client.getInputStream());
-			String input = (String)fromServer.readObject();
-			if (input.equals("connect")) {
-				info.setText("<html>Connected to server!<br>Waiting for Opponent to join...</html>");
-				repaint();	
-				input = (String)fromServer.readObject();
-				if (input.equals("player2")) {
-					info.setText("<html>Connected to server!<br>Opponent joined!<br><br>Hit Play to begin</html>");
-					connectBtn.setText("Play!");
-					connectBtn.setEnabled(true);
-				}
-			}
-		} catch (Exception e) {
-			System.out.println("Could not connect to server!");
-			System.exit(0);
+			Preferences preferences = Preferences.userNodeForPackage(Client.class);
+			identity = preferences.getLong(IDENTITY_KEY, 0);
+			while (identity == 0)
+				identity = new SecureRandom().nextLong();
+			preferences.putLong(IDENTITY_KEY, identity);
+		} catch (RuntimeException e) {
+			//Preferences unavailable, the player is rated for this session only
+			while (identity == 0)
+				identity = new SecureRandom().nextLong();
+		}
+		return identity;
+	}
+	
+	/**
+	 * Stops connecting and lets the player try again
+	 */
+	protected void cancel() {
+		connector.cancel();
+		connector = null;
+		ready = false;
+		info.setText("Press connect to start the game.");
+		connectBtn.setText("Connect");
+	}
+	
+	/**
+	 * Shows the step, a new attempt starts over so play has to be pressed again
+	 */
+	public void connectProgress(String status) {
+		ready = false;
+		info.setText(status);
+		connectBtn.setText("Cancel");
+	}
+	
+	/**
+	 * Changes interface for user to start the game
+	 */
+	public void opponentJoined(Socket socket, ObjectOutputStream toServer, ObjectInputStream fromServer) {
+		this.socket = socket;
+		this.toServer = toServer;
+		this.fromServer = fromServer;
+		if (ready) {
+			info.setText("<html>Connected to server!<br>Opponent joined!<br><br>Waiting for the game to start...</html>");
+			return;
 		}
+		info.setText("<html>Connected to server!<br>Opponent joined!<br><br>Hit Play to begin</html>");
+		connectBtn.setText("Play!");
+	}
+	
+	public void opponentLeft() {
+		info.setText("<html>Opponent has left.<br>Waiting for another opponent...</html>");
+		connectBtn.setText("Cancel");
+	}
+	
+	public void connectFailed(String reason) {
+		connector = null;
+		ready = false;
+		System.out.println(reason);
+		info.setText("<html>" + reason + "<br>Press connect to try again.</html>");
+		connectBtn.setText("Connect");
 	}
 	
 	
 	@Override
 	/**
 	 * When "connect" button is clicked, client connects to server.
+	 * When "cancel" button is clicked, client stops connecting.
 	 * When "play" button is clicked, client initialises game board.
 	 */
 	public void actionPerformed(ActionEvent arg0) {
 		if (connectBtn.getText().equals("Connect")) {
-			connectBtn.setEnabled(false);
 			connect();
 		}
+		else if (connectBtn.getText().equals("Cancel")) {
+			cancel();
+		}
 		else {
-			started = true;
+			ready = true;
 			try {
 				toServer.writeObject("play");
 				toServer.flush();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-			setVisible(false);
-			int[][] myField = null,field = null;
-			try {
-				myField = (int[][])fromServer.readObject();
-				field = (int[][])fromServer.readObject();
-			} catch (Exception e) {
-				System.out.println("Could not receive data from server!");
-				System.exit(0);
+			if (connector.isLobbyOpen()) {
+				info.setText("<html>Connected to server!<br><br>Waiting for the opponent to press play...</html>");
+				connectBtn.setText("Cancel");
+			}
+			else {
+				gameStarted();
 			}
-			
-			game = new GameBoard(toServer,fromServer,myField,field);
-			Thread t = new Thread(game);
-			t.start();
 		}
 	}
+	
+	/**
+	 * Hides the lobby window and shows the game board, which reads the player's field off the event dispatch thread
+	 */
+	public void gameStarted() {
+		started = true;
+		connector = null;
+		setVisible(false);
+		try {
+			frames = new FrameIO(socket.getInputStream(), socket.getOutputStream(), WireFormat.VERSION);
+		} catch (IOException e) {
+			System.out.println("Could not receive data from server!");
+			System.exit(0);
+		}
+		
+		//The player's field is read with all other messages, off the event dispatch thread
+		game = new GameBoard(frames, serverIp, PORT);
+		game.setPrintStats(printStats);
+		game.start();
+	}
 
 	@Override
 	public void windowActivated(WindowEvent arg0) {
@@ -139,6 +249,11 @@ public class Client extends JFrame implements WindowListener,ActionListener {
 	 * When window is closed by user, a message is passed to the server
 	 */
 	public void windowClosing(WindowEvent arg0) {
+		if (connector != null && (ready || toServer == null)) {
+			//Nothing is read from a player who has pressed play, closing the connection tells the server
+			connector.cancel();
+			System.exit(0);
+		}
 		if (!started && toServer != null) {
 			try {
 				toServer.writeObject("close");
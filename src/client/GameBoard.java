@@ -1,31 +1,30 @@
 import java.awt.BorderLayout;
+import java.awt.Dimension;
 import java.awt.GridLayout;
-import java.awt.event.MouseEvent;
-import java.awt.event.MouseListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 
-import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 
 /** Game Board is created when a game is launched and data is passed from the server
- * It creates Graphical User Interface and displays visual data for players
+ * It creates Graphical User Interface and displays visual data for players.
+ * Server messages are read by a server connection on its own thread and applied here
+ * on the event dispatch thread, so Swing components are only touched from there.
+ * Board size and fleet follow the rules the server sends, boards larger than the default scroll
+ * and fleets too large for a ship detail icon each are summed up in a line of text.
  * 
  * @author Dmitri Samoilov
  *
  */
-public class GameBoard extends JFrame implements WindowListener,MouseListener,Runnable{
+public class GameBoard extends JFrame implements WindowListener,BoardView.CellListener,ServerConnection.Listener{
 
 	private static final long serialVersionUID = 1L;
 	
-	protected static final int HIT = 1;
-	protected static final int MISS = 0;
 	protected static final int CONTINUE = 1;
 	protected static final int WAIT = 0;
 	protected static final int WIN = 3;
@@ -33,118 +32,190 @@ public class GameBoard extends JFrame implements WindowListener,MouseListener,Ru
 	protected static final int SHUTDOWN = -2;
 
 	private static final int EXIT = -3;
+	/** Largest fleet shown with a detail icon per ship */
+	protected static final int MAX_DETAILS = 40;
+	/** Largest width and height of a scrolling board, in pixels */
+	protected static final int MAX_VIEW = 500;
 
-	/** Used to send objects to server */
-	protected ObjectOutputStream toServer;
-	/** Used to receive objects from server */
-	protected ObjectInputStream fromServer;
-	/** Stores game field data - whether there is a ship on a particular tile or not */
-	protected int[][] field, myField;
+	/** Reads server messages and sends player's turns */
+	protected ServerConnection connection;
 	
+	/** Rules of the game */
+	protected GameRules rules = GameRules.DEFAULT;
+	/** Length of each ship */
+	protected int[] fleet = rules.getFleet();
 	/** Enemy ship data */
-	protected int[] ships = {1,1,1,1,2,2,2,3,3,4};
+	protected int[] ships = fleet.clone();
 	/** Player's ship data */
-	protected int[] myShips = {1,1,1,1,2,2,2,3,3,4};
-	/** Shows whether the game is running or not */
-	protected boolean continuePlaying;
+	protected int[] myShips = fleet.clone();
+	/** Icons shared by all tiles and ship details */
+	protected IconCache images = IconCache.getInstance();
 	/** Shows whether the player can make a move */
 	protected boolean listenersActive;
+	/** Indicates whether message latency is printed when the game ends */
+	protected boolean printStats;
 	
-	private JPanel grid, myGrid, panel, upperPanel, bottomPanel, myShipsDetails,shipsDetails;
+	private JPanel panel, upperPanel, bottomPanel, myShipsDetails,shipsDetails;
 	private JLabel[] myShipIcons, shipIcons;	
-	private JLabel[][] icons,myIcons;
+	/** Ships afloat, shown instead of the detail icons of a large fleet */
+	private JLabel myShipsSummary, shipsSummary;
+	/** Opponent's and player's game fields */
+	private BoardView board, myBoard;
 	
-	public GameBoard(ObjectOutputStream toServer, ObjectInputStream fromServer, int[][] myField, int[][] field) {
-		this.toServer = toServer;
-		this.fromServer = fromServer;
-		this.myField = myField;
-		this.field = field;
+	/**
+	 * @param frames Frames exchanged with server once the game has started
+	 * @param host Server address, used for resuming after the connection has dropped
+	 * @param port Server port
+	 */
+	public GameBoard(FrameIO frames, String host, int port) {
+		connection = new ServerConnection(frames, host, port, this);
+	}
+	
+	/**
+	 * @param printStats true to print message latency when the game ends
+	 */
+	public void setPrintStats(boolean printStats) {
+		this.printStats = printStats;
+	}
+	
+	/**
+	 * Starts reading server messages, the board is shown when the player's field arrives
+	 */
+	public void start() {
+		connection.start();
+	}
+	
+	/**
+	 * Takes the board size and fleet of the game, before the player's fleet arrives
+	 */
+	public void rulesReceived(GameRules rules) {
+		if (myBoard != null)
+			return;
+		this.rules = rules;
+		fleet = rules.getFleet();
+		ships = fleet.clone();
+		myShips = fleet.clone();
 	}
 	
 	/**
-	 * When a Thread is started, calls methods to create gui and start game
+	 * Shows the board with the player's ships where the server has placed them
 	 */
-	public void run() {
+	public void fleetReceived(int[] placements) {
+		if (myBoard != null)
+			return;
 		gui();
-		play();		
+		int size = rules.getSize();
+		for (int i=0; i<placements.length && i<fleet.length; i++) {
+			int cell = placements[i] >> 1;
+			boolean horizontal = (placements[i] & 1) != 0;
+			for (int z=0; z<fleet[i]; z++) {
+				int row = cell / size + (horizontal ? 0 : z), column = cell % size + (horizontal ? z : 0);
+				if (row < size && column < size)
+					myBoard.setCell(row, column, BoardView.SHIP + Tile.shape(fleet[i], z, horizontal));
+			}
+		}
 	}
+	
 	/**
-	 * Game loop
-	 * Receives input from server and does appropriate action
+	 * Shows the board with the player's field, sent by servers which do not send rules.
+	 * Servers resolving shots on the clients' side also send the opponent's field, it is ignored.
 	 */
-	protected void play() {
-		continuePlaying = true;
-		
-		while (continuePlaying) {	
-			
-			Integer[][] input = new Integer[3][10];
-			
-			try {
-				input = (Integer[][]) fromServer.readObject();
-				}
-			catch (Exception e) {
-				System.out.println("Could not get input from server! The game will exit.");
-				continuePlaying = false;
-				System.exit(0);
+	public void fieldReceived(int[][] field) {
+		if (myBoard != null)
+			return;
+		gui();
+		for (int x=1; x<field.length && x<=rules.getSize(); x++) {
+			for (int y=1; y<field[x].length && y<=rules.getSize(); y++) {
+				if (field[x][y] != -1)
+					myBoard.setCell(x-1, y-1, BoardView.SHIP + field[x][y]);
 			}
-			
-			if (input != null) {
-				
-				if (input[0][2] == SHUTDOWN) {
-					continuePlaying = false;
-					JOptionPane.showMessageDialog(null, "The server has been disconnected. The game will not exit.");
-					System.exit(0);
-				}
-				else if (input[0][2] == EXIT) {
-					continuePlaying = false;
-					JOptionPane.showMessageDialog(null, "The opponent has left the game. The game will not exit.");
-					System.exit(0);
-				}
-				
-				for (int i = 0; i<10; i++) {
-					myShips[i] = input[1][i];
-					ships[i] = input[2][i];
-				}
-				shipDetails(ships, myShips);
-				repaint();
-				
-				if (input[0][2] == CONTINUE) {
-					listenersActive = true;	
-					setTitle("Sea Battle - Your Turn!");
-				}
-				else if (input[0][2] == WAIT) {
-					if (input[0][0] != -1) {
-						if (myField[input[0][0]][input[0][1]] != -1) {
-							if (myField[input[0][0]][input[0][1]] == 0)
-								myIcons[input[0][0]][input[0][1]].setIcon(new ImageIcon("img/aim-north.png"));
-							else if (myField[input[0][0]][input[0][1]] == 1)
-								myIcons[input[0][0]][input[0][1]].setIcon(new ImageIcon("img/aim-east.png"));
-							else if (myField[input[0][0]][input[0][1]] == 2)
-								myIcons[input[0][0]][input[0][1]].setIcon(new ImageIcon("img/aim-south.png"));
-							else if (myField[input[0][0]][input[0][1]] == 3)
-								myIcons[input[0][0]][input[0][1]].setIcon(new ImageIcon("img/aim-west.png"));
-							else if (myField[input[0][0]][input[0][1]] == 5)
-								myIcons[input[0][0]][input[0][1]].setIcon(new ImageIcon("img/aim-horizontal.png"));
-							else if (myField[input[0][0]][input[0][1]] == 4)
-								myIcons[input[0][0]][input[0][1]].setIcon(new ImageIcon("img/aim-vertical.png"));
-							else if (myField[input[0][0]][input[0][1]] == 6)
-								myIcons[input[0][0]][input[0][1]].setIcon(new ImageIcon("img/aim-ship.png"));
-						}
-						else myIcons[input[0][0]][input[0][1]].setIcon(new ImageIcon("img/empty.png"));	
-						repaint();
-					}
-				}	
-				else if (input[0][2] == WIN) {
-					continuePlaying = false;
-					JOptionPane.showMessageDialog(null, "You have won! Congratulations!");
-				}
-				else if (input[0][2] == LOSE) {
-					continuePlaying = false;
-					JOptionPane.showMessageDialog(null, "Sorry, You have lost.");
-				}				
+		}
+	}
+	
+	/**
+	 * Full snapshots replace all ship details
+	 */
+	public void turnResultsReceived(int x, int y, int result, int[] myShips, int[] ships) {
+		for (int i = 0; i<fleet.length && i<myShips.length; i++) {
+			this.myShips[i] = myShips[i];
+			this.ships[i] = ships[i];
+		}
+		shipDetails(this.ships, this.myShips);
+		turnResult(x, y, result);
+	}
+	
+	/**
+	 * Incremental updates change a single ship
+	 */
+	public void updateReceived(int x, int y, int result, int owner, int ship, int cells) {
+		if (owner != WireFormat.NO_SHIP)
+			applyUpdate(owner, ship, cells);
+		turnResult(x, y, result);
+	}
+	
+	/**
+	 * Results of own shots are resolved by the server
+	 */
+	public void shotResultReceived(int x, int y, int result, int shape, int ship, int cells) {
+		applyShotResult(x, y, result, shape, ship, cells);
+	}
+	
+	public void connectionInterrupted() {
+		setTitle("Sea Battle - Reconnecting...");
+	}
+	
+	public void connectionResumed() {
+		setTitle(listenersActive ? "Sea Battle - Your Turn!" : "Sea Battle - Enemy's Turn!");
+	}
+	
+	public void connectionLost() {
+		System.out.println("Could not get input from server! The game will exit.");
+		finish();
+	}
+	
+	/**
+	 * Does appropriate action for the result code of a turn
+	 * @param x Row number of the opponent's shot, -1 if none
+	 * @param y Column number of the opponent's shot
+	 * @param result Result code
+	 */
+	protected void turnResult(int x, int y, int result) {
+		if (result == SHUTDOWN) {
+			JOptionPane.showMessageDialog(null, "The server has been disconnected. The game will not exit.");
+			finish();
+		}
+		else if (result == EXIT) {
+			JOptionPane.showMessageDialog(null, "The opponent has left the game. The game will not exit.");
+			finish();
+		}
+		else if (result == CONTINUE) {
+			listenersActive = true;	
+			setTitle("Sea Battle - Your Turn!");
+		}
+		else if (result == WAIT) {
+			if (x != -1) {
+				int value = myBoard.getCell(x-1, y-1);
+				boolean ship = value >= BoardView.SHIP && value < BoardView.HIT;
+				myBoard.setCell(x-1, y-1, ship ? BoardView.HIT + value - BoardView.SHIP : BoardView.WATER);
 			}
-						
+		}	
+		else if (result == WIN) {
+			JOptionPane.showMessageDialog(null, "You have won! Congratulations!");
+			finish();
+		}
+		else if (result == LOSE) {
+			JOptionPane.showMessageDialog(null, "Sorry, You have lost.");
+			finish();
 		}
+	}
+	
+	/**
+	 * Reports how quickly server messages have been applied if asked to and exits
+	 */
+	protected void finish() {
+		connection.close();
+		if (printStats)
+			System.out.println("Client: " + connection.getStats());
 		System.exit(0);
 	}
 	
@@ -153,213 +224,198 @@ public class GameBoard extends JFrame implements WindowListener,MouseListener,Ru
 	 */
 	protected void gui() {
 		setTitle("Sea Battle - Enemy's Turn!");
-		setSize(575, 410);
 		addWindowListener(this);
-		setResizable(false);
 		
 		panel = new JPanel(new BorderLayout());
 		upperPanel = new JPanel(new BorderLayout());
 		bottomPanel = new JPanel(new GridLayout(1,2));		
 		
-		shipsDetails = new JPanel(new GridLayout(4,4));
-		myShipsDetails = new JPanel(new GridLayout(4,4));
-		
-		shipIcons = new JLabel[10];
-		myShipIcons = new JLabel[10];
-		
-		for (int i=0; i<4; i++) {
-			shipIcons[i] = new JLabel(new ImageIcon("img/1cell-1.png"));
-			shipsDetails.add(shipIcons[i]);
-			myShipIcons[i] = new JLabel(new ImageIcon("img/1cell-1.png"));
-			myShipsDetails.add(myShipIcons[i]);
-		}
-		shipsDetails.add(new JLabel());
-		for (int i=4; i<7; i++) {
-			shipIcons[i] = new JLabel(new ImageIcon("img/2cell-2.png"));
-			shipsDetails.add(shipIcons[i]);
-			myShipIcons[i] = new JLabel(new ImageIcon("img/2cell-2.png"));
-			myShipsDetails.add(myShipIcons[i]);
+		if (fleet.length > MAX_DETAILS) {
+			myShipsSummary = new JLabel();
+			shipsSummary = new JLabel();
+			myShipsDetails = new JPanel();
+			myShipsDetails.add(myShipsSummary);
+			shipsDetails = new JPanel();
+			shipsDetails.add(shipsSummary);
+			shipDetails(ships, myShips);
 		}
-		myShipsDetails.add(new JLabel());		
-		shipsDetails.add(new JLabel());
-		shipsDetails.add(new JLabel());
-		for (int i=7; i<9; i++) {
-			shipIcons[i] = new JLabel(new ImageIcon("img/3cell-3.png"));
-			shipsDetails.add(shipIcons[i]);
-			myShipIcons[i] = new JLabel(new ImageIcon("img/3cell-3.png"));
-			myShipsDetails.add(myShipIcons[i]);
+		else {
+			shipIcons = new JLabel[fleet.length];
+			myShipIcons = new JLabel[fleet.length];
+			shipsDetails = detailPanel(shipIcons, true);
+			myShipsDetails = detailPanel(myShipIcons, false);
 		}
-		myShipsDetails.add(new JLabel());
-		myShipsDetails.add(new JLabel());
-		shipsDetails.add(new JLabel());
-		shipsDetails.add(new JLabel());
-		shipsDetails.add(new JLabel());
-		shipIcons[9] = new JLabel(new ImageIcon("img/4cell-4.png"));
-		shipsDetails.add(shipIcons[9]);
-		myShipIcons[9] = new JLabel(new ImageIcon("img/4cell-4.png"));
-		myShipsDetails.add(myShipIcons[9]);
-		myShipsDetails.add(new JLabel());
-		myShipsDetails.add(new JLabel());
-		myShipsDetails.add(new JLabel());
-		
 		
 		upperPanel.add(myShipsDetails, BorderLayout.WEST);	
 		upperPanel.add(shipsDetails, BorderLayout.EAST);
 		
-		myGrid = new JPanel(new GridLayout(11,11));
-		bottomPanel.add(myGrid);
-		grid = new JPanel(new GridLayout(11,11));
-		bottomPanel.add(grid);
-		
-		icons = new JLabel[11][11];
-		myIcons = new JLabel[11][11];		
-		
-		//Initialise graphical game field
-		for (int x=0; x<11; x++) {
-			for (int y=0; y<11; y++) {	
-				String letters = "ABCDEFGHIJ";
-				if (x==0 && y==0) {
-					icons[x][y] = new JLabel();
-					myIcons[x][y] = new JLabel();
-					grid.add(icons[x][y]);
-					myGrid.add(myIcons[x][y]);
-				}
-				else if (x==0 && y!=0) {
-					String letter = letters.charAt(y-1) + "";
-					icons[x][y] = new JLabel(letter, JLabel.CENTER);
-					myIcons[x][y] = new JLabel(letter, JLabel.CENTER);
-					grid.add(icons[x][y]);
-					myGrid.add(myIcons[x][y]);
-				}
-				else if (y==0 && x!=0) {
-					icons[x][y] = new JLabel(x+"", JLabel.CENTER);
-					myIcons[x][y] = new JLabel(x+"", JLabel.CENTER);
-					grid.add(icons[x][y]);
-					myGrid.add(myIcons[x][y]);
-				}
-				else {				
-					icons[x][y] = new JLabel(new ImageIcon("img/tile.png"), JLabel.CENTER);
-					icons[x][y].addMouseListener(this);
-					grid.add(icons[x][y]);
-					
-					if (myField[x][y] == 0)
-						myIcons[x][y] = new JLabel(new ImageIcon("img/north.png"), JLabel.CENTER);
-					else if (myField[x][y] == 1)
-						myIcons[x][y] = new JLabel(new ImageIcon("img/east.png"), JLabel.CENTER);
-					else if (myField[x][y] == 2)
-						myIcons[x][y] = new JLabel(new ImageIcon("img/south.png"), JLabel.CENTER);
-					else if (myField[x][y] == 3)
-						myIcons[x][y] = new JLabel(new ImageIcon("img/west.png"), JLabel.CENTER);
-					else if (myField[x][y] == 5)
-						myIcons[x][y] = new JLabel(new ImageIcon("img/horizontal.png"), JLabel.CENTER);
-					else if (myField[x][y] == 4)
-						myIcons[x][y] = new JLabel(new ImageIcon("img/vertical.png"), JLabel.CENTER);
-					else if (myField[x][y] == 6)
-						myIcons[x][y] = new JLabel(new ImageIcon("img/ship.png"), JLabel.CENTER);
-					else myIcons[x][y] = new JLabel(new ImageIcon("img/tile.png"), JLabel.CENTER);
-					myGrid.add(myIcons[x][y]);
-				}
-			}			
+		myBoard = new BoardView(rules.getSize(), images);
+		board = new BoardView(rules.getSize(), images);
+		board.setCellListener(this);
+		if (rules.getSize() <= GameRules.DEFAULT.getSize()) {
+			setSize(575, 410);
+			setResizable(false);
+			bottomPanel.add(myBoard);
+			bottomPanel.add(board);
 		}
+		else {
+			bottomPanel.add(scrolling(myBoard));
+			bottomPanel.add(scrolling(board));
+		}
+		
 		panel.add(upperPanel, BorderLayout.NORTH);
 		panel.add(bottomPanel, BorderLayout.SOUTH);	
 		add(panel);		
+		if (rules.getSize() > GameRules.DEFAULT.getSize())
+			pack();
 		setVisible(true);
 		repaint();
 	}
 	
+	/**
+	 * Lays ship detail icons out with a row per ship length, shortest first
+	 * @param icons Array to put each ship's icon in
+	 * @param alignRight true to line the icons of each row up on the right
+	 * @return Panel holding the icons
+	 */
+	protected JPanel detailPanel(JLabel[] icons, boolean alignRight) {
+		int[] counts = new int[rules.getMaxLength() + 1];
+		for (int length : fleet)
+			counts[length]++;
+		int rows = 0, columns = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				rows++;
+				columns = Math.max(columns, count);
+			}
+		}
+		JPanel details = new JPanel(new GridLayout(rows, columns));
+		for (int length=1; length<counts.length; length++) {
+			if (counts[length] == 0)
+				continue;
+			for (int i=0; alignRight && i<columns-counts[length]; i++)
+				details.add(new JLabel());
+			for (int i=0; i<fleet.length; i++) {
+				if (fleet[i] == length) {
+					icons[i] = new JLabel(images.detail(length, length));
+					details.add(icons[i]);
+				}
+			}
+			for (int i=0; !alignRight && i<columns-counts[length]; i++)
+				details.add(new JLabel());
+		}
+		return details;
+	}
+	
+	/**
+	 * @param view Board view larger than the default board
+	 * @return Scroll pane showing at most MAX_VIEW pixels of the view
+	 */
+	protected static JScrollPane scrolling(BoardView view) {
+		JScrollPane pane = new JScrollPane(view);
+		Dimension preferred = view.getPreferredSize();
+		pane.getViewport().setPreferredSize(new Dimension(Math.min(MAX_VIEW, preferred.width),
+				Math.min(MAX_VIEW, preferred.height)));
+		pane.getVerticalScrollBar().setUnitIncrement(view.cellSize);
+		pane.getHorizontalScrollBar().setUnitIncrement(view.cellSize);
+		return pane;
+	}
+	
 	/**	Manages ship detail icons
 	 * 
 	 * @param ship Array of opponent's ships
 	 * @param myShip Array of player's ships
 	 */
 	protected void shipDetails(int [] ship, int [] myShip) {
-		for (int i=0; i<4; i++) {
-			shipIcons[i].setIcon(new ImageIcon("img/1cell-"+ship[i]+".png"));
-			myShipIcons[i].setIcon(new ImageIcon("img/1cell-"+myShip[i]+".png"));
+		if (shipIcons == null) {
+			shipsSummary.setText(afloat(ship) + " of " + fleet.length + " ships afloat");
+			myShipsSummary.setText(afloat(myShip) + " of " + fleet.length + " ships afloat");
+			return;
 		}
-		for (int i=4; i<7; i++) {
-			shipIcons[i].setIcon(new ImageIcon("img/2cell-"+ship[i]+".png"));
-			myShipIcons[i].setIcon(new ImageIcon("img/2cell-"+myShip[i]+".png"));
+		for (int i=0; i<fleet.length; i++) {
+			shipIcons[i].setIcon(images.detail(fleet[i], ship[i]));
+			myShipIcons[i].setIcon(images.detail(fleet[i], myShip[i]));
 		}
-		for (int i=7; i<9; i++) {
-			shipIcons[i].setIcon(new ImageIcon("img/3cell-"+ship[i]+".png"));
-			myShipIcons[i].setIcon(new ImageIcon("img/3cell-"+myShip[i]+".png"));
-		}
-		shipIcons[9].setIcon(new ImageIcon("img/4cell-"+ship[9]+".png"));
-		myShipIcons[9].setIcon(new ImageIcon("img/4cell-"+myShip[9]+".png"));
 	}
 	
 	/**
-	 * Detects mouse click on a game field, does appropriate action
+	 * @param cells Cells alive of each ship
+	 * @return Number of ships not sunk
 	 */
-	public void mouseClicked(MouseEvent e) {		
-		if (listenersActive) {
-			for (int x=0; x<11; x++) {
-				for (int y=0; y<11; y++) {
-					if (e.getSource() == icons[x][y]) {
-						int[] turn = new int[3];
-						turn[0] = x-1;
-						turn[1] = y-1;
-						if (field[x][y] != -1) {
-							if (field[x][y] == 0)
-								icons[x][y].setIcon(new ImageIcon("img/aim-north.png"));
-							else if (field[x][y] == 1)
-								icons[x][y].setIcon(new ImageIcon("img/aim-east.png"));
-							else if (field[x][y] == 2)
-								icons[x][y].setIcon(new ImageIcon("img/aim-south.png"));
-							else if (field[x][y] == 3)
-								icons[x][y].setIcon(new ImageIcon("img/aim-west.png"));
-							else if (field[x][y] == 5)
-								icons[x][y].setIcon(new ImageIcon("img/aim-horizontal.png"));
-							else if (field[x][y] == 4)
-								icons[x][y].setIcon(new ImageIcon("img/aim-vertical.png"));
-							else if (field[x][y] == 6)
-								icons[x][y].setIcon(new ImageIcon("img/aim-ship.png"));
-							icons[x][y].removeMouseListener(this);
-							turn[2] = HIT;
-						}
-						else {
-							icons[x][y].setIcon(new ImageIcon("img/empty.png"));
-							icons[x][y].removeMouseListener(this);
-							turn[2] = MISS;
-							listenersActive = false;
-							setTitle("Sea Battle - Enemy's turn!");
-						}
-						try {
-							toServer.writeObject(turn);
-							toServer.flush();
-						} catch (IOException e1) {
-							System.out.println("Could not send turn results to server!");
-						}
-					}
-				}			
-			}	
+	protected static int afloat(int[] cells) {
+		int afloat = 0;
+		for (int alive : cells) {
+			if (alive > 0)
+				afloat++;
 		}
+		return afloat;
 	}
-
+	
 	/**
-	 * When mouse enters a game tile, display aim scope
+	 * Applies an incremental update to one ship and its detail icon.
+	 * Asks the server for a full snapshot if the update does not fit local data.
+	 * 
+	 * @param owner MY_SHIP or ENEMY_SHIP
+	 * @param index Ship index
+	 * @param cells Cells alive
 	 */
-	public void mouseEntered(MouseEvent arg0) {
-		JLabel tile = (JLabel) arg0.getSource();		
-		tile.setIcon(new ImageIcon("img/aim.png"));		
+	protected void applyUpdate(int owner, int index, int cells) {
+		int[] target = owner == WireFormat.MY_SHIP ? myShips : ships;
+		if (index < 0 || index >= target.length || cells < 0 || cells > target[index]) {
+			try {
+				connection.sendResync();
+			} catch (IOException e) {
+				System.out.println("Could not request data from server!");
+			}
+			return;
+		}
+		target[index] = cells;
+		if (shipIcons == null) {
+			shipDetails(ships, myShips);
+			return;
+		}
+		JLabel icon = owner == WireFormat.MY_SHIP ? myShipIcons[index] : shipIcons[index];
+		icon.setIcon(images.detail(fleet[index], cells));
 	}
-
+	
 	/**
-	 * When mouse exits game tile, display plain tile
+	 * Applies the result of own shot sent by the server.
+	 * After a hit the player shoots again, after a miss the turn passes to the opponent.
+	 * Rejected shots let the player choose another cell.
+	 * 
+	 * @param x Row number
+	 * @param y Column number
+	 * @param result One of the SHOT_ result codes
+	 * @param shape Tile shape of the cell hit
+	 * @param ship Index of the ship hit
+	 * @param cells Cells alive of the ship hit
 	 */
-	public void mouseExited(MouseEvent arg0) {
-		JLabel tile = (JLabel) arg0.getSource();		
-		tile.setIcon(new ImageIcon("img/tile.png"));			
-	}
-
-	@Override
-	public void mouseReleased(MouseEvent arg0) {	
+	protected void applyShotResult(int x, int y, int result, int shape, int ship, int cells) {
+		if (result == WireFormat.SHOT_HIT || result == WireFormat.SHOT_SUNK) {
+			board.setCell(x-1, y-1, BoardView.HIT + shape);
+			applyUpdate(WireFormat.ENEMY_SHIP, ship, cells);
+			listenersActive = true;
+		}
+		else if (result == WireFormat.SHOT_MISS) {
+			board.setCell(x-1, y-1, BoardView.WATER);
+			setTitle("Sea Battle - Enemy's turn!");
+		}
+		else listenersActive = true;
 	}
 	
-	@Override
-	public void mousePressed(MouseEvent arg0) {	
+	/**
+	 * Sends the shot at a clicked tile to the server.
+	 * No further shots are taken until the server has sent its result.
+	 */
+	public void cellClicked(int row, int column) {
+		if (listenersActive) {
+			listenersActive = false;
+			try {
+				connection.sendShot(row, column);
+			} catch (IOException e1) {
+				System.out.println("Could not send turn results to server!");
+			}
+		}
 	}
 
 	@Override
@@ -376,11 +432,8 @@ public class GameBoard extends JFrame implements WindowListener,MouseListener,Ru
 
 	@Override
 	public void windowClosing(WindowEvent e) {
-		int[] output = new int[3];
-		output[2] = EXIT;
 		try {
-			toServer.writeObject(output);
-			toServer.flush();
+			connection.sendLeave();
 		} catch (IOException e1) {
 			System.out.println("Could not inform server of exit");
 		}
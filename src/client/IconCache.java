@@ -0,0 +1,130 @@
+import java.io.File;
+import java.net.URL;
+
+import javax.swing.ImageIcon;
+
+/**
+ * Icon cache loads every image of the game board once and shares the icons between all code paths,
+ * so hovering over a tile or applying a server message never reads or decodes an image.
+ * Images are looked up on the classpath under /img/ first, then in the img directory
+ * next to the working directory where the game has always kept them.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class IconCache {
+
+	/** Directory holding the images */
+	protected static final String DIRECTORY = "img/";
+	/** Image names of ship tiles indexed by tile shape */
+	protected static final String[] SHAPES = {"north", "east", "south", "west", "vertical", "horizontal", "ship"};
+	/** Length of the longest ship with a detail icon */
+	protected static final int MAX_LENGTH = 4;
+
+	/** Shared cache */
+	private static IconCache instance;
+
+	/** Plain tile */
+	protected ImageIcon tile;
+	/** Tile under the mouse */
+	protected ImageIcon aim;
+	/** Tile shot at without hitting a ship */
+	protected ImageIcon empty;
+	/** Ship tiles indexed by tile shape */
+	protected ImageIcon[] ships = new ImageIcon[SHAPES.length];
+	/** Hit ship tiles indexed by tile shape */
+	protected ImageIcon[] hits = new ImageIcon[SHAPES.length];
+	/** Ship detail icons indexed by ship length and cells alive */
+	protected ImageIcon[][] details = new ImageIcon[MAX_LENGTH + 1][];
+
+	/**
+	 * Loads all icons
+	 */
+	protected IconCache() {
+		tile = load("tile.png");
+		aim = load("aim.png");
+		empty = load("empty.png");
+		for (int shape=0; shape<SHAPES.length; shape++) {
+			ships[shape] = load(SHAPES[shape] + ".png");
+			hits[shape] = load("aim-" + SHAPES[shape] + ".png");
+		}
+		for (int length=1; length<=MAX_LENGTH; length++) {
+			details[length] = new ImageIcon[length + 1];
+			for (int cells=0; cells<=length; cells++)
+				details[length][cells] = load(length + "cell-" + cells + ".png");
+		}
+	}
+
+	/**
+	 * @return Shared cache, loaded on first use
+	 */
+	public static synchronized IconCache getInstance() {
+		if (instance == null)
+			instance = new IconCache();
+		return instance;
+	}
+
+	/**
+	 * Loads an image from the classpath or the img directory
+	 * @param name Image file name
+	 * @return Icon, without image data if the image has not been found
+	 */
+	protected static ImageIcon load(String name) {
+		URL url = IconCache.class.getResource("/" + DIRECTORY + name);
+		if (url != null)
+			return new ImageIcon(url);
+		return new ImageIcon(DIRECTORY + name);
+	}
+
+	/**
+	 * @return Plain tile
+	 */
+	public ImageIcon tile() {
+		return tile;
+	}
+
+	/**
+	 * @return Tile under the mouse
+	 */
+	public ImageIcon aim() {
+		return aim;
+	}
+
+	/**
+	 * @return Tile shot at without hitting a ship
+	 */
+	public ImageIcon empty() {
+		return empty;
+	}
+
+	/**
+	 * @param shape Tile shape, -1 for a tile without ship
+	 * @return Ship tile or plain tile
+	 */
+	public ImageIcon ship(int shape) {
+		return shape >= 0 && shape < ships.length ? ships[shape] : tile;
+	}
+
+	/**
+	 * @param shape Tile shape
+	 * @return Hit ship tile
+	 */
+	public ImageIcon hit(int shape) {
+		return shape >= 0 && shape < hits.length ? hits[shape] : hits[hits.length - 1];
+	}
+
+	/**
+	 * Ships longer than MAX_LENGTH are shown with the icon of the longest ship,
+	 * cells alive scaled down and a ship still afloat never shown as sunk
+	 * @param length Ship length
+	 * @param cells Cells alive
+	 * @return Ship detail icon
+	 */
+	public ImageIcon detail(int length, int cells) {
+		if (length > MAX_LENGTH) {
+			cells = cells == 0 ? 0 : Math.max(1, cells * MAX_LENGTH / length);
+			length = MAX_LENGTH;
+		}
+		return details[length][cells];
+	}
+}
@@ -0,0 +1,358 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Lobby connector connects to the server and waits for an opponent on its own thread,
+ * so the client window stays responsive however long matchmaking takes.
+ * Progress, success and failure are reported to a listener on the event dispatch thread.
+ * Attempts refused or dropped by a saturated server are retried with exponential backoff and jitter
+ * until the wait timeout runs out. A cancelled connector closes its socket and reports nothing more.
+ * Servers which answer the hello keep the lobby open until the game starts: the connector then goes on reading
+ * after the opponent has joined and reports an opponent leaving, another joining and the start of the game.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class LobbyConnector implements Runnable {
+
+	/** Time allowed for opening the socket, in milliseconds */
+	protected static final int CONNECT_TIMEOUT = 5000;
+	/** Delay before the first retry, in milliseconds */
+	protected static final long INITIAL_BACKOFF = 250;
+	/** Longest delay between retries, in milliseconds */
+	protected static final long MAX_BACKOFF = 8000;
+	/** Default time allowed for connecting and finding an opponent, in milliseconds */
+	public static final long DEFAULT_WAIT_TIMEOUT = 5 * 60 * 1000;
+
+	/**
+	 * Receives connection progress on the event dispatch thread
+	 */
+	public interface Listener {
+		/**
+		 * @param status Description of the current step
+		 */
+		void connectProgress(String status);
+
+		/**
+		 * Called when an opponent has joined, the connection is handed over to the listener.
+		 * If the server keeps the lobby open the connector goes on reading from it until the game starts.
+		 * @param socket Connection to server
+		 * @param toServer Object stream to server
+		 * @param fromServer Object stream from server
+		 */
+		void opponentJoined(Socket socket, ObjectOutputStream toServer, ObjectInputStream fromServer);
+
+		/**
+		 * Called when the opponent has left before the game started, the server looks for another
+		 */
+		void opponentLeft();
+
+		/**
+		 * Called when the server starts the game, binary frames follow on the connection
+		 */
+		void gameStarted();
+
+		/**
+		 * @param reason Why no game could be found
+		 */
+		void connectFailed(String reason);
+	}
+
+	/**
+	 * Server has closed the lobby connection or refused it, another attempt may succeed
+	 */
+	protected static class RetryException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RetryException(String message) {
+			super(message);
+		}
+	}
+
+	/** Server address */
+	protected String host;
+	/** Server port */
+	protected int port;
+	/** Time allowed for connecting and finding an opponent, in milliseconds */
+	protected long waitTimeout;
+	/** Identity the player is rated by */
+	protected long identity;
+	/** Receives progress */
+	protected Listener listener;
+	/** Randomises retry delays so clients turned away together do not come back together */
+	protected Random random = new Random();
+	/** Runs the attempts */
+	protected Thread thread;
+	/** Socket of the current attempt */
+	protected volatile Socket socket;
+	/** Set once cancel() has been called */
+	protected volatile boolean cancelled;
+	/** Set when the server has answered the hello, it sends START before the game */
+	protected volatile boolean lobbyOpen;
+
+	/**
+	 * @param host Server address
+	 * @param port Server port
+	 * @param waitTimeout Time allowed for connecting and finding an opponent, in milliseconds
+	 * @param identity Identity the player is rated by
+	 * @param listener Receives progress on the event dispatch thread
+	 */
+	public LobbyConnector(String host, int port, long waitTimeout, long identity, Listener listener) {
+		this.host = host;
+		this.identity = identity;
+		this.port = port;
+		this.waitTimeout = waitTimeout;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts connecting
+	 */
+	public void start() {
+		thread = new Thread(this, "lobby-connector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return true if the server keeps the lobby open until the game starts,
+	 * false if binary frames follow as soon as the player presses play
+	 */
+	public boolean isLobbyOpen() {
+		return lobbyOpen;
+	}
+
+	/**
+	 * Stops connecting or waiting. Must be called on the event dispatch thread,
+	 * no callback is delivered afterwards.
+	 */
+	public void cancel() {
+		cancelled = true;
+		Socket s = socket;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				//Already closed
+			}
+		}
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * Attempts to join a game until an opponent is found, the wait timeout runs out or the connector is cancelled
+	 */
+	public void run() {
+		long deadline = System.currentTimeMillis() + waitTimeout;
+		long backoff = INITIAL_BACKOFF;
+		int attempt = 1;
+		String reason = "Could not connect to server!";
+		while (!cancelled) {
+			try {
+				attempt(attempt, deadline);
+				return;
+			} catch (SocketTimeoutException e) {
+				reason = System.currentTimeMillis() >= deadline ? "No opponent has joined in time."
+						: "Server did not respond in time.";
+			} catch (RetryException e) {
+				reason = e.getMessage();
+			} catch (ConnectException e) {
+				reason = "Server refused the connection.";
+			} catch (Exception e) {
+				closeSocket();
+				if (!cancelled)
+					fail("Could not connect to server! " + e.getMessage());
+				return;
+			}
+			closeSocket();
+
+			long delay = backoff / 2 + (long)(random.nextDouble() * backoff / 2);
+			if (cancelled || System.currentTimeMillis() + delay >= deadline)
+				break;
+			progress("<html>" + reason + "<br>Retrying in " + (delay + 999) / 1000 + " s...</html>");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				break;
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+			attempt++;
+		}
+		if (!cancelled)
+			fail(reason);
+	}
+
+	/**
+	 * One attempt: connects, greets the server and waits for an opponent,
+	 * then for the game to start if the server keeps the lobby open
+	 * @param attempt Attempt number from 1
+	 * @param deadline Time by which an opponent must be found
+	 * @throws SocketTimeoutException if the deadline passes
+	 * @throws RetryException if the server turns the client away
+	 * @throws ConnectException if the connection is refused
+	 * @throws Exception if the connection fails otherwise
+	 */
+	protected void attempt(int attempt, long deadline) throws Exception {
+		progress(attempt == 1 ? "Connecting to server..." : "Connecting to server (attempt " + attempt + ")...");
+		Socket s = new Socket();
+		socket = s;
+		if (cancelled)
+			throw new InterruptedException();
+		s.connect(new InetSocketAddress(host, port), Math.min(CONNECT_TIMEOUT, remaining(deadline)));
+		s.setTcpNoDelay(true);
+		ObjectOutputStream toServer = new ObjectOutputStream(s.getOutputStream());
+		toServer.flush();
+		try {
+			s.setSoTimeout(remaining(deadline));
+			ObjectInputStream fromServer = new ObjectInputStream(s.getInputStream());
+			if (!"connect".equals(fromServer.readObject()))
+				throw new IOException("Unexpected lobby message");
+			//Announce binary protocol support
+			toServer.writeObject(WireFormat.hello(identity));
+			toServer.flush();
+			progress("<html>Connected to server!<br>Waiting for Opponent to join...</html>");
+
+			s.setSoTimeout(remaining(deadline));
+			Object input = fromServer.readObject();
+			lobbyOpen = WireFormat.parseHello(input) >= WireFormat.LOBBY_VERSION;
+			if (lobbyOpen) {
+				s.setSoTimeout(remaining(deadline));
+				input = fromServer.readObject();
+			}
+			if ("disconnect".equals(input))
+				throw new RetryException("Server could not start the game.");
+			if (!"player2".equals(input))
+				throw new IOException("Unexpected lobby message");
+			s.setSoTimeout(0);
+			succeed(s, toServer, fromServer);
+			while (lobbyOpen) {
+				input = fromServer.readObject();
+				if (WireFormat.START.equals(input)) {
+					started();
+					return;
+				}
+				if ("disconnect".equals(input))
+					throw new RetryException("Server could not start the game.");
+				if (WireFormat.OPPONENT_LEFT.equals(input))
+					opponentLeft();
+				else if ("player2".equals(input))
+					succeed(s, toServer, fromServer);
+				else if (!WireFormat.KEEPALIVE.equals(input))
+					throw new IOException("Unexpected lobby message");
+			}
+		} catch (EOFException e) {
+			throw new RetryException("Server has closed the connection.");
+		} catch (SocketException e) {
+			//A full lobby closes new connections before reading from them
+			throw new RetryException("Server has closed the connection.");
+		}
+	}
+
+	/**
+	 * @param deadline Time by which an opponent must be found
+	 * @return Milliseconds left, at least one so that a socket timeout of zero never means forever
+	 * @throws SocketTimeoutException if the deadline has passed
+	 */
+	protected static int remaining(long deadline) throws SocketTimeoutException {
+		long left = deadline - System.currentTimeMillis();
+		if (left <= 0)
+			throw new SocketTimeoutException();
+		return (int)Math.min(Integer.MAX_VALUE, left);
+	}
+
+	/**
+	 * Closes the socket of the current attempt
+	 */
+	protected void closeSocket() {
+		Socket s = socket;
+		socket = null;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				//Already closed
+			}
+		}
+	}
+
+	/**
+	 * Reports a step unless the connector has been cancelled
+	 * @param status Description of the step
+	 */
+	protected void progress(final String status) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (!cancelled)
+					listener.connectProgress(status);
+			}
+		});
+	}
+
+	/**
+	 * Hands the connection to the listener, or closes it if the connector has been cancelled meanwhile
+	 */
+	protected void succeed(final Socket s, final ObjectOutputStream toServer, final ObjectInputStream fromServer) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (!cancelled) {
+					listener.opponentJoined(s, toServer, fromServer);
+				}
+				else {
+					try {
+						s.close();
+					} catch (IOException e) {
+						//Already closed
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reports that the opponent has left unless the connector has been cancelled
+	 */
+	protected void opponentLeft() {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (!cancelled)
+					listener.opponentLeft();
+			}
+		});
+	}
+
+	/**
+	 * Reports that the game starts unless the connector has been cancelled
+	 */
+	protected void started() {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (!cancelled)
+					listener.gameStarted();
+			}
+		});
+	}
+
+	/**
+	 * Reports failure unless the connector has been cancelled
+	 * @param reason Why no game could be found
+	 */
+	protected void fail(final String reason) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (!cancelled)
+					listener.connectFailed(reason);
+			}
+		});
+	}
+}
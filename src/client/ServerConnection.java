@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Server connection reads frames from the server on a dedicated thread and hands them to the game board
+ * on the event dispatch thread. Decoded messages are queued and applied in batches: however many arrive,
+ * at most one drain task is waiting on the event queue, and the tile and icon changes of a batch
+ * are painted together. A batch is cut short after MAX_BATCH messages so painting and input are not held up.
+ * Time from decoding a message to applying it and time spent applying each batch are recorded.
+ * Server heartbeats are answered on the reader thread.
+ * If the connection drops after the server has sent a resume token, the reader reconnects with backoff
+ * and resumes the game: the server sends only the frames missed, counted from the rules or the first game field.
+ * A player who was to shoot when the connection dropped is asked for the shot again.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class ServerConnection implements Runnable {
+
+	/** Largest number of messages applied in one go on the event dispatch thread */
+	protected static final int MAX_BATCH = 64;
+	/** Time allowed for resuming the game after the connection has dropped, in milliseconds */
+	protected static final long RESUME_TIMEOUT = 30000;
+	/** Time allowed for opening a socket, in milliseconds */
+	protected static final int CONNECT_TIMEOUT = 5000;
+	/** Delay before the first retry, in milliseconds */
+	protected static final long INITIAL_BACKOFF = 250;
+	/** Longest delay between retries, in milliseconds */
+	protected static final long MAX_BACKOFF = 4000;
+	/** Result code of a game won */
+	protected static final int WIN = 3;
+	/** Result code of a game lost */
+	protected static final int LOSE = 4;
+	/** Message type of a dropped connection being resumed */
+	protected static final int INTERRUPTED = -1;
+	/** Message type of a game resumed */
+	protected static final int RESUMED = -2;
+
+	/**
+	 * Receives server messages on the event dispatch thread
+	 */
+	public interface Listener {
+		/**
+		 * @param rules Rules of the game, sent before the player's fleet
+		 */
+		void rulesReceived(GameRules rules);
+
+		/**
+		 * @param placements Top left cell times two, plus one if the ship runs to the right, of each of the player's ships
+		 */
+		void fleetReceived(int[] placements);
+
+		/**
+		 * @param field Game field including label row and column, sent by servers older than WireFormat.RULES_VERSION
+		 */
+		void fieldReceived(int[][] field);
+
+		/**
+		 * @param x Row number
+		 * @param y Column number
+		 * @param result Result code
+		 * @param myShips Cells alive of the player's ships
+		 * @param ships Cells alive of the opponent's ships
+		 */
+		void turnResultsReceived(int x, int y, int result, int[] myShips, int[] ships);
+
+		/**
+		 * @param x Row number
+		 * @param y Column number
+		 * @param result Result code
+		 * @param owner NO_SHIP, MY_SHIP or ENEMY_SHIP
+		 * @param ship Index of the changed ship
+		 * @param cells Cells alive of the changed ship
+		 */
+		void updateReceived(int x, int y, int result, int owner, int ship, int cells);
+
+		/**
+		 * @param x Row number
+		 * @param y Column number
+		 * @param result One of the SHOT_ result codes
+		 * @param shape Tile shape of the cell hit
+		 * @param ship Index of the ship hit
+		 * @param cells Cells alive of the ship hit
+		 */
+		void shotResultReceived(int x, int y, int result, int shape, int ship, int cells);
+
+		/**
+		 * Called when the connection has dropped and the game is being resumed
+		 */
+		void connectionInterrupted();
+
+		/**
+		 * Called when the game has been resumed on a new connection
+		 */
+		void connectionResumed();
+
+		/**
+		 * Called once when the connection has failed and the game could not be resumed
+		 */
+		void connectionLost();
+	}
+
+	/**
+	 * Decoded message waiting to be applied
+	 */
+	protected static class Message {
+		/** Frame type, INTERRUPTED or RESUMED, 0 for a lost connection */
+		int type;
+		/** Time the message was decoded, from System.nanoTime() */
+		long received;
+		/** Decoded values */
+		int[] values = new int[6];
+		/** Decoded game rules */
+		GameRules rules;
+		/** Decoded ship placements */
+		int[] placements;
+		/** Decoded game field */
+		int[][] field;
+		/** Decoded turn results */
+		int[][] results;
+	}
+
+	/** Frames exchanged with the server, replaced when the game resumes */
+	protected volatile FrameIO frames;
+	/** Server address */
+	protected String host;
+	/** Server port */
+	protected int port;
+	/** Token the game is resumed with, 0 until the server has sent one */
+	protected volatile long token;
+	/** Number of frames received, PING and RESUME_TOKEN frames are not counted */
+	protected int received;
+	/** Number of ships of the game, turn results are decoded into arrays of this length */
+	protected int ships = GameRules.DEFAULT.getShips();
+	/** Socket opened when resuming, null before */
+	protected volatile Socket socket;
+	/** Randomises retry delays */
+	protected Random random = new Random();
+	/** Receives messages */
+	protected Listener listener;
+	/** Reads frames */
+	protected Thread reader;
+	/** Messages decoded and not applied yet */
+	protected final ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<Message>();
+	/** Indicates that a drain task is waiting on the event queue */
+	protected final AtomicBoolean scheduled = new AtomicBoolean();
+	/** Indicates whether the connection is open */
+	protected volatile boolean running;
+	/** Microseconds from decoding a message to applying it */
+	protected final LatencyHistogram latency = new LatencyHistogram();
+	/** Microseconds the event dispatch thread spent applying each batch */
+	protected final LatencyHistogram batches = new LatencyHistogram();
+
+	/** Applies queued messages on the event dispatch thread */
+	protected final Runnable drain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * @param frames Frames exchanged with the server
+	 * @param host Server address, used for resuming
+	 * @param port Server port, used for resuming
+	 * @param listener Receives messages on the event dispatch thread
+	 */
+	public ServerConnection(FrameIO frames, String host, int port, Listener listener) {
+		this.frames = frames;
+		this.host = host;
+		this.port = port;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts reading messages
+	 */
+	public void start() {
+		running = true;
+		reader = new Thread(this, "server-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Reader loop: decodes frames and queues them for the event dispatch thread
+	 */
+	public void run() {
+		try {
+			while (running) {
+				int type;
+				try {
+					type = frames.read();
+				} catch (IOException e) {
+					if (!running || token == 0 || !resume())
+						throw e;
+					continue;
+				}
+				if (type == WireFormat.PING) {
+					//Answered right away, while the player may take his time on the event dispatch thread
+					frames.sendPong();
+					continue;
+				}
+				if (type == WireFormat.RESUME_TOKEN) {
+					token = WireFormat.getResumeToken(frames.payload());
+					continue;
+				}
+				received++;
+				Message message = new Message();
+				message.type = type;
+				if (type == WireFormat.RULES) {
+					message.rules = WireFormat.getRules(frames.payload());
+					ships = message.rules.getShips();
+				}
+				else if (type == WireFormat.FLEET) {
+					message.placements = WireFormat.getPlacements(frames.payload());
+				}
+				else if (type == WireFormat.FIELD) {
+					message.field = WireFormat.getField(frames.payload());
+				}
+				else if (type == WireFormat.TURN_RESULTS) {
+					message.results = new int[3][Math.max(3, ships)];
+					WireFormat.getTurnResults(frames.payload(), message.results);
+				}
+				else if (type == WireFormat.UPDATE) {
+					WireFormat.getUpdate(frames.payload(), message.values);
+				}
+				else if (type == WireFormat.SHOT_RESULT) {
+					WireFormat.getShotResult(frames.payload(), message.values);
+				}
+				else continue;
+				queue(message);
+				//The server closes the connection after the last message, there is nothing to resume
+				if (isFinal(message))
+					return;
+			}
+		} catch (Exception e) {
+			if (running)
+				queue(new Message());
+		}
+	}
+
+	/**
+	 * @param message Decoded message
+	 * @return true if the message ends the game: a win, a loss, the opponent leaving or the server shutting down
+	 */
+	protected static boolean isFinal(Message message) {
+		int result;
+		if (message.type == WireFormat.TURN_RESULTS)
+			result = message.results[0][2];
+		else if (message.type == WireFormat.UPDATE)
+			result = message.values[2];
+		else
+			return false;
+		return result == WIN || result == LOSE || result < 0;
+	}
+
+	/**
+	 * Reconnects after the connection has dropped and resumes the game,
+	 * retrying with exponential backoff and jitter until RESUME_TIMEOUT runs out
+	 * @return true if the game has been resumed
+	 */
+	protected boolean resume() {
+		queue(message(INTERRUPTED));
+		long deadline = System.currentTimeMillis() + RESUME_TIMEOUT;
+		long backoff = INITIAL_BACKOFF;
+		while (running) {
+			try {
+				if (!attemptResume(deadline))
+					return false;
+				queue(message(RESUMED));
+				return true;
+			} catch (IOException e) {
+				//Server not reachable yet
+			}
+			long delay = backoff / 2 + (long)(random.nextDouble() * backoff / 2);
+			if (System.currentTimeMillis() + delay >= deadline)
+				return false;
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return false;
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+		return false;
+	}
+
+	/**
+	 * One attempt to resume: connects, asks the server to resume the game and switches to the new connection
+	 * @param deadline Time by which the game must be resumed
+	 * @return true if the game has been resumed, false if the server has turned the request down
+	 * @throws IOException if the server cannot be reached
+	 */
+	protected boolean attemptResume(long deadline) throws IOException {
+		Socket s = new Socket();
+		try {
+			int left = (int)Math.max(1, deadline - System.currentTimeMillis());
+			s.connect(new InetSocketAddress(host, port), Math.min(CONNECT_TIMEOUT, left));
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(left);
+			ObjectOutputStream toServer = new ObjectOutputStream(s.getOutputStream());
+			toServer.flush();
+			ObjectInputStream fromServer = new ObjectInputStream(s.getInputStream());
+			if (!"connect".equals(fromServer.readObject()))
+				throw new IOException("Unexpected lobby message");
+			toServer.writeObject(WireFormat.resumeRequest(token, received));
+			toServer.flush();
+			if (!WireFormat.RESUMED.equals(fromServer.readObject())) {
+				s.close();
+				return false;
+			}
+			s.setSoTimeout(0);
+			FrameIO resumed = new FrameIO(s.getInputStream(), s.getOutputStream(), WireFormat.VERSION);
+			Socket dropped = socket;
+			socket = s;
+			if (dropped != null)
+				dropped.close();
+			frames = resumed;
+			return true;
+		} catch (ClassNotFoundException e) {
+			s.close();
+			throw new IOException("Unexpected lobby message");
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param type INTERRUPTED or RESUMED
+	 * @return Message carrying only its type
+	 */
+	protected static Message message(int type) {
+		Message message = new Message();
+		message.type = type;
+		return message;
+	}
+
+	/**
+	 * Queues a message and schedules a drain unless one is already waiting
+	 * @param message Decoded message
+	 */
+	protected void queue(Message message) {
+		message.received = System.nanoTime();
+		messages.offer(message);
+		if (scheduled.compareAndSet(false, true))
+			SwingUtilities.invokeLater(drain);
+	}
+
+	/**
+	 * Applies queued messages, at most MAX_BATCH of them, and reschedules itself if more are left
+	 */
+	protected void drain() {
+		scheduled.set(false);
+		long start = System.nanoTime();
+		Message message;
+		int applied = 0;
+		while (applied < MAX_BATCH && (message = messages.poll()) != null) {
+			latency.record((System.nanoTime() - message.received) / 1000);
+			dispatch(message);
+			applied++;
+		}
+		batches.record((System.nanoTime() - start) / 1000);
+		if (!messages.isEmpty() && scheduled.compareAndSet(false, true))
+			SwingUtilities.invokeLater(drain);
+	}
+
+	/**
+	 * Passes a message to the listener
+	 * @param message Decoded message
+	 */
+	protected void dispatch(Message message) {
+		int[] v = message.values;
+		switch (message.type) {
+			case WireFormat.RULES:
+				listener.rulesReceived(message.rules);
+				break;
+			case WireFormat.FLEET:
+				listener.fleetReceived(message.placements);
+				break;
+			case WireFormat.FIELD:
+				listener.fieldReceived(message.field);
+				break;
+			case WireFormat.TURN_RESULTS:
+				int[][] r = message.results;
+				listener.turnResultsReceived(r[0][0], r[0][1], r[0][2], r[1], r[2]);
+				break;
+			case WireFormat.UPDATE:
+				listener.updateReceived(v[0], v[1], v[2], v[3], v[4], v[5]);
+				break;
+			case WireFormat.SHOT_RESULT:
+				listener.shotResultReceived(v[0], v[1], v[2], v[3], v[4], v[5]);
+				break;
+			case INTERRUPTED:
+				if (running)
+					listener.connectionInterrupted();
+				break;
+			case RESUMED:
+				if (running)
+					listener.connectionResumed();
+				break;
+			default:
+				if (running) {
+					running = false;
+					listener.connectionLost();
+				}
+		}
+	}
+
+	/**
+	 * Sends a shot
+	 * @param x Row number
+	 * @param y Column number
+	 * @throws IOException if the shot cannot be sent
+	 */
+	public void sendShot(int x, int y) throws IOException {
+		frames.sendShot(x, y);
+	}
+
+	/**
+	 * Asks the server for a full snapshot
+	 * @throws IOException if the request cannot be sent
+	 */
+	public void sendResync() throws IOException {
+		frames.sendResync();
+	}
+
+	/**
+	 * Tells the server that the player leaves and stops reading
+	 * @throws IOException if the message cannot be sent
+	 */
+	public void sendLeave() throws IOException {
+		running = false;
+		frames.sendLeave();
+	}
+
+	/**
+	 * Stops reading, a blocked read ends when the socket is closed
+	 */
+	public void close() {
+		running = false;
+		Socket s = socket;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				//Already closed
+			}
+		}
+	}
+
+	/**
+	 * @return Message latency and time spent applying batches on the event dispatch thread
+	 */
+	public String getStats() {
+		return "message latency " + latency.summary("us") + ", batches " + batches.summary("us");
+	}
+}
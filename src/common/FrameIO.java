@@ -0,0 +1,298 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes binary frames over a socket's streams.
+ * Frame buffers are reused, so sending and receiving allocates nothing
+ * once the buffers have grown to the largest frame seen.
+ * Sending is thread safe, reading must be done by a single thread.
+ * A socket timeout before the first byte of a frame leaves the stream intact and may be retried,
+ * a timeout inside a frame breaks the connection.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class FrameIO {
+
+	/** Input from the other side */
+	protected DataInputStream in;
+	/** Output to the other side */
+	protected OutputStream out;
+	/** Protocol version written into frame headers, lowered to the version the other side uses */
+	protected volatile int version;
+	/** Holds payload of the last frame read */
+	protected ByteBuffer readBuffer = ByteBuffer.allocate(256);
+	/** Holds frame being written */
+	protected ByteBuffer writeBuffer = ByteBuffer.allocate(256);
+	/** Number of bytes sent */
+	protected long bytesSent;
+	/** Number of bytes received */
+	protected long bytesReceived;
+
+	/**
+	 * @param in Socket input stream
+	 * @param out Socket output stream
+	 * @param version Negotiated protocol version
+	 */
+	public FrameIO(InputStream in, OutputStream out, int version) {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.out = new BufferedOutputStream(out);
+		this.version = version;
+	}
+
+	/**
+	 * Sends game field
+	 * @param field Game field including label row and column
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendField(int[][] field) throws IOException {
+		int cells = (field.length - 1) * (field.length - 1);
+		WireFormat.putField(begin(WireFormat.FIELD, (cells + 1) * WireFormat.MAX_VARINT_SIZE), field);
+		flush();
+	}
+
+	/**
+	 * Sends game rules
+	 * @param rules Game rules
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendRules(GameRules rules) throws IOException {
+		WireFormat.putRules(begin(WireFormat.RULES, (2 + rules.getShips()) * WireFormat.MAX_VARINT_SIZE), rules);
+		flush();
+	}
+
+	/**
+	 * Sends the placements of the player's ships
+	 * @param placements Top left cell times two, plus one if the ship runs to the right, of each ship
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendFleet(int[] placements) throws IOException {
+		WireFormat.putPlacements(begin(WireFormat.FLEET, (1 + placements.length) * WireFormat.MAX_VARINT_SIZE), placements);
+		flush();
+	}
+
+	/**
+	 * Sends turn results
+	 * @param x Row number
+	 * @param y Column number
+	 * @param result Result code
+	 * @param myShips Cells alive of the receiving player's ships
+	 * @param ships Cells alive of the opponent's ships
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendTurnResults(int x, int y, int result, int[] myShips, int[] ships) throws IOException {
+		int size = (4 + 2 * myShips.length) * WireFormat.MAX_VARINT_SIZE;
+		WireFormat.putTurnResults(begin(WireFormat.TURN_RESULTS, size), x, y, result, myShips, ships);
+		flush();
+	}
+
+	/**
+	 * Sends an incremental update
+	 * @param x Row number
+	 * @param y Column number
+	 * @param result Result code
+	 * @param owner NO_SHIP, MY_SHIP or ENEMY_SHIP
+	 * @param ship Index of the changed ship
+	 * @param cells Cells alive of the changed ship
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendUpdate(int x, int y, int result, int owner, int ship, int cells) throws IOException {
+		WireFormat.putUpdate(begin(WireFormat.UPDATE, 6 * WireFormat.MAX_VARINT_SIZE), x, y, result, owner, ship, cells);
+		flush();
+	}
+
+	/**
+	 * Asks the server for a full snapshot
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendResync() throws IOException {
+		begin(WireFormat.RESYNC, 0);
+		flush();
+	}
+
+	/**
+	 * Sends coordinates of a shot
+	 * @param x Row number
+	 * @param y Column number
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendShot(int x, int y) throws IOException {
+		WireFormat.putShot(begin(WireFormat.SHOT, 2 * WireFormat.MAX_VARINT_SIZE), x, y);
+		flush();
+	}
+
+	/**
+	 * Sends result of a shot
+	 * @param x Row number
+	 * @param y Column number
+	 * @param result One of the SHOT_ result codes
+	 * @param shape Tile shape of the cell hit, -1 if no ship has been hit
+	 * @param ship Index of the ship hit
+	 * @param cells Cells alive of the ship hit
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendShotResult(int x, int y, int result, int shape, int ship, int cells) throws IOException {
+		WireFormat.putShotResult(begin(WireFormat.SHOT_RESULT, 6 * WireFormat.MAX_VARINT_SIZE), x, y, result, shape, ship, cells);
+		flush();
+	}
+
+	/**
+	 * Tells the server that the player leaves the game
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendLeave() throws IOException {
+		begin(WireFormat.LEAVE, 0);
+		flush();
+	}
+
+	/**
+	 * Asks the client to show that it is alive
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendPing() throws IOException {
+		begin(WireFormat.PING, 0);
+		flush();
+	}
+
+	/**
+	 * Answers a ping
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendPong() throws IOException {
+		begin(WireFormat.PONG, 0);
+		flush();
+	}
+
+	/**
+	 * Sends the token the player resumes the game with
+	 * @param token Resume token
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendResumeToken(long token) throws IOException {
+		WireFormat.putResumeToken(begin(WireFormat.RESUME_TOKEN, 8), token);
+		flush();
+	}
+
+	/**
+	 * Sends player's turn
+	 * @param turn Row, column and claimed result
+	 * @throws IOException if the frame cannot be sent
+	 */
+	public synchronized void sendTurn(int[] turn) throws IOException {
+		WireFormat.putTurn(begin(WireFormat.TURN, 3 * WireFormat.MAX_VARINT_SIZE), turn);
+		flush();
+	}
+
+	/**
+	 * Reads the next frame
+	 * @return Frame type, payload is available from {@link #payload()}
+	 * @throws SocketTimeoutException if no frame has started within the socket timeout
+	 * @throws IOException if the connection is broken or the frame is malformed
+	 */
+	public int read() throws IOException {
+		int frameVersion = in.readUnsignedByte();
+		int type, length;
+		try {
+			type = in.readUnsignedByte();
+			length = in.readUnsignedShort();
+			if (frameVersion == 0 || frameVersion > WireFormat.VERSION)
+				throw new IOException("Unsupported protocol version " + frameVersion);
+			if (readBuffer.capacity() < length)
+				readBuffer = ByteBuffer.allocate(Integer.highestOneBit(length) << 1);
+			readBuffer.clear();
+			in.readFully(readBuffer.array(), 0, length);
+		} catch (SocketTimeoutException e) {
+			throw new IOException("Incomplete frame", e);
+		}
+		readBuffer.limit(length);
+		bytesReceived += WireFormat.HEADER_SIZE + length;
+		if (frameVersion < version)
+			version = frameVersion;
+		return type;
+	}
+
+	/**
+	 * @return Payload of the last frame read
+	 */
+	public ByteBuffer payload() {
+		return readBuffer;
+	}
+
+	/**
+	 * Reads the next frame and checks its type
+	 * @param type Expected frame type
+	 * @return Payload of the frame
+	 * @throws IOException if the frame has a different type
+	 */
+	public ByteBuffer expect(int type) throws IOException {
+		int received = read();
+		if (received != type)
+			throw new IOException("Expected frame " + type + " but received " + received);
+		return readBuffer;
+	}
+
+	/**
+	 * @return Protocol version currently used for writing
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return Number of bytes sent
+	 */
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return Number of bytes received
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Starts a new frame in the write buffer
+	 * @param type Frame type
+	 * @param maxPayload Upper bound of the encoded payload size
+	 * @return Write buffer positioned at the payload
+	 */
+	protected ByteBuffer begin(int type, int maxPayload) {
+		int size = WireFormat.HEADER_SIZE + maxPayload;
+		if (writeBuffer.capacity() < size)
+			writeBuffer = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+		writeBuffer.clear();
+		writeBuffer.put((byte)version).put((byte)type).putShort((short)0);
+		return writeBuffer;
+	}
+
+	/**
+	 * Called with every complete frame before it is written out, does nothing here
+	 * @param frame Array holding the frame from index 0
+	 * @param length Frame size in bytes, header included
+	 */
+	protected void sent(byte[] frame, int length) {
+	}
+
+	/**
+	 * Completes frame header and writes the frame out
+	 * @throws IOException if the frame cannot be sent
+	 */
+	protected void flush() throws IOException {
+		int length = writeBuffer.position() - WireFormat.HEADER_SIZE;
+		if (length > WireFormat.MAX_PAYLOAD)
+			throw new IOException("Frame too large: " + length + " bytes");
+		writeBuffer.putShort(2, (short)length);
+		sent(writeBuffer.array(), writeBuffer.position());
+		out.write(writeBuffer.array(), 0, writeBuffer.position());
+		out.flush();
+		bytesSent += writeBuffer.position();
+	}
+}
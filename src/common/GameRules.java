@@ -0,0 +1,153 @@
+import java.util.Arrays;
+
+/**
+ * Game rules: the number of rows and columns of the square board and the length of each ship in the fleet.
+ * The server picks the rules of a match and sends them in a RULES frame before the players' fleets,
+ * clients older than WireFormat.RULES_VERSION only ever play DEFAULT.
+ * Rules are immutable and written as "size:length,length,...", for example "10:1,1,1,1,2,2,2,3,3,4".
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public final class GameRules {
+
+	/** Largest number of rows and columns */
+	public static final int MAX_SIZE = 1000;
+	/** Largest number of ships, their cells alive must fit in one TURN_RESULTS frame */
+	public static final int MAX_SHIPS = 4096;
+	/** Classic rules: 10 by 10 board, four ships of 1 cell, three of 2, two of 3 and one of 4 */
+	public static final GameRules DEFAULT = new GameRules(10, new int[] {1,1,1,1,2,2,2,3,3,4});
+
+	/** Number of rows and columns */
+	private final int size;
+	/** Length of each ship */
+	private final int[] fleet;
+
+	/**
+	 * Checks the fleet's area only: rules passing the check are not guaranteed to have a layout,
+	 * nor one found quickly, the server places a fleet at startup before accepting them.
+	 * @param size Number of rows and columns
+	 * @param fleet Length of each ship
+	 * @throws IllegalArgumentException if the size or a ship length is out of range, the fleet is empty or too large
+	 * or the ships take up more room than the board has
+	 */
+	public GameRules(int size, int[] fleet) {
+		if (size < 1 || size > MAX_SIZE)
+			throw new IllegalArgumentException("Board size must be between 1 and " + MAX_SIZE);
+		if (fleet.length < 1 || fleet.length > MAX_SHIPS)
+			throw new IllegalArgumentException("Fleet must have between 1 and " + MAX_SHIPS + " ships");
+		//Ships do not touch, so each ship with the cells past its end and along one side
+		//covers length+1 by 2 cells of its own on the board grown by one row and one column
+		long area = 0;
+		for (int length : fleet) {
+			if (length < 1 || length > size)
+				throw new IllegalArgumentException("Ship length must be between 1 and " + size);
+			area += 2 * (length + 1);
+		}
+		if (area > (long)(size + 1) * (size + 1))
+			throw new IllegalArgumentException("Fleet is too dense for the board");
+		this.size = size;
+		this.fleet = fleet.clone();
+	}
+
+	/**
+	 * Parses rules in the form toString() writes them
+	 * @param rules Size, a colon and comma separated ship lengths
+	 * @return Rules
+	 * @throws IllegalArgumentException if the rules cannot be parsed or are out of range
+	 */
+	public static GameRules parse(String rules) {
+		String[] parts = rules.split(":");
+		if (parts.length != 2)
+			throw new IllegalArgumentException("Rules must be size:lengths");
+		String[] lengths = parts[1].split(",");
+		int[] fleet = new int[lengths.length];
+		for (int i=0; i<fleet.length; i++)
+			fleet[i] = Integer.parseInt(lengths[i].trim());
+		return new GameRules(Integer.parseInt(parts[0].trim()), fleet);
+	}
+
+	/**
+	 * @return Number of rows and columns
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return Number of cells
+	 */
+	public int getCells() {
+		return size * size;
+	}
+
+	/**
+	 * @return Number of ships
+	 */
+	public int getShips() {
+		return fleet.length;
+	}
+
+	/**
+	 * @param ship Ship index
+	 * @return Length of the ship
+	 */
+	public int length(int ship) {
+		return fleet[ship];
+	}
+
+	/**
+	 * @return Copy of the length of each ship
+	 */
+	public int[] getFleet() {
+		return fleet.clone();
+	}
+
+	/**
+	 * @return Length of the longest ship
+	 */
+	public int getMaxLength() {
+		int max = 0;
+		for (int length : fleet)
+			max = Math.max(max, length);
+		return max;
+	}
+
+	/**
+	 * @return Number of ship cells of the whole fleet
+	 */
+	public int getShipCells() {
+		int cells = 0;
+		for (int length : fleet)
+			cells += length;
+		return cells;
+	}
+
+	/**
+	 * @return true for the classic rules every client knows
+	 */
+	public boolean isDefault() {
+		return equals(DEFAULT);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof GameRules))
+			return false;
+		GameRules rules = (GameRules)other;
+		return size == rules.size && Arrays.equals(fleet, rules.fleet);
+	}
+
+	@Override
+	public int hashCode() {
+		return size * 31 + Arrays.hashCode(fleet);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder().append(size).append(':');
+		for (int i=0; i<fleet.length; i++)
+			out.append(i == 0 ? "" : ",").append(fleet[i]);
+		return out.toString();
+	}
+}
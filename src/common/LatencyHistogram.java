@@ -0,0 +1,140 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with log-linear buckets.
+ * Values below LINEAR are counted exactly, larger values in 16 buckets per power of two,
+ * so percentiles are accurate to about 6% with a fixed amount of memory however many values are recorded.
+ * Recording is thread safe and lock free.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class LatencyHistogram {
+
+	/** Values below this are counted in buckets of their own */
+	protected static final int LINEAR = 32;
+	/** Number of buckets per power of two above LINEAR */
+	protected static final int SUB_BUCKETS = 16;
+	/** Number of bits of a value's magnitude covered by the histogram */
+	protected static final int MAX_BITS = 48;
+
+	/** Number of values in each bucket */
+	protected final AtomicLongArray buckets = new AtomicLongArray(LINEAR + (MAX_BITS - 5) * SUB_BUCKETS);
+	/** Number of values recorded */
+	protected final AtomicLong count = new AtomicLong();
+	/** Sum of values recorded */
+	protected final AtomicLong sum = new AtomicLong();
+	/** Largest value recorded */
+	protected final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value
+	 * @param value Latency, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		buckets.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			//Retry until the maximum is at least the value
+		}
+	}
+
+	/**
+	 * Adds all values recorded by another histogram
+	 * @param other Histogram to add
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i=0; i<buckets.length(); i++) {
+			long n = other.buckets.get(i);
+			if (n != 0)
+				buckets.addAndGet(i, n);
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long value = other.max.get(), current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			//Retry until the maximum is at least the value
+		}
+	}
+
+	/**
+	 * @param percentile Percentile between 0 and 100
+	 * @return Upper bound of the bucket holding the percentile, 0 if nothing has been recorded
+	 */
+	public long percentile(double percentile) {
+		long total = count.get();
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i=0; i<buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return Number of values recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return Mean of values recorded, 0 if nothing has been recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / (double)n;
+	}
+
+	/**
+	 * @return Largest value recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Summarises the histogram in one line
+	 * @param unit Unit appended to each value
+	 * @return Count, percentiles and maximum
+	 */
+	public String summary(String unit) {
+		return "n=" + getCount() + " p50=" + percentile(50) + unit + " p90=" + percentile(90) + unit
+				+ " p99=" + percentile(99) + unit + " max=" + getMax() + unit;
+	}
+
+	/**
+	 * @param value Non-negative value
+	 * @return Index of the bucket counting the value
+	 */
+	protected static int bucket(long value) {
+		if (value < LINEAR)
+			return (int)value;
+		int bits = 63 - Long.numberOfLeadingZeros(value);
+		if (bits >= MAX_BITS)
+			return LINEAR + (MAX_BITS - 5) * SUB_BUCKETS - 1;
+		int sub = (int)(value >>> (bits - 4)) & (SUB_BUCKETS - 1);
+		return LINEAR + (bits - 5) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @param index Bucket index
+	 * @return Largest value counted in the bucket
+	 */
+	protected static long upperBound(int index) {
+		if (index < LINEAR)
+			return index;
+		int bits = (index - LINEAR) / SUB_BUCKETS + 5;
+		int sub = (index - LINEAR) % SUB_BUCKETS;
+		return ((long)(SUB_BUCKETS + sub + 1) << (bits - 4)) - 1;
+	}
+}
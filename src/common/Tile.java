@@ -0,0 +1,38 @@
+/**
+ * The tile class defines shapes of the tiles a ship is made of
+ * Used mainly to determine which icon to display.
+ * Shared by server and client, clients work the shapes of their own fleet out from ship placements.
+ * 
+ * @author Dmitri Samoilov
+ *
+ */
+public final class Tile {
+	
+	public static final int NORTH = 0;
+	public static final int EAST = 1;
+	public static final int SOUTH = 2;
+	public static final int WEST = 3;
+	public static final int VERTICAL = 4;
+	public static final int HORIZONTAL = 5;
+	public static final int SINGLE = 6;
+	
+	private Tile() {
+	}
+
+	/**
+	 * Works out the tile shape of a ship cell
+	 * @param length Ship length
+	 * @param z Cell number counted from the top left end
+	 * @param horizontal Ship orientation
+	 * @return Tile shape
+	 */
+	public static int shape(int length, int z, boolean horizontal) {
+		if (length == 1)
+			return SINGLE;
+		if (z == 0)
+			return horizontal ? WEST : NORTH;
+		if (z == length-1)
+			return horizontal ? EAST : SOUTH;
+		return horizontal ? HORIZONTAL : VERTICAL;
+	}
+}
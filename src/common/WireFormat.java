@@ -0,0 +1,488 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Binary wire format shared by server and client.
+ * Every frame starts with a fixed size header: protocol version (1 byte),
+ * frame type (1 byte) and payload length (2 bytes).
+ * Payload fields are zigzag encoded variable length integers,
+ * so the usual game values fit in a single byte.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public final class WireFormat {
+
+	/**
+	 * Highest protocol version this build speaks.
+	 * Version 2 adds incremental updates, version 3 moves shot resolution to the server,
+	 * version 4 adds heartbeats, version 5 lets a player resume a game after his connection has dropped,
+	 * version 6 negotiates board size and fleet and sends ship placements instead of the whole field,
+	 * version 7 adds the player's identity to the hello,
+	 * version 8 keeps the lobby open until the game starts so a player can be told that his opponent has left
+	 */
+	public static final int VERSION = 8;
+	/** First version with UPDATE and RESYNC frames */
+	public static final int DELTA_VERSION = 2;
+	/** First version with SHOT, SHOT_RESULT and LEAVE frames, the opponent's field is no longer sent */
+	public static final int SHOT_VERSION = 3;
+	/** First version with PING and PONG frames */
+	public static final int HEARTBEAT_VERSION = 4;
+	/** First version with RESUME_TOKEN frames and resume requests */
+	public static final int RESUME_VERSION = 5;
+	/** First version with RULES and FLEET frames, older clients play the default rules and get a FIELD frame */
+	public static final int RULES_VERSION = 6;
+	/** First version whose hello carries the player's identity, older clients are not rated */
+	public static final int IDENTITY_VERSION = 7;
+	/**
+	 * First version whose hello the server answers with its own. A client which has been answered
+	 * keeps reading lobby messages after pressing play and switches to binary frames on START.
+	 */
+	public static final int LOBBY_VERSION = 8;
+	/** Handshake reply announcing binary protocol support, followed by the version number and from version 7 the identity */
+	public static final String HELLO = "hello:";
+	/** Handshake reply asking to resume a game, followed by version, resume token and frames received */
+	public static final String RESUME = "resume:";
+	/** Server answer to a resume request which has been accepted, missed frames follow */
+	public static final String RESUMED = "resumed";
+	/** Server answer to a resume request for a game which has ended or cannot be replayed */
+	public static final String EXPIRED = "expired";
+	/** Lobby message: the game starts, binary frames follow */
+	public static final String START = "start";
+	/** Lobby message: the opponent has left before the game started, the player waits for another */
+	public static final String OPPONENT_LEFT = "opponentLeft";
+	/** Lobby message sent to a player who has pressed play and waits, to find out whether he is still there */
+	public static final String KEEPALIVE = "keepalive";
+	/** Size of frame header in bytes */
+	public static final int HEADER_SIZE = 4;
+	/** Largest payload a frame can carry */
+	public static final int MAX_PAYLOAD = 0xFFFF;
+	/** Largest encoded size of one varint */
+	public static final int MAX_VARINT_SIZE = 5;
+
+	/** Server to client: game field, one cell per tile */
+	public static final int FIELD = 1;
+	/** Server to client: turn result code, coordinates and ship details */
+	public static final int TURN_RESULTS = 2;
+	/** Client to server: player's turn */
+	public static final int TURN = 3;
+	/** Server to client: turn result code, coordinates and the one ship that has changed */
+	public static final int UPDATE = 4;
+	/** Client to server: request a full TURN_RESULTS snapshot */
+	public static final int RESYNC = 5;
+	/** Client to server: coordinates of a shot */
+	public static final int SHOT = 6;
+	/** Server to client: result of the player's own shot */
+	public static final int SHOT_RESULT = 7;
+	/** Client to server: player leaves the game */
+	public static final int LEAVE = 8;
+	/** Server to client: asks the client to show that it is alive */
+	public static final int PING = 9;
+	/** Client to server: answer to PING */
+	public static final int PONG = 10;
+	/** Server to client: token the player resumes the game with if his connection drops */
+	public static final int RESUME_TOKEN = 11;
+	/** Server to client: board size and ship lengths of the game, sent before the fleet */
+	public static final int RULES = 12;
+	/** Server to client: where the player's ships lie, replaces FIELD */
+	public static final int FLEET = 13;
+
+	/** Shot hit water */
+	public static final int SHOT_MISS = 0;
+	/** Shot hit a ship */
+	public static final int SHOT_HIT = 1;
+	/** Shot sank a ship */
+	public static final int SHOT_SUNK = 2;
+	/** Cell has already been shot at, the player shoots again */
+	public static final int SHOT_REPEATED = -1;
+	/** Cell is outside the board, the player shoots again */
+	public static final int SHOT_INVALID = -2;
+
+	/** No ship has changed */
+	public static final int NO_SHIP = 0;
+	/** Changed ship belongs to the receiving player */
+	public static final int MY_SHIP = 1;
+	/** Changed ship belongs to the opponent */
+	public static final int ENEMY_SHIP = 2;
+
+	private WireFormat() {
+	}
+
+	/**
+	 * Builds the handshake reply announcing this build's version
+	 * @param identity Random number the player is told apart by, kept from game to game, not 0
+	 * @return Hello message
+	 */
+	public static String hello(long identity) {
+		return HELLO + VERSION + ":" + identity;
+	}
+
+	/**
+	 * Parses the version announced in a handshake reply
+	 * @param message Handshake reply
+	 * @return Announced version or 0 if the message is not a hello
+	 */
+	public static int parseHello(Object message) {
+		String[] parts = splitHello(message);
+		if (parts == null)
+			return 0;
+		try {
+			return Integer.parseInt(parts[0]);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses the player's identity carried by a handshake reply
+	 * @param message Handshake reply
+	 * @return Identity or 0 if the message is not a hello or carries none
+	 */
+	public static long parseIdentity(Object message) {
+		String[] parts = splitHello(message);
+		if (parts == null || parts.length != 2)
+			return 0;
+		try {
+			return Long.parseLong(parts[1]);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param message Handshake reply
+	 * @return Fields following HELLO, null if the message is not a hello
+	 */
+	private static String[] splitHello(Object message) {
+		if (!(message instanceof String) || !((String)message).startsWith(HELLO))
+			return null;
+		return ((String)message).substring(HELLO.length()).split(":");
+	}
+
+	/**
+	 * Builds a resume request.
+	 * Frames received are counted from the first game field, PING and RESUME_TOKEN frames are not counted.
+	 * @param token Resume token sent by the server
+	 * @param received Number of frames received
+	 * @return Handshake reply asking to resume the game
+	 */
+	public static String resumeRequest(long token, int received) {
+		return RESUME + VERSION + ":" + token + ":" + received;
+	}
+
+	/**
+	 * Parses a resume request
+	 * @param message Handshake reply
+	 * @return Version, resume token and frames received, null if the message is not a resume request
+	 */
+	public static long[] parseResume(Object message) {
+		if (!(message instanceof String) || !((String)message).startsWith(RESUME))
+			return null;
+		String[] parts = ((String)message).substring(RESUME.length()).split(":");
+		if (parts.length != 3)
+			return null;
+		try {
+			long[] request = new long[3];
+			for (int i=0; i<3; i++)
+				request[i] = Long.parseLong(parts[i]);
+			if (request[0] < RESUME_VERSION || request[2] < 0 || request[2] > Integer.MAX_VALUE)
+				return null;
+			return request;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a zigzag encoded variable length integer
+	 * @param buffer Target buffer
+	 * @param value Value to write
+	 */
+	public static void putVarint(ByteBuffer buffer, int value) {
+		int v = (value << 1) ^ (value >> 31);
+		while ((v & ~0x7F) != 0) {
+			buffer.put((byte)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte)v);
+	}
+
+	/**
+	 * Reads a zigzag encoded variable length integer
+	 * @param buffer Source buffer
+	 * @return Decoded value
+	 * @throws IllegalArgumentException if the varint is malformed
+	 */
+	public static int getVarint(ByteBuffer buffer) {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = buffer.get();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return (v >>> 1) ^ -(v & 1);
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/**
+	 * Encodes game field. Row and column 0 of the field hold labels and are not sent.
+	 * @param buffer Target buffer
+	 * @param field Game field including label row and column
+	 */
+	public static void putField(ByteBuffer buffer, int[][] field) {
+		int size = field.length - 1;
+		putVarint(buffer, size);
+		for (int x=1; x<=size; x++) {
+			for (int y=1; y<=size; y++) {
+				putVarint(buffer, field[x][y]);
+			}
+		}
+	}
+
+	/**
+	 * Decodes game field
+	 * @param buffer Source buffer
+	 * @return Game field with -1 in label row and column
+	 */
+	public static int[][] getField(ByteBuffer buffer) {
+		int size = getVarint(buffer);
+		if (size <= 0 || size > MAX_PAYLOAD)
+			throw new IllegalArgumentException("Bad field size " + size);
+		int[][] field = new int[size+1][size+1];
+		for (int x=0; x<=size; x++) {
+			for (int y=0; y<=size; y++) {
+				field[x][y] = (x == 0 || y == 0) ? -1 : getVarint(buffer);
+			}
+		}
+		return field;
+	}
+
+	/**
+	 * Encodes game rules
+	 * @param buffer Target buffer
+	 * @param rules Game rules
+	 */
+	public static void putRules(ByteBuffer buffer, GameRules rules) {
+		putVarint(buffer, rules.getSize());
+		putVarint(buffer, rules.getShips());
+		for (int i=0; i<rules.getShips(); i++)
+			putVarint(buffer, rules.length(i));
+	}
+
+	/**
+	 * Decodes game rules
+	 * @param buffer Source buffer
+	 * @return Game rules
+	 * @throws IllegalArgumentException if the rules are out of range
+	 */
+	public static GameRules getRules(ByteBuffer buffer) {
+		int size = getVarint(buffer);
+		int ships = getVarint(buffer);
+		if (ships < 1 || ships > GameRules.MAX_SHIPS)
+			throw new IllegalArgumentException("Bad fleet size " + ships);
+		int[] fleet = new int[ships];
+		for (int i=0; i<ships; i++)
+			fleet[i] = getVarint(buffer);
+		return new GameRules(size, fleet);
+	}
+
+	/**
+	 * Encodes ship placements, each the top left cell row*size+column times two, plus one if the ship runs to the right.
+	 * A fleet costs a few bytes per ship whatever the size of the board.
+	 * @param buffer Target buffer
+	 * @param placements Placement of each ship
+	 */
+	public static void putPlacements(ByteBuffer buffer, int[] placements) {
+		putVarint(buffer, placements.length);
+		for (int placement : placements)
+			putVarint(buffer, placement);
+	}
+
+	/**
+	 * Decodes ship placements
+	 * @param buffer Source buffer
+	 * @return Placement of each ship
+	 */
+	public static int[] getPlacements(ByteBuffer buffer) {
+		int count = getVarint(buffer);
+		if (count < 1 || count > GameRules.MAX_SHIPS)
+			throw new IllegalArgumentException("Bad fleet size " + count);
+		int[] placements = new int[count];
+		for (int i=0; i<count; i++)
+			placements[i] = getVarint(buffer);
+		return placements;
+	}
+
+	/**
+	 * Encodes turn results
+	 * @param buffer Target buffer
+	 * @param x Row number as sent to the client
+	 * @param y Column number as sent to the client
+	 * @param result Result code
+	 * @param myShips Cells alive of the receiving player's ships
+	 * @param ships Cells alive of the opponent's ships
+	 */
+	public static void putTurnResults(ByteBuffer buffer, int x, int y, int result, int[] myShips, int[] ships) {
+		putVarint(buffer, x);
+		putVarint(buffer, y);
+		putVarint(buffer, result);
+		putVarint(buffer, myShips.length);
+		for (int i=0; i<myShips.length; i++) {
+			putVarint(buffer, myShips[i]);
+			putVarint(buffer, ships[i]);
+		}
+	}
+
+	/**
+	 * Decodes turn results in the layout of the serialised Integer[3][ships] array:
+	 * row 0 holds x, y and result code, row 1 player's ships, row 2 opponent's ships
+	 * @param buffer Source buffer
+	 * @param results Array to decode into
+	 */
+	public static void getTurnResults(ByteBuffer buffer, int[][] results) {
+		results[0][0] = getVarint(buffer);
+		results[0][1] = getVarint(buffer);
+		results[0][2] = getVarint(buffer);
+		int count = getVarint(buffer);
+		if (count > results[1].length)
+			throw new IllegalArgumentException("Too many ships " + count);
+		for (int i=0; i<count; i++) {
+			results[1][i] = getVarint(buffer);
+			results[2][i] = getVarint(buffer);
+		}
+	}
+
+	/**
+	 * Encodes an incremental update
+	 * @param buffer Target buffer
+	 * @param x Row number as sent to the client
+	 * @param y Column number as sent to the client
+	 * @param result Result code
+	 * @param owner NO_SHIP, MY_SHIP or ENEMY_SHIP
+	 * @param ship Index of the changed ship
+	 * @param cells Cells alive of the changed ship
+	 */
+	public static void putUpdate(ByteBuffer buffer, int x, int y, int result, int owner, int ship, int cells) {
+		putVarint(buffer, x);
+		putVarint(buffer, y);
+		putVarint(buffer, result);
+		putVarint(buffer, owner);
+		if (owner != NO_SHIP) {
+			putVarint(buffer, ship);
+			putVarint(buffer, cells);
+		}
+	}
+
+	/**
+	 * Decodes an incremental update
+	 * @param buffer Source buffer
+	 * @param update Array to decode x, y, result, owner, ship index and cells alive into
+	 */
+	public static void getUpdate(ByteBuffer buffer, int[] update) {
+		update[0] = getVarint(buffer);
+		update[1] = getVarint(buffer);
+		update[2] = getVarint(buffer);
+		update[3] = getVarint(buffer);
+		if (update[3] != NO_SHIP) {
+			update[4] = getVarint(buffer);
+			update[5] = getVarint(buffer);
+		}
+	}
+
+	/**
+	 * Encodes coordinates of a shot
+	 * @param buffer Target buffer
+	 * @param x Row number
+	 * @param y Column number
+	 */
+	public static void putShot(ByteBuffer buffer, int x, int y) {
+		putVarint(buffer, x);
+		putVarint(buffer, y);
+	}
+
+	/**
+	 * Decodes coordinates of a shot
+	 * @param buffer Source buffer
+	 * @param shot Array to decode row and column into
+	 */
+	public static void getShot(ByteBuffer buffer, int[] shot) {
+		shot[0] = getVarint(buffer);
+		shot[1] = getVarint(buffer);
+	}
+
+	/**
+	 * Encodes result of a shot
+	 * @param buffer Target buffer
+	 * @param x Row number as sent to the client
+	 * @param y Column number as sent to the client
+	 * @param result One of the SHOT_ result codes
+	 * @param shape Tile shape of the cell hit, -1 if no ship has been hit
+	 * @param ship Index of the ship hit
+	 * @param cells Cells alive of the ship hit
+	 */
+	public static void putShotResult(ByteBuffer buffer, int x, int y, int result, int shape, int ship, int cells) {
+		putVarint(buffer, x);
+		putVarint(buffer, y);
+		putVarint(buffer, result);
+		putVarint(buffer, shape);
+		if (result == SHOT_HIT || result == SHOT_SUNK) {
+			putVarint(buffer, ship);
+			putVarint(buffer, cells);
+		}
+	}
+
+	/**
+	 * Decodes result of a shot
+	 * @param buffer Source buffer
+	 * @param result Array to decode x, y, result code, shape, ship index and cells alive into
+	 */
+	public static void getShotResult(ByteBuffer buffer, int[] result) {
+		result[0] = getVarint(buffer);
+		result[1] = getVarint(buffer);
+		result[2] = getVarint(buffer);
+		result[3] = getVarint(buffer);
+		if (result[2] == SHOT_HIT || result[2] == SHOT_SUNK) {
+			result[4] = getVarint(buffer);
+			result[5] = getVarint(buffer);
+		}
+	}
+
+	/**
+	 * Encodes player's turn
+	 * @param buffer Target buffer
+	 * @param turn Row, column and claimed result
+	 */
+	public static void putTurn(ByteBuffer buffer, int[] turn) {
+		putVarint(buffer, turn[0]);
+		putVarint(buffer, turn[1]);
+		putVarint(buffer, turn[2]);
+	}
+
+	/**
+	 * Decodes player's turn
+	 * @param buffer Source buffer
+	 * @param turn Array to decode row, column and claimed result into
+	 */
+	public static void getTurn(ByteBuffer buffer, int[] turn) {
+		turn[0] = getVarint(buffer);
+		turn[1] = getVarint(buffer);
+		turn[2] = getVarint(buffer);
+	}
+
+	/**
+	 * Encodes a resume token
+	 * @param buffer Target buffer
+	 * @param token Resume token
+	 */
+	public static void putResumeToken(ByteBuffer buffer, long token) {
+		buffer.putLong(token);
+	}
+
+	/**
+	 * Decodes a resume token
+	 * @param buffer Source buffer
+	 * @return Resume token
+	 */
+	public static long getResumeToken(ByteBuffer buffer) {
+		return buffer.getLong();
+	}
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * AI player is the server's own opponent for players nobody else has been paired with.
+ * It takes a client's place in a game session: it is told the results of its shots the same way
+ * a protocol version 3 client is, and answers for its turn straight away with the shot
+ * its shot planner chooses. There is no socket, nothing is sent and it never times out.
+ * It is rated under RATING_KEY like any other player.
+ * It plays by any rules its shot planner supports, games with larger boards fall back to the default rules.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class AiPlayer extends PlayerConnection {
+
+	/** Key the AI player's rating is kept under */
+	public static final String RATING_KEY = "ai";
+
+	/** Random number generator of the shot planner */
+	protected final Random random;
+	/** Chooses the shots */
+	protected ShotPlanner planner;
+	/** Number of rows and columns of the board played on */
+	protected int size = Board.SIZE;
+
+	public AiPlayer() {
+		this(new Random());
+	}
+
+	/**
+	 * @param random Random number generator of the shot planner
+	 */
+	public AiPlayer(Random random) {
+		this.random = random;
+		planner = new ShotPlanner(random);
+	}
+
+	@Override
+	public boolean send(Object message) {
+		return true;
+	}
+
+	@Override
+	public Object read() throws IOException {
+		throw new IOException("AI player sends no messages");
+	}
+
+	@Override
+	public void startGame(GameRules rules) {
+		planner.reset();
+	}
+
+	@Override
+	public boolean supportsRules(GameRules rules) {
+		return ShotPlanner.supports(rules);
+	}
+
+	@Override
+	public void sendRules(GameRules rules) {
+		if (!rules.equals(planner.rules))
+			planner = new ShotPlanner(rules, random);
+		size = rules.getSize();
+	}
+
+	@Override
+	public void sendField(int[][] field) {
+	}
+
+	@Override
+	public void sendTurnResults(int x, int y, int result, int[] myShips, int[] ships, int owner, int ship) {
+	}
+
+	@Override
+	public boolean needsOpponentField() {
+		return false;
+	}
+
+	@Override
+	public void sendShotResult(int x, int y, int result, int shape, int ship, int cells) {
+		planner.record(x-1, y-1, result, ship);
+	}
+
+	@Override
+	public int[] readTurn(int[] turn, long deadline) throws IOException {
+		int cell = planner.next();
+		if (cell < 0)
+			throw new IOException("No cell left to shoot at");
+		turn[0] = cell / size;
+		turn[1] = cell % size;
+		turn[2] = WireFormat.SHOT_HIT;
+		return turn;
+	}
+
+	@Override
+	public void setWriteTimeout(long timeout) {
+	}
+
+	@Override
+	public int getSocketBuffers() {
+		return 0;
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return 0;
+	}
+
+	@Override
+	public long getBytesSent() {
+		return 0;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+	}
+
+	@Override
+	public String toString() {
+		return "AI";
+	}
+}
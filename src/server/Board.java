@@ -0,0 +1,286 @@
+import java.util.Arrays;
+
+/**
+ * Board holds one player's game field in primitive form, for any board size and fleet the game rules allow.
+ * Cells shot at are a bit set with one bit per cell: cell number row*size+column is bit cell%64 of word cell/64.
+ * Ship cells are kept in an open addressing hash table from cell number to ship index, sized by the fleet,
+ * not the board, and each ship's top left cell and orientation are kept to work out tile shapes and placements.
+ * Shots, sunk detection and win checks are a bit test, a table probe and two counters and allocate nothing,
+ * so a 1000 by 1000 board costs 125 kilobytes of shot bits and a small fleet table.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class Board {
+
+	/** Number of rows and columns of the default rules */
+	public static final int SIZE = GameRules.DEFAULT.getSize();
+	/** Number of cells of the default rules */
+	public static final int CELLS = SIZE * SIZE;
+	/** Length of each ship of the default rules */
+	public static final int[] FLEET = GameRules.DEFAULT.getFleet();
+	/** Marks a cell without ship */
+	public static final int EMPTY = -1;
+
+	/** Shot hit water */
+	public static final int MISS = WireFormat.SHOT_MISS;
+	/** Shot hit a ship */
+	public static final int HIT = WireFormat.SHOT_HIT;
+	/** Shot hit the last cell alive of a ship */
+	public static final int SUNK = WireFormat.SHOT_SUNK;
+	/** Cell has already been shot at */
+	public static final int REPEATED = WireFormat.SHOT_REPEATED;
+	/** Cell is outside the board */
+	public static final int INVALID = WireFormat.SHOT_INVALID;
+
+	/** Game rules */
+	protected final GameRules rules;
+	/** Number of rows and columns */
+	protected final int size;
+	/** Cells shot at */
+	protected final long[] shot;
+	/** Hash table slots holding a ship cell number plus one, 0 for free slots */
+	protected final int[] cells;
+	/** Index of the ship on the cell of each hash table slot */
+	protected final short[] ships;
+	/** Bits to shift a hashed cell number by to get a slot */
+	protected final int shift;
+	/** Top left cell of each ship, EMPTY if the ship is not on the board */
+	protected final int[] origin;
+	/** Orientation of each ship, false for ships of one cell */
+	protected final boolean[] horizontal;
+	/** Cells alive of each ship */
+	protected final int[] cellsAlive;
+	/** Cells alive of the whole fleet */
+	protected int alive;
+
+	public Board() {
+		this(GameRules.DEFAULT);
+	}
+
+	/**
+	 * @param rules Game rules
+	 */
+	public Board(GameRules rules) {
+		this.rules = rules;
+		size = rules.getSize();
+		shot = new long[(rules.getCells() + 63) / 64];
+		//At most half the slots are taken, so probes stay short
+		int slots = Integer.highestOneBit(Math.max(2, rules.getShipCells()) * 2 - 1) << 1;
+		cells = new int[slots];
+		ships = new short[slots];
+		shift = 32 - Integer.numberOfTrailingZeros(slots);
+		origin = new int[rules.getShips()];
+		horizontal = new boolean[rules.getShips()];
+		cellsAlive = new int[rules.getShips()];
+		clear();
+	}
+
+	/**
+	 * @return Game rules
+	 */
+	public GameRules getRules() {
+		return rules;
+	}
+
+	/**
+	 * Removes all ships and shots
+	 */
+	public void clear() {
+		Arrays.fill(shot, 0);
+		Arrays.fill(cells, 0);
+		Arrays.fill(origin, EMPTY);
+		Arrays.fill(horizontal, false);
+		Arrays.fill(cellsAlive, 0);
+		alive = 0;
+	}
+
+	/**
+	 * Takes every shot back, the ships stay where they are
+	 */
+	public void reset() {
+		Arrays.fill(shot, 0);
+		alive = 0;
+		for (int i=0; i<cellsAlive.length; i++) {
+			cellsAlive[i] = origin[i] == EMPTY ? 0 : rules.length(i);
+			alive += cellsAlive[i];
+		}
+	}
+
+	/**
+	 * Puts a ship on the board. The caller is responsible for checking that the cells are free.
+	 * @param index Ship index in the fleet
+	 * @param row Row of the top left cell
+	 * @param column Column of the top left cell
+	 * @param horizontal true if the ship runs to the right, false if it runs down
+	 */
+	public void placeShip(int index, int row, int column, boolean horizontal) {
+		int length = rules.length(index);
+		for (int z=0; z<length; z++) {
+			int cell = horizontal ? row*size + column + z : (row + z)*size + column;
+			int slot = slot(cell);
+			while (cells[slot] != 0)
+				slot = (slot + 1) & (cells.length - 1);
+			cells[slot] = cell + 1;
+			ships[slot] = (short)index;
+		}
+		origin[index] = row*size + column;
+		this.horizontal[index] = horizontal && length > 1;
+		cellsAlive[index] = length;
+		alive += length;
+	}
+
+	/**
+	 * Puts a ship where placement() has described it
+	 * @param index Ship index
+	 * @param placement Top left cell times two, plus one if the ship runs to the right
+	 */
+	public void placeShip(int index, int placement) {
+		int cell = placement >> 1;
+		placeShip(index, cell / size, cell % size, (placement & 1) != 0);
+	}
+
+	/**
+	 * Resolves a shot
+	 * @param row Row number
+	 * @param column Column number
+	 * @return MISS, HIT, SUNK, REPEATED or INVALID
+	 */
+	public int shoot(int row, int column) {
+		if (row < 0 || row >= size || column < 0 || column >= size)
+			return INVALID;
+		int cell = row*size + column;
+		long bit = 1L << cell;
+		if ((shot[cell >>> 6] & bit) != 0)
+			return REPEATED;
+		shot[cell >>> 6] |= bit;
+		int ship = find(cell);
+		if (ship == EMPTY)
+			return MISS;
+		alive--;
+		return --cellsAlive[ship] == 0 ? SUNK : HIT;
+	}
+
+	/**
+	 * @return true if all ships have been sunk
+	 */
+	public boolean allSunk() {
+		return alive == 0;
+	}
+
+	/**
+	 * @param row Row number
+	 * @param column Column number
+	 * @return true if there is a ship on the cell, false for empty cells and cells outside the board
+	 */
+	public boolean isShip(int row, int column) {
+		if (row < 0 || row >= size || column < 0 || column >= size)
+			return false;
+		return find(row*size + column) != EMPTY;
+	}
+
+	/**
+	 * @param row Row number
+	 * @param column Column number
+	 * @return true if the cell has been shot at
+	 */
+	public boolean isShot(int row, int column) {
+		int cell = row*size + column;
+		return (shot[cell >>> 6] >>> cell & 1) != 0;
+	}
+
+	/**
+	 * Describes where a ship lies, in the form placeShip() takes it
+	 * @param index Ship index
+	 * @return Top left cell times two, plus one if the ship runs to the right, EMPTY if the ship is not on the board
+	 */
+	public int placement(int index) {
+		if (origin[index] == EMPTY)
+			return EMPTY;
+		return origin[index] * 2 + (horizontal[index] ? 1 : 0);
+	}
+
+	/**
+	 * @return Placement of every ship, as placement() describes it
+	 */
+	public int[] placements() {
+		int[] placements = new int[origin.length];
+		for (int i=0; i<placements.length; i++)
+			placements[i] = placement(i);
+		return placements;
+	}
+
+	/**
+	 * @param row Row number
+	 * @param column Column number
+	 * @return Index of the ship on the cell or EMPTY
+	 */
+	public int shipAt(int row, int column) {
+		return find(row*size + column);
+	}
+
+	/**
+	 * @param row Row number
+	 * @param column Column number
+	 * @return Tile shape of the cell or EMPTY
+	 */
+	public int shapeAt(int row, int column) {
+		int ship = find(row*size + column);
+		if (ship == EMPTY)
+			return EMPTY;
+		int z = horizontal[ship] ? column - origin[ship] % size : row - origin[ship] / size;
+		return Tile.shape(rules.length(ship), z, horizontal[ship]);
+	}
+
+	/**
+	 * @param index Ship index
+	 * @return Cells alive of the ship
+	 */
+	public int cellsAlive(int index) {
+		return cellsAlive[index];
+	}
+
+	/**
+	 * Copies cells alive of every ship
+	 * @param cells Array to copy into
+	 */
+	public void cellsAlive(int[] cells) {
+		System.arraycopy(cellsAlive, 0, cells, 0, cellsAlive.length);
+	}
+
+	/**
+	 * Builds the field sent to clients older than WireFormat.RULES_VERSION:
+	 * tile shapes with label row and column set to -1
+	 * @return Field of size+1 by size+1 cells
+	 */
+	public int[][] toField() {
+		int[][] output = new int[size+1][size+1];
+		for (int x=0; x<=size; x++) {
+			for (int y=0; y<=size; y++) {
+				output[x][y] = (x == 0 || y == 0) ? EMPTY : shapeAt(x-1, y-1);
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * @param cell Cell number
+	 * @return Index of the ship on the cell or EMPTY
+	 */
+	protected int find(int cell) {
+		int key = cell + 1;
+		for (int slot=slot(cell); cells[slot] != 0; slot=(slot + 1) & (cells.length - 1)) {
+			if (cells[slot] == key)
+				return ships[slot];
+		}
+		return EMPTY;
+	}
+
+	/**
+	 * @param cell Cell number
+	 * @return Hash table slot to start probing at
+	 */
+	private int slot(int cell) {
+		return (cell * 0x9E3779B9) >>> shift;
+	}
+}
@@ -0,0 +1,58 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Input stream counting the bytes read through it
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class CountingInputStream extends FilterInputStream {
+
+	/** Bytes read */
+	protected final AtomicLong count = new AtomicLong();
+
+	/**
+	 * @param in Stream to read from
+	 */
+	public CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0)
+			count.incrementAndGet();
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n > 0)
+			count.addAndGet(n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(n);
+		count.addAndGet(skipped);
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * @return Bytes read
+	 */
+	public long getCount() {
+		return count.get();
+	}
+}
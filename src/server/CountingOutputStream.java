@@ -0,0 +1,42 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output stream counting the bytes written through it
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+	/** Bytes written */
+	protected final AtomicLong count = new AtomicLong();
+
+	/**
+	 * @param out Stream to write to
+	 */
+	public CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		count.incrementAndGet();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		count.addAndGet(len);
+	}
+
+	/**
+	 * @return Bytes written
+	 */
+	public long getCount() {
+		return count.get();
+	}
+}
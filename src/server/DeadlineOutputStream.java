@@ -0,0 +1,96 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output stream closing its socket when a write blocks past the deadline.
+ * A player whose socket buffer is full and who reads nothing would otherwise hold the writing thread forever,
+ * closing the socket makes the write fail as if the connection had dropped.
+ * Deadlines of all connections are kept by one timer thread.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class DeadlineOutputStream extends FilterOutputStream {
+
+	/** Keeps the deadlines of writes in progress */
+	protected static final ScheduledThreadPoolExecutor deadlines =
+			new ScheduledThreadPoolExecutor(1, ServerEngine.threadFactory("write-deadline-", 0));
+	/** Number of sockets closed because a write has passed its deadline */
+	protected static final AtomicLong expired = new AtomicLong();
+
+	static {
+		//Writes usually finish long before their deadline, cancelled deadlines are not kept around
+		deadlines.setRemoveOnCancelPolicy(true);
+	}
+
+	/** Socket closed when a write passes the deadline */
+	protected final Socket socket;
+	/** Longest time a write may block, in milliseconds */
+	protected volatile long timeout;
+
+	/**
+	 * @param socket Socket to write to
+	 * @param timeout Longest time a write may block, in milliseconds
+	 * @throws IOException if the socket's output stream cannot be opened
+	 */
+	public DeadlineOutputStream(Socket socket, long timeout) throws IOException {
+		super(socket.getOutputStream());
+		this.socket = socket;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ScheduledFuture<?> deadline = arm();
+		try {
+			out.write(b);
+		} finally {
+			deadline.cancel(false);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ScheduledFuture<?> deadline = arm();
+		try {
+			out.write(b, off, len);
+		} finally {
+			deadline.cancel(false);
+		}
+	}
+
+	/**
+	 * Starts the deadline of a write
+	 * @return Deadline, cancelled once the write has finished
+	 */
+	protected ScheduledFuture<?> arm() {
+		return deadlines.schedule(new Runnable() {
+			public void run() {
+				if (socket.isClosed())
+					return;
+				expired.incrementAndGet();
+				PlayerConnection.closeSocket(socket);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param timeout Longest time a write may block from now on, in milliseconds
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return Number of sockets closed because a write has passed its deadline
+	 */
+	public static long getExpired() {
+		return expired.get();
+	}
+}
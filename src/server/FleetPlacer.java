@@ -0,0 +1,323 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Fleet placer puts a whole fleet on a board at random in bounded time.
+ * On boards of up to 128 cells every legal position of every ship length is precomputed once as two 128 bit masks:
+ * the cells the ship covers and the same cells with the ring of cells around them.
+ * A position is free when its cell mask does not intersect the rings of the ships already placed,
+ * so candidates are found with a couple of AND operations and no exceptions.
+ * Ships are placed largest first by depth-first search over randomly drawn candidates.
+ * The search visits every combination at most once and gives up after a fixed number of candidates,
+ * so a fleet packed too tightly to be found fails fast; in practice the first path succeeds.
+ * Larger boards cannot be searched exhaustively: ships are dropped at random positions,
+ * checked against a bit set of the cells ringing the ships placed so far,
+ * and the whole fleet is started over until a fixed amount of work has been done, a few milliseconds.
+ *
+ * A placer is not thread safe, each thread should use its own.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class FleetPlacer {
+
+	/** Largest number of cells of a board positions are precomputed for */
+	public static final int MASK_CELLS = 128;
+	/** Random positions tried for one ship on a large board before the fleet is started over */
+	protected static final int MAX_TRIES = 1000;
+	/** Times the fleet is started over on a large board before giving up */
+	protected static final int MAX_ATTEMPTS = 100;
+	/** Candidates the search on a small board tries before giving up, a few milliseconds of work */
+	protected static final int MAX_NODES = 1 << 14;
+	/** Positions drawn and cells checked for room on a large board before giving up, a few milliseconds of work */
+	protected static final long MAX_WORK = 1L << 18;
+	/** Precomputed positions for each ship length of the default rules */
+	protected static final Positions[] POSITIONS = positions(GameRules.DEFAULT);
+
+	/**
+	 * All positions of a ship of one length
+	 */
+	protected static class Positions {
+		int count;
+		int[] origin;
+		boolean[] horizontal;
+		long[] cells0, cells1, ring0, ring1;
+	}
+
+	/** Game rules */
+	protected final GameRules rules;
+	/** Fleet indices sorted by ship length, longest first */
+	protected final int[] order;
+	/** Precomputed positions for each ship length, null on boards larger than MASK_CELLS */
+	protected final Positions[] positions;
+	/** Random number generator, seed it to get reproducible fields */
+	protected Random random;
+	/** Candidate positions at each search depth */
+	protected int[][] candidates;
+	/** Number of candidates not tried yet at each search depth */
+	protected int[] remaining;
+	/** Position chosen at each search depth */
+	protected int[] chosen;
+	/** Cells blocked by the ships placed before each search depth */
+	protected long[] blocked0, blocked1;
+	/** Cells blocked by the ships placed so far on a large board */
+	protected long[] blocked;
+	/** Positions drawn and cells checked for room by the current placement on a large board */
+	protected long work;
+
+	public FleetPlacer() {
+		this(new Random());
+	}
+
+	/**
+	 * @param seed Seed of the random number generator
+	 */
+	public FleetPlacer(long seed) {
+		this(new Random(seed));
+	}
+
+	/**
+	 * @param random Random number generator
+	 */
+	public FleetPlacer(Random random) {
+		this(GameRules.DEFAULT, random);
+	}
+
+	/**
+	 * @param rules Game rules
+	 * @param random Random number generator
+	 */
+	public FleetPlacer(GameRules rules, Random random) {
+		this.rules = rules;
+		this.random = random;
+		order = order(rules);
+		positions = positions(rules);
+		int ships = order.length;
+		if (positions == null) {
+			blocked = new long[(rules.getCells() + 63) / 64];
+			return;
+		}
+		candidates = new int[ships][];
+		for (int d=0; d<ships; d++)
+			candidates[d] = new int[positions[rules.length(order[d])].count];
+		remaining = new int[ships];
+		chosen = new int[ships];
+		blocked0 = new long[ships];
+		blocked1 = new long[ships];
+	}
+
+	/**
+	 * @return Game rules
+	 */
+	public GameRules getRules() {
+		return rules;
+	}
+
+	/**
+	 * Clears the board and places the fleet on it
+	 * @param board Board to fill, made for the placer's rules
+	 * @throws IllegalStateException if no layout has been found within the search budget
+	 */
+	public void place(Board board) {
+		if (!board.getRules().equals(rules))
+			throw new IllegalArgumentException("Board has other rules");
+		if (positions == null) {
+			scatter(board);
+			return;
+		}
+		int last = order.length - 1;
+		int depth = 0;
+		int nodes = 0;
+		blocked0[0] = 0;
+		blocked1[0] = 0;
+		collect(0);
+
+		while (true) {
+			if (remaining[depth] == 0) {
+				if (depth == 0)
+					throw new IllegalStateException("Fleet does not fit on the board");
+				depth--;
+				continue;
+			}
+			if (++nodes > MAX_NODES)
+				throw new IllegalStateException("No layout found in " + MAX_NODES + " steps");
+			Positions p = positions[rules.length(order[depth])];
+			int k = random.nextInt(remaining[depth]);
+			int position = candidates[depth][k];
+			candidates[depth][k] = candidates[depth][--remaining[depth]];
+			chosen[depth] = position;
+			if (depth == last)
+				break;
+			blocked0[depth+1] = blocked0[depth] | p.ring0[position];
+			blocked1[depth+1] = blocked1[depth] | p.ring1[position];
+			collect(++depth);
+		}
+
+		board.clear();
+		int size = rules.getSize();
+		for (int d=0; d<=last; d++) {
+			Positions p = positions[rules.length(order[d])];
+			int origin = p.origin[chosen[d]];
+			board.placeShip(order[d], origin / size, origin % size, p.horizontal[chosen[d]]);
+		}
+	}
+
+	/**
+	 * Places the fleet on a board too large for precomputed positions
+	 * @param board Board to fill
+	 * @throws IllegalStateException if no layout has been found
+	 */
+	protected void scatter(Board board) {
+		int size = rules.getSize();
+		work = 0;
+		for (int attempt=0; attempt<MAX_ATTEMPTS && work<MAX_WORK; attempt++) {
+			board.clear();
+			Arrays.fill(blocked, 0);
+			boolean placed = true;
+			for (int d=0; d<order.length && placed; d++) {
+				int length = rules.length(order[d]);
+				placed = false;
+				for (int t=0; t<MAX_TRIES && !placed && work<MAX_WORK; t++) {
+					work++;
+					boolean horizontal = random.nextBoolean();
+					int row = random.nextInt(horizontal ? size : size - length + 1);
+					int column = random.nextInt(horizontal ? size - length + 1 : size);
+					if (isFree(row, column, length, horizontal)) {
+						board.placeShip(order[d], row, column, horizontal);
+						block(row, column, length, horizontal);
+						placed = true;
+					}
+				}
+			}
+			if (placed)
+				return;
+		}
+		throw new IllegalStateException("Fleet does not fit on the board");
+	}
+
+	/**
+	 * @param row Row of the top left cell
+	 * @param column Column of the top left cell
+	 * @param length Ship length
+	 * @param horizontal Ship orientation
+	 * @return true if none of the ship's cells is blocked
+	 */
+	private boolean isFree(int row, int column, int length, boolean horizontal) {
+		int size = rules.getSize();
+		for (int z=0; z<length; z++) {
+			int cell = horizontal ? row*size + column + z : (row + z)*size + column;
+			work++;
+			if ((blocked[cell >>> 6] >>> cell & 1) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Blocks a ship's cells and the ring around them
+	 * @param row Row of the top left cell
+	 * @param column Column of the top left cell
+	 * @param length Ship length
+	 * @param horizontal Ship orientation
+	 */
+	private void block(int row, int column, int length, boolean horizontal) {
+		int size = rules.getSize();
+		int rows = horizontal ? 1 : length, columns = horizontal ? length : 1;
+		for (int x=Math.max(0, row-1); x<=Math.min(size-1, row+rows); x++) {
+			for (int y=Math.max(0, column-1); y<=Math.min(size-1, column+columns); y++) {
+				int cell = x*size + y;
+				blocked[cell >>> 6] |= 1L << cell;
+			}
+		}
+	}
+
+	/**
+	 * Collects free positions of the ship placed at a search depth
+	 * @param depth Search depth
+	 */
+	protected void collect(int depth) {
+		Positions p = positions[rules.length(order[depth])];
+		long b0 = blocked0[depth], b1 = blocked1[depth];
+		int[] list = candidates[depth];
+		int n = 0;
+		for (int i=0; i<p.count; i++) {
+			if ((p.cells0[i] & b0) == 0 && (p.cells1[i] & b1) == 0)
+				list[n++] = i;
+		}
+		remaining[depth] = n;
+	}
+
+	/**
+	 * Sorts fleet indices by ship length, longest first
+	 * @param rules Game rules
+	 * @return Fleet indices
+	 */
+	protected static int[] order(GameRules rules) {
+		int[] order = new int[rules.getShips()];
+		int n = 0;
+		for (int length=rules.getMaxLength(); length>0; length--) {
+			for (int i=0; i<order.length; i++) {
+				if (rules.length(i) == length)
+					order[n++] = i;
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Precomputes positions and masks for every ship length in the fleet
+	 * @param rules Game rules
+	 * @return Positions indexed by ship length, null if the board has more than MASK_CELLS cells
+	 */
+	protected static Positions[] positions(GameRules rules) {
+		if (rules.getCells() > MASK_CELLS)
+			return null;
+		if (POSITIONS != null && rules.isDefault())
+			return POSITIONS;
+		int size = rules.getSize();
+		Positions[] all = new Positions[rules.getMaxLength() + 1];
+		for (int length=1; length<all.length; length++) {
+			Positions p = new Positions();
+			int span = size - length + 1;
+			int max = length == 1 ? size * size : 2 * span * size;
+			p.origin = new int[max];
+			p.horizontal = new boolean[max];
+			p.cells0 = new long[max];
+			p.cells1 = new long[max];
+			p.ring0 = new long[max];
+			p.ring1 = new long[max];
+			for (int h=0; h<(length == 1 ? 1 : 2); h++) {
+				boolean horizontal = h == 0;
+				for (int row=0; row<(horizontal ? size : span); row++) {
+					for (int column=0; column<(horizontal ? span : size); column++) {
+						int i = p.count++;
+						p.origin[i] = row*size + column;
+						p.horizontal[i] = horizontal;
+						int rows = horizontal ? 1 : length;
+						int columns = horizontal ? length : 1;
+						for (int x=row-1; x<=row+rows; x++) {
+							for (int y=column-1; y<=column+columns; y++) {
+								if (x < 0 || x >= size || y < 0 || y >= size)
+									continue;
+								int cell = x*size + y;
+								boolean covered = x >= row && x < row+rows && y >= column && y < column+columns;
+								if (cell < 64) {
+									p.ring0[i] |= 1L << cell;
+									if (covered)
+										p.cells0[i] |= 1L << cell;
+								}
+								else {
+									p.ring1[i] |= 1L << (cell - 64);
+									if (covered)
+										p.cells1[i] |= 1L << (cell - 64);
+								}
+							}
+						}
+					}
+				}
+			}
+			all[length] = p;
+		}
+		return all;
+	}
+}
@@ -1,16 +1,25 @@
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Game session is created for each pair of clients connected.
- * It controls the game flow, players'turns and manipulates game data
+ * It controls the game flow, players'turns and manipulates game data.
+ * It counts turns and shots and records how long players take to answer,
+ * from the message asking for a shot to the shot arriving.
+ * A player who does not shoot within the engine's turn timeout, or stops answering heartbeats, forfeits.
+ * A session making no progress for the engine's idle timeout is reaped by the session reaper.
+ * Players able to resume are sent a resume token after their fields. The boards and the turn owner
+ * stay with the session, a player reconnecting is sent the frames he has missed and the game goes on.
+ * A shot may have been lost with the connection, a player whose shot is awaited is asked for it again.
+ * If the engine keeps a match journal, placements, turns, shots and the outcome are recorded in it.
+ * The game is played by the engine's rules when both players can play by them, by the default rules otherwise;
+ * players are told the rules first and then sent where their own ships lie.
  * 
  * @author Dmitri Samoilov
  *
  */
-public class GameSession extends Thread{
+public class GameSession implements Runnable{
 	
 	protected static final int MISS = 0;
 	protected static final int HIT = 1;
@@ -19,514 +28,539 @@ public class GameSession extends Thread{
 	protected static final int NONE = -2;
 	protected static final int WIN = 3;
 	protected static final int LOSE = 4;
-	protected static final int UP = 0;
-	protected static final int DOWN = 1;
-	protected static final int LEFT = 2;
-	protected static final int RIGHT = 3;
-	private static final int EXIT = -3;
+	protected static final int EXIT = -3;
+	private static final int SHUTDOWN = -2;
 	
-	/** Enable object output to players */
-	protected ObjectOutputStream objectToPlayer1, objectToPlayer2;
-	/** Enable object input from players */
-	protected ObjectInputStream fromPlayer1, fromPlayer2;
-	/** Store game board tile data */
-	protected Tile[][] field1 = new Tile[10][10], field2 = new Tile[10][10];
-	/** Store ship details */
-	protected Ship [] ships1 = new Ship[10], ships2 = new Ship[10];
+	/** Session has been launched, fields are being sent */
+	public static final int STARTING = 0;
+	/** Players are taking turns */
+	public static final int RUNNING = 1;
+	/** Game has ended with a winner */
+	public static final int COMPLETED = 2;
+	/** Game has ended without a winner */
+	public static final int ABORTED = 3;
+	/** Game has been won because the opponent timed out */
+	public static final int FORFEITED = 4;
+	/** Session has been stopped by the reaper */
+	public static final int REAPED = 5;
+	/** Names of the session states */
+	public static final String[] STATE_NAMES = {"starting", "running", "completed", "aborted", "forfeited", "reaped"};
+	
+	/** Id given by the session registry */
+	protected long id;
+	/** Time the session was created, in milliseconds */
+	protected final long created = System.currentTimeMillis();
+	/** Lifecycle state */
+	protected volatile int state = STARTING;
+	/** Turns played, a turn lasts until the shooter misses */
+	protected volatile int turns;
+	/** Shots resolved, rejected shots included */
+	protected volatile int shots;
+	/** Microseconds from asking a player for a shot to receiving it */
+	protected final LatencyHistogram turnLatency = new LatencyHistogram();
+	/** Time the game last moved on, a turn started or a shot arrived, in milliseconds */
+	protected volatile long lastProgress = created;
+	/** Set once the session thread has finished */
+	protected volatile boolean ended;
+	/** Set once the reaper has stopped the session */
+	protected final AtomicBoolean reaped = new AtomicBoolean();
+	/** Server engine the session reports to */
+	protected ServerEngine engine;
+	/** Players' connections */
+	protected PlayerConnection player1, player2;
+	/** Rules of the game, the engine's if both players can play by them, otherwise the default rules */
+	protected GameRules rules;
+	/** Store game board data: ships, tile shapes and shots */
+	protected Board board1, board2;
+	/** Winner's player number, 0 while there is none */
+	protected int winner;
+	/** Records the match's events, null if the engine keeps no journal */
+	protected MatchJournal.Recorder recorder;
+	/** Player whose shot is being awaited, null if none */
+	protected volatile PlayerConnection shooter;
 	/** Indicates whether the game is running */
-	protected boolean gameIsRunning;	
+	protected volatile boolean gameIsRunning;	
+	/** Indicates that the session has been asked to stop */
+	protected volatile boolean stopped;
 	/** 
 	 * GameSession constructor
-	 * Gets input and output streams from Server class
+	 * Gets players' connections from the server engine
 	 * 
-	 * @param objectToPlayer1 Output to player 1
-	 * @param objectToPlayer2 Output to player 2
-	 * @param fromPlayer1 Input from player 1
-	 * @param fromPlayer2 Input from player 2
+	 * @param engine Server engine which launched the session
+	 * @param player1 Player 1 connection
+	 * @param player2 Player 2 connection
 	 */
-	public GameSession(ObjectOutputStream objectToPlayer1, ObjectOutputStream objectToPlayer2, ObjectInputStream fromPlayer1, ObjectInputStream fromPlayer2) {
-		this.objectToPlayer1 = objectToPlayer1;
-		this.objectToPlayer2 = objectToPlayer2;
-		this.fromPlayer1 = fromPlayer1;
-		this.fromPlayer2 = fromPlayer2;
+	public GameSession(ServerEngine engine, PlayerConnection player1, PlayerConnection player2) {
+		this.engine = engine;
+		this.player1 = player1;
+		this.player2 = player2;
 	}
 	/**
-	 * When a Thread is run initialises ships, game board, sends initial data to players
+	 * When the session is run initialises ships, game board, sends initial data to players
 	 * Runs a game loop
 	 */
 	public void run() {
-		
-		//Initialising game fields
-		initShips();
-		initField(field1, ships1);
-		initField(field2, ships2);
-		
-		//Sending game fields to players
-		sendField(objectToPlayer1, field1);
-		sendField(objectToPlayer1, field2);
-		sendField(objectToPlayer2, field2);		
-		sendField(objectToPlayer2, field1);
-		
-		//Start the game
-		gameIsRunning = true;
-		runGame();
+		try {
+			//Agreeing on the rules and initialising game fields
+			rules = engine.rules;
+			if (!player1.supportsRules(rules) || !player2.supportsRules(rules))
+				rules = GameRules.DEFAULT;
+			try {
+				board1 = initField();
+				board2 = initField();
+			} catch (IllegalStateException e) {
+				engine.log.log("Could not place fleets for game session " + id + ": " + e.getMessage() + ". Terminating game session.");
+				return;
+			}
+			if (engine.journal != null) {
+				recorder = engine.journal.recorder(id);
+				recorder.start(board1, board2);
+			}
+			
+			//Sending rules and game fields to players, the opponent's field only to clients resolving their own shots
+			player1.sendStart();
+			player2.sendStart();
+			sendRules(player1);
+			sendRules(player2);
+			sendField(player1, board1);
+			if (player1.needsOpponentField())
+				sendField(player1, board2);
+			sendField(player2, board2);
+			if (player2.needsOpponentField())
+				sendField(player2, board1);
+			sendResumeToken(player1);
+			sendResumeToken(player2);
+			
+			//Start the game
+			gameIsRunning = true;
+			state = RUNNING;
+			runGame();
+		} finally {
+			if (state == STARTING || state == RUNNING)
+				state = ABORTED;
+			if (recorder != null)
+				recorder.end(state, winner);
+			ended = true;
+			player1.close();
+			player2.close();
+			engine.sessionEnded(this);
+		}
 	}
 	/**
 	 * Game loop	
 	 * Defines players' turns
 	 * Sends and receives data to/from clients
-	 * Modifies game data according to received data
 	 */
-	@SuppressWarnings("deprecation")
 	protected void runGame() {
 		
 		boolean playerOneTurn = true;
-		
 		int[] input = new int[3];
-		int row = NONE;
-		int column = NONE;
 		
-		while (gameIsRunning) {	
-			
-			//Player 1 Turn
-			if (playerOneTurn) {							
-				boolean turn = true;
-				try {
-					sendTurnResults(objectToPlayer1, NONE, NONE, CONTINUE, 1);
-					sendTurnResults(objectToPlayer2, NONE, NONE, WAIT, 2);
-					
-					while (turn) {	
-						
-						input = (int[])fromPlayer1.readObject();
-						
-						if (input != null) {
-							switch (input[2]) {
-								case HIT: {
-									row = input[0];
-									column = input[1];
-									field2[input[0]][input[1]].ship.hit();
-									field2[input[0]][input[1]] = null;
-									sendTurnResults(objectToPlayer2, row, column, WAIT, 2);
-									sendTurnResults(objectToPlayer1, NONE, NONE, WAIT, 1);
-									break;
-								}
-								case MISS: {			
-									row = input[0];
-									column = input[1];
-									sendTurnResults(objectToPlayer2, row, column, WAIT, 2);
-									playerOneTurn=false;
-									turn=false;
-									break;
-								}
-								case EXIT: {
-									sendTurnResults(objectToPlayer2, NONE, NONE, EXIT, 2);
-									System.out.println("Player 1 has left the game. Terminating game session.");
-									this.stop();
-								}
-							}
-						}
-						
-						if (checkWin(ships2)) {
-							turn = false;
-							gameIsRunning = false;
-						}
-						
-					}
-				} catch (Exception e) {
-					System.out.println("An error occured while sending messages to players!");
-					gameIsRunning = false;
-					System.exit(0);
-				}
+		while (gameIsRunning) {
+			int outcome;
+			try {
+				if (playerOneTurn)
+					outcome = playTurn(player1, 1, player2, 2, board2, input);
+				else
+					outcome = playTurn(player2, 2, player1, 1, board1, input);
+			} catch (PlayerConnection.TimeoutException e) {
+				forfeit(playerOneTurn ? 1 : 2, e);
+				return;
+			} catch (Exception e) {
+				endOnError();
+				return;
 			}
-			//Player 2 Turn
-			else if (!playerOneTurn){
-				boolean turn=true;
-				
-				try {
-					sendTurnResults(objectToPlayer2, NONE, NONE, CONTINUE, 2);
-					sendTurnResults(objectToPlayer1, NONE, NONE, WAIT, 1);
-					
-					while (turn) {
-						input = (int[])fromPlayer2.readObject();
-						
-						if (input != null) {
-							switch (input[2]) {
-								case HIT: {
-									row = input[0];
-									column = input[1];
-									field1[input[0]][input[1]].ship.hit();
-									field1[input[0]][input[1]] = null;								
-									sendTurnResults(objectToPlayer1, row, column, WAIT, 1);
-									sendTurnResults(objectToPlayer2, NONE, NONE, WAIT, 2);
-									break;
-								}
-								case MISS: {
-									row = input[0];
-									column = input[1];	
-									sendTurnResults(objectToPlayer1, row, column, WAIT, 1);
-									playerOneTurn=true;
-									turn=false;
-									break;
-								}
-								case EXIT: {
-									sendTurnResults(objectToPlayer1, NONE, NONE, EXIT, 1);
-									System.out.println("Player 2 has left the game. Terminating game session.");
-									this.stop();
-								}
-							}
-						}
-						
-						if (checkWin(ships1)) {
-							turn = false;
-							gameIsRunning = false;
-						}
-						
-					}
-				} catch (Exception e) {
-					System.out.println("An error occured while sending messages to players!");
-					gameIsRunning = false;
-					System.exit(0);
-				}
+			if (outcome == EXIT) {
+				engine.log.log("Player " + (playerOneTurn ? 1 : 2) + " has left the game. Terminating game session.");
+				//Leaving counts as a loss
+				winner = playerOneTurn ? 2 : 1;
+				if (playerOneTurn)
+					engine.matchmaker.recordWin(player2, player1);
+				else
+					engine.matchmaker.recordWin(player1, player2);
+				gameIsRunning = false;
+				return;
 			}
+			if (outcome == WIN)
+				gameIsRunning = false;
+			else
+				playerOneTurn = !playerOneTurn;
 		}
 		
-		if (checkWin(ships2)) {
-			sendTurnResults(objectToPlayer1, NONE, NONE, WIN, 1);
-			sendTurnResults(objectToPlayer2, NONE, NONE, LOSE, 2);
+		if (checkWin(board2)) {
+			state = COMPLETED;
+			winner = 1;
+			sendTurnResults(player1, NONE, NONE, WIN, 1);
+			sendTurnResults(player2, NONE, NONE, LOSE, 2);
+			engine.matchmaker.recordWin(player1, player2);
 		}
-		else if (checkWin(ships1)) {
-			sendTurnResults(objectToPlayer2, NONE, NONE, WIN, 2);
-			sendTurnResults(objectToPlayer1, NONE, NONE, LOSE, 1);
+		else if (checkWin(board1)) {
+			state = COMPLETED;
+			winner = 2;
+			sendTurnResults(player2, NONE, NONE, WIN, 2);
+			sendTurnResults(player1, NONE, NONE, LOSE, 1);
+			engine.matchmaker.recordWin(player2, player1);
 		}
-		this.stop();
 	}
 	
 	/**
-	 * Checks whether there are any ships alive
-	 * @param ships Player's ship set
-	 * @return true if all ships have been sunk
+	 * Plays one player's turn.
+	 * Shots are resolved on the opponent's board, whatever result the client claims.
+	 * Shots outside the board or at cells already shot at are rejected and the player shoots again.
+	 * 
+	 * @param shooter Connection of the player whose turn it is
+	 * @param shooterNumber Shooter's player number
+	 * @param target Connection of the opponent
+	 * @param targetNumber Opponent's player number
+	 * @param targetBoard Opponent's board
+	 * @param input Array to read turns into
+	 * @return MISS if the turn passes to the opponent, WIN if all ships have been sunk, EXIT if the shooter has left
+	 * @throws Exception if a connection fails or a message is malformed
 	 */
-	protected boolean checkWin(Ship[] ships) {
-		for (int i=0; i<10; i++) {
-			if (ships[i].alive) {
-				return false;
+	protected int playTurn(PlayerConnection shooter, int shooterNumber, PlayerConnection target, int targetNumber,
+			Board targetBoard, int[] input) throws Exception {
+		turns++;
+		lastProgress = System.currentTimeMillis();
+		if (recorder != null)
+			recorder.turn(shooterNumber);
+		sendTurnResults(shooter, NONE, NONE, CONTINUE, shooterNumber);
+		sendTurnResults(target, NONE, NONE, WAIT, targetNumber);
+		
+		while (gameIsRunning) {
+			long asked = System.nanoTime();
+			long timeout = engine.getTurnTimeout();
+			this.shooter = shooter;
+			try {
+				input = shooter.readTurn(input, timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE);
+			} finally {
+				this.shooter = null;
+			}
+			turnLatency.record((System.nanoTime() - asked) / 1000);
+			lastProgress = System.currentTimeMillis();
+			if (input[2] == EXIT) {
+				sendTurnResults(target, NONE, NONE, EXIT, targetNumber);
+				return EXIT;
 			}
+			shots++;
+			int row = input[0];
+			int column = input[1];
+			int result = targetBoard.shoot(row, column);
+			if (recorder != null)
+				recorder.shot(shooterNumber, row, column, result);
+			if (result == Board.INVALID || result == Board.REPEATED) {
+				sendShotResult(shooter, shooterNumber, row, column, result, targetBoard, Board.EMPTY);
+				continue;
+			}
+			int ship = result == Board.MISS ? Board.EMPTY : targetBoard.shipAt(row, column);
+			sendTurnResults(target, row, column, WAIT, targetNumber, targetBoard, ship);
+			sendShotResult(shooter, shooterNumber, row, column, result, targetBoard, ship);
+			if (result == Board.MISS)
+				return MISS;
+			if (checkWin(targetBoard))
+				return WIN;
+		}
+		return EXIT;
+	}
+	
+	/**
+	 * Ends the game after a player has timed out, the opponent wins
+	 * @param loser Number of the player who has timed out
+	 * @param e Why the player has timed out
+	 */
+	protected void forfeit(int loser, PlayerConnection.TimeoutException e) {
+		gameIsRunning = false;
+		if (stopped)
+			return;
+		state = FORFEITED;
+		winner = 3 - loser;
+		engine.log.log("Player " + loser + (e.isHeartbeatMissed() ? " has stopped answering heartbeats."
+				: " has not shot in time.") + " The opponent wins.");
+		if (loser == 1) {
+			sendTurnResults(player2, NONE, NONE, WIN, 2);
+			sendTurnResults(player1, NONE, NONE, LOSE, 1);
+			engine.matchmaker.recordWin(player2, player1);
+		}
+		else {
+			sendTurnResults(player1, NONE, NONE, WIN, 1);
+			sendTurnResults(player2, NONE, NONE, LOSE, 2);
+			engine.matchmaker.recordWin(player1, player2);
 		}
+	}
+	
+	/**
+	 * Stops a session which has made no progress, unless it has already ended.
+	 * The session thread may be stuck writing to a player, so no lock it may hold is taken.
+	 * @return true if the session has been stopped
+	 */
+	public boolean reap() {
+		if (ended || !reaped.compareAndSet(false, true))
+			return false;
+		if (state == STARTING || state == RUNNING)
+			state = REAPED;
+		shutdown();
 		return true;
 	}
+	
+	/**
+	 * Hands a player who has reconnected with a resume token his game back
+	 * @param token Resume token
+	 * @param replacement Connection the player has reconnected on
+	 * @param received Number of frames the client has received
+	 * @return Number of frames replayed, -1 if the game cannot be resumed
+	 */
+	public int resume(long token, PlayerConnection replacement, int received) {
+		if (ended)
+			return -1;
+		PlayerConnection player = player1.getToken() == token ? player1 : player2.getToken() == token ? player2 : null;
+		int replayed = player != null ? player.resume(replacement, received) : -1;
+		if (replayed >= 0 && shooter == player)
+			sendTurnResults(player, NONE, NONE, CONTINUE, player == player1 ? 1 : 2);
+		return replayed;
+	}
+	
+	/**
+	 * Ends the session after a connection has failed.
+	 * Both players are told that the opponent has left, the rest of the server keeps running.
+	 */
+	protected void endOnError() {
+		gameIsRunning = false;
+		if (stopped)
+			return;
+		engine.log.log("An error occured while sending messages to players!");
+		sendTurnResults(player1, NONE, NONE, EXIT, 1);
+		sendTurnResults(player2, NONE, NONE, EXIT, 2);
+	}
+	
+	/**
+	 * Asks the session to stop.
+	 * Closes players' connections so that a blocked read returns and the game loop exits.
+	 */
+	public void shutdown() {
+		stopped = true;
+		gameIsRunning = false;
+		player1.close();
+		player2.close();
+	}
+	
+	/**
+	 * Sends shutdown command to one of the players, the other one is sent it separately.
+	 * The write may block for the given time at most, then the player's socket is closed.
+	 * @param player Player number
+	 * @param timeout Longest time the write may block, in milliseconds
+	 */
+	protected void sendShutdown(int player, long timeout) {
+		if (board1 == null || board2 == null)
+			return;
+		PlayerConnection out = player == 1 ? player1 : player2;
+		out.setWriteTimeout(timeout);
+		sendTurnResults(out, NONE, NONE, SHUTDOWN, player);
+	}
+	
+	/**
+	 * @return Id given by the session registry
+	 */
+	public long getId() {
+		return id;
+	}
+	
+	/**
+	 * @return STARTING, RUNNING, COMPLETED, ABORTED, FORFEITED or REAPED
+	 */
+	public int getState() {
+		return state;
+	}
+	
+	/**
+	 * @return Time the session was created, in milliseconds
+	 */
+	public long getCreated() {
+		return created;
+	}
+	
+	/**
+	 * @return Turns played
+	 */
+	public int getTurns() {
+		return turns;
+	}
+	
+	/**
+	 * @return Shots resolved
+	 */
+	public int getShots() {
+		return shots;
+	}
+	
+	/**
+	 * @return Bytes sent to both players
+	 */
+	public long getBytesSent() {
+		return player1.getBytesSent() + player2.getBytesSent();
+	}
+	
+	/**
+	 * @return Bytes received from both players
+	 */
+	public long getBytesReceived() {
+		return player1.getBytesReceived() + player2.getBytesReceived();
+	}
+	
+	/**
+	 * @return Microseconds from asking a player for a shot to receiving it
+	 */
+	public LatencyHistogram getTurnLatency() {
+		return turnLatency;
+	}
+	
+	/**
+	 * @return Time the game last moved on, in milliseconds
+	 */
+	public long getLastProgress() {
+		return lastProgress;
+	}
+	
+	/**
+	 * Estimates the memory held by the session: its thread's stack and the socket buffers of both players.
+	 * Boards and frame buffers take a few hundred bytes and are left out.
+	 * @return Estimated size in bytes
+	 */
+	public long getFootprint() {
+		return ServerEngine.SESSION_STACK_SIZE + player1.getSocketBuffers() + player2.getSocketBuffers();
+	}
+	
+	/**
+	 * @return Players' connections
+	 */
+	public PlayerConnection[] getPlayers() {
+		return new PlayerConnection[] {player1, player2};
+	}
+	
+	/**
+	 * Checks whether there are any ships alive
+	 * @param board Player's board
+	 * @return true if all ships have been sunk
+	 */
+	protected boolean checkWin(Board board) {
+		return board.allSunk();
+	}
 
 	/**
 	 * Send turn results to player
-	 * @param out Player's output stream
+	 * @param out Player's connection
 	 * @param x	Row number
 	 * @param y Column number
 	 * @param result Result code
+	 * @param player Player number
 	 */
-	protected void sendTurnResults(ObjectOutputStream out, int x, int y, int result, int player) {
-		Integer[][] results = new Integer[3][10];
-		results[0][0] = x+1;
-		results[0][1] = y+1;
-		results[0][2] = result;
-		
-		for (int i=0; i<10; i++) {
-			if (player == 1) {
-				results[1][i] = ships1[i].noOfCells;
-				results[2][i] = ships2[i].noOfCells;
-			}
-			else {
-				results[2][i] = ships1[i].noOfCells;
-				results[1][i] = ships2[i].noOfCells;
-			}
-		}
+	protected void sendTurnResults(PlayerConnection out, int x, int y, int result, int player) {
+		sendTurnResults(out, x, y, result, player, null, Board.EMPTY);
+	}
+
+	/**
+	 * Send turn results to player.
+	 * The session thread, the shutdown broadcast and a resuming player may send at the same time,
+	 * each fills in its own copy of the cells alive and no lock is held while writing.
+	 * @param out Player's connection
+	 * @param x	Row number
+	 * @param y Column number
+	 * @param result Result code
+	 * @param player Player number
+	 * @param changed Board of the ship hit by this turn, null if no ship has changed
+	 * @param ship Index of the ship hit by this turn
+	 */
+	protected void sendTurnResults(PlayerConnection out, int x, int y, int result, int player, Board changed, int ship) {
+		Board myBoard = player == 1 ? board1 : board2;
+		Board board = player == 1 ? board2 : board1;
+		int[] myShips = new int[rules.getShips()];
+		int[] ships = new int[rules.getShips()];
+		myBoard.cellsAlive(myShips);
+		board.cellsAlive(ships);
+		int owner = WireFormat.NO_SHIP;
+		if (changed != null && ship != Board.EMPTY)
+			owner = changed == myBoard ? WireFormat.MY_SHIP : WireFormat.ENEMY_SHIP;
 		try {
-			out.writeObject(results);
-			out.flush();
+			out.sendTurnResults(x+1, y+1, result, myShips, ships, owner, ship);
 		} catch (IOException e) {
-			System.out.println("Could not send turn results to client!");
+			engine.log.log("Could not send turn results to client!");
 		}
 	}
 
 	/**
-	 * Send generated field to player
-	 * @param out Player's output stream
-	 * @param field Game field
+	 * Tells the shooter the result of a shot.
+	 * Clients resolving their own shots already know it: after a hit they are told to continue,
+	 * misses and rejected shots are not reported to them.
+	 * 
+	 * @param out Shooter's connection
+	 * @param player Shooter's player number
+	 * @param x Row number
+	 * @param y Column number
+	 * @param result Board.MISS, HIT, SUNK, REPEATED or INVALID
+	 * @param board Opponent's board
+	 * @param ship Index of the ship hit or Board.EMPTY
 	 */
-	protected void sendField(ObjectOutputStream out, Tile[][] field) {
-		int[][] output = new int[11][11];
-		
-		for (int x=0; x<11; x++) {
-			for (int y=0; y<11; y++) {
-				output[x][y] = -1;
-			}
+	protected void sendShotResult(PlayerConnection out, int player, int x, int y, int result, Board board, int ship) {
+		if (out.needsOpponentField()) {
+			if (result == Board.HIT || result == Board.SUNK)
+				sendTurnResults(out, NONE, NONE, CONTINUE, player, board, ship);
+			return;
 		}
-		
-		for (int x=0; x<10; x++) {
-			for (int y=0; y<10; y++) {
-				if (field[x][y] != null)
-					output[x+1][y+1] = field[x][y].direction;
-				else output[x+1][y+1] = -1;
-			}
-		}
-		
+		int shape = ship == Board.EMPTY ? Board.EMPTY : board.shapeAt(x, y);
+		int cells = ship == Board.EMPTY ? 0 : board.cellsAlive(ship);
 		try {
-			out.writeObject(output);
-			out.flush();
+			out.sendShotResult(x+1, y+1, result, shape, ship, cells);
 		} catch (IOException e) {
-			e.printStackTrace();
+			engine.log.log("Could not send shot result to client!");
 		}
 	}
-	
+
 	/**
-	 * Initialises ships arrays
+	 * Sends the rules of the game to a player
+	 * @param out Player's connection
 	 */
-	protected void initShips() {
-		for (int i=0; i<4; i++) {
-			ships1[i] = new Ship(1);
-			ships2[i] = new Ship(1);
-		}
-		for (int i=4; i<7; i++) {
-			ships1[i] = new Ship(2);
-			ships2[i] = new Ship(2);
-		}
-		for (int i=7; i<9; i++) {
-			ships1[i] = new Ship(3);
-			ships2[i] = new Ship(3);
+	protected void sendRules(PlayerConnection out) {
+		try {
+			out.sendRules(rules);
+		} catch (IOException e) {
+			engine.log.log("Could not send game rules to client!");
 		}
-		ships1[9] = new Ship(4);
-		ships2[9] = new Ship(4);
 	}
-	
-	/** Sets the ships randomly on a game field
-	 * 
-	 * @param field Game field
-	 * @param ships Ships to be distributed
+
+	/**
+	 * Send generated field to player
+	 * @param out Player's connection
+	 * @param board Player's board
 	 */
-	protected void initField(Tile[][] field, Ship[] ships) {
-		Random r = new Random();		
-		
-		for (int i=0; i<10; i++) {
-			int direction = UP;
-			int row = 0, column = 0, n=0;
-			int length = ships[i].getLength();
-			Integer [][] coordinates = new Integer[length][2];
-			
-			while (n<length) {
-				boolean empty = false;
-				boolean emptyAround = false;
-				
-				if (n==0) {
-					while (!empty || !emptyAround) {
-						row = r.nextInt(10);
-						column = r.nextInt(10);
-					
-						if (field[row][column] == null)
-							empty = true;
-						
-						if (empty) {
-							emptyAround = checkEmptyAround(row, column, field);
-						}
-					}
-				}
-				else {
-					if (field[row][column] == null)
-							empty = true;
-						
-					if (empty) {
-							emptyAround = checkEmptyAround(row, column, field);
-						}
-					}
-					
-				
-				if (empty && emptyAround) {					
-				
-					coordinates[n][0] = row;
-					coordinates[n][1] = column;
-					
-					if (n != length-1) {
-						boolean directionOk = false;
-						
-						while (!directionOk && length>1) {
-							directionOk = true;
-							if (n==0) direction = r.nextInt(4);
-						
-							switch (direction) {
-								case UP: {
-									if (row-1>=0) row--;
-									else directionOk = false;
-									break;
-								}
-								case DOWN: {
-									if (row+1<10) row++;
-									else directionOk = false;
-									break;
-								}
-								case LEFT: {
-									if (column-1>=0) column--;
-									else directionOk = false;
-									break;
-								}
-								case RIGHT: {
-									if (column+1<10) column++;
-									else directionOk = false;
-									break;
-								}
-							}
-							if (!directionOk && n>0) {
-								directionOk = true;
-								n=-1;
-							}
-								
-						}						
-					}
-					n++;
-				}
-				else n=0;
-			}
-			
-			for (int z=0; z<length; z++) {
-				if (length==1) {
-					field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.SINGLE);
-				}
-				else {
-					if (direction == UP) {
-						if (z==0)
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.SOUTH);
-						if (z>0 && z<(length-1))
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i], Tile.VERTICAL);
-						if (z==(length-1))
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i], Tile.NORTH);
-					}
-					else if (direction == RIGHT) {
-						if (z==0)
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.WEST);
-						if (z>0 && z<(length-1))
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.HORIZONTAL);
-						if (z==(length-1))
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.EAST);
-					}
-					else if (direction == DOWN) {
-						if (z==0)
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.NORTH);
-						if (z>0 && z<(length-1))
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.VERTICAL);
-						if (z==(length-1))
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.SOUTH);
-					}
-					else if (direction == LEFT) {
-						if (z==0)
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.EAST);
-						if (z>0 && z<(length-1))
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.HORIZONTAL);
-						if (z==(length-1))
-							field[coordinates[z][0]][coordinates[z][1]] = new Tile(ships[i],Tile.WEST);
-					}
-				}
-				
-			}			
+	protected void sendField(PlayerConnection out, Board board) {
+		try {
+			out.sendBoard(board);
+		} catch (IOException e) {
+			engine.log.log("Could not send game field to client!");
 		}
 	}
 	
 	/**
-	 * Checks if the space around a specific tile if empty
-	 * @param row row number
-	 * @param column column number
-	 * @param field Player's tile set
-	 * @return true if tiles around are empty
+	 * Sends the resume token to a player able to resume
+	 * @param out Player's connection
 	 */
-	protected boolean checkEmptyAround(int row, int column, Tile[][] field) {
-		boolean ok = true;
-		
-		if (ok) {
-			ok = false;
-			try {
-				if (field[row+1][column] == null) {
-				ok = true;
-				}
-			} catch (ArrayIndexOutOfBoundsException e) {
-				ok=true;
-			}
-			
-		}
-		if (ok) {
-			ok = false;
-			try {
-				if (field[row+1][column+1] == null) {
-				ok = true;
-				}
-			} catch (ArrayIndexOutOfBoundsException e) {
-				ok=true;
-			}
-			
-		}
-		if (ok) {
-			ok = false;
-			try {
-				if (field[row][column+1] == null) {
-				ok = true;
-				}
-			} catch (ArrayIndexOutOfBoundsException e) {
-				ok=true;
-			}
-			
-		}
-		if (ok) {
-			ok = false;
-			try {
-				if (field[row-1][column+1] == null) {
-				ok = true;
-				}
-			} catch (ArrayIndexOutOfBoundsException e) {
-				ok=true;
-			}
-			
-		}
-		if (ok) {
-			ok = false;
-			try {
-				if (field[row-1][column] == null) {
-				ok = true;
-				}
-			} catch (ArrayIndexOutOfBoundsException e) {
-				ok=true;
-			}
-			
-		}
-		if (ok) {
-			ok = false;
-			try {
-				if (field[row-1][column-1] == null) {
-				ok = true;
-				}
-			} catch (ArrayIndexOutOfBoundsException e) {
-				ok=true;
-			}
-			
-		}
-		if (ok) {
-			ok = false;
-			try {
-				if (field[row][column-1] == null) {
-					ok = true;
-				}	
-			} catch (ArrayIndexOutOfBoundsException e) {
-				ok=true;
-			}
-			
-		}
-		if (ok) {
-			ok = false;
-			try {
-				if (field[row+1][column-1] == null) {
-					ok = true;
-				}	
-			} catch (ArrayIndexOutOfBoundsException e) {
-				ok=true;
-			}
-			
-		}
-		if (ok) {
-			return true;
+	protected void sendResumeToken(PlayerConnection out) {
+		try {
+			out.sendResumeToken();
+		} catch (IOException e) {
+			engine.log.log("Could not send resume token to client!");
 		}
-		else return false;
+	}
+	
+	/** Takes a game field with randomly set ships from the server's layout pool,
+	 * places one here if the game falls back to rules the pool is not filled for
+	 * 
+	 * @return Player's board
+	 * @throws IllegalStateException if the fleet could not be placed
+	 */
+	protected Board initField() {
+		if (rules.equals(engine.layouts.getRules()))
+			return engine.layouts.take();
+		Board board = new Board(rules);
+		new FleetPlacer(rules, new Random()).place(board);
+		return board;
 	}
 }
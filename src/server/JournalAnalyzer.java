@@ -0,0 +1,397 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Journal analyzer replays every match of a match journal and adds up statistics over all of them:
+ * shots the winner needed, shots and hits per cell and where players fire their first shot.
+ * Cell counters are kept for matches played by the default rules only, other boards do not line up with them.
+ * Segment files are analyzed in parallel on a fork/join pool, each one streamed through JournalReader
+ * and replayed on boards with the same Board rules the game session played them with.
+ * A match running while its segment filled up continues in the next one; its replay is handed from
+ * the earlier segment's result to the later one's when the results are joined, in segment order.
+ * Only matches running at a segment's end are held in memory, a finished match is folded into
+ * fixed size counters and dropped, so memory does not grow with the size of the journal.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class JournalAnalyzer {
+
+	protected static final String USAGE = "Usage: java JournalAnalyzer directory [-threads number]";
+
+	/** Largest number of shots told apart in the shots to win histogram, enough for boards of 64 by 64 */
+	protected static final int MAX_SHOTS = 2 * 64 * 64;
+
+	/**
+	 * Counters over finished matches
+	 */
+	public static class Statistics {
+		/** Matches replayed from start to end */
+		public long matches;
+		/** Matches by the GameSession state they ended in */
+		public final long[] ended = new long[GameSession.STATE_NAMES.length];
+		/** Matches whose end is not in the journal */
+		public long unfinished;
+		/** Matches whose start is not in the journal */
+		public long unstarted;
+		/** Shots whose recorded result differs from the replayed one */
+		public long mismatches;
+		/** Completed matches by the number of shots the winner fired, the last entry counts MAX_SHOTS and more */
+		public final long[] shotsToWin = new long[MAX_SHOTS + 1];
+		/** Shots fired at each cell */
+		public final long[] cellShots = new long[Board.CELLS];
+		/** Shots which hit a ship, by cell */
+		public final long[] cellHits = new long[Board.CELLS];
+		/** First shots of a match by cell */
+		public final long[] firstShots = new long[Board.CELLS];
+
+		/**
+		 * Folds a replayed match in
+		 * @param replay Match replayed to its end
+		 */
+		public void add(JournalReader.Replay replay) {
+			matches++;
+			if (replay.state >= 0 && replay.state < ended.length)
+				ended[replay.state]++;
+			mismatches += replay.mismatches;
+			if (replay.state == GameSession.COMPLETED && (replay.winner == 1 || replay.winner == 2))
+				shotsToWin[Math.min(replay.playerShots[replay.winner - 1], MAX_SHOTS)]++;
+			if (!replay.boards[0].getRules().isDefault())
+				return;
+			for (Board board : replay.boards) {
+				for (int row=0; row<Board.SIZE; row++) {
+					for (int column=0; column<Board.SIZE; column++) {
+						if (board.isShot(row, column)) {
+							cellShots[row * Board.SIZE + column]++;
+							if (board.isShip(row, column))
+								cellHits[row * Board.SIZE + column]++;
+						}
+					}
+				}
+			}
+			for (int cell : replay.firstShots) {
+				if (cell >= 0 && cell < Board.CELLS)
+					firstShots[cell]++;
+			}
+		}
+
+		/**
+		 * Adds another set of counters to these
+		 * @param other Counters
+		 */
+		public void add(Statistics other) {
+			matches += other.matches;
+			unfinished += other.unfinished;
+			unstarted += other.unstarted;
+			mismatches += other.mismatches;
+			add(ended, other.ended);
+			add(shotsToWin, other.shotsToWin);
+			add(cellShots, other.cellShots);
+			add(cellHits, other.cellHits);
+			add(firstShots, other.firstShots);
+		}
+
+		/**
+		 * @param percentile Percentile, 0 to 100
+		 * @return Shots the winner fired in the given percentile of completed matches, 0 if there are none
+		 */
+		public int shotsToWin(double percentile) {
+			long total = 0;
+			for (long count : shotsToWin)
+				total += count;
+			long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int shots=0; shots<shotsToWin.length; shots++) {
+				seen += shotsToWin[shots];
+				if (seen > 0 && seen >= rank)
+					return shots;
+			}
+			return 0;
+		}
+
+		/**
+		 * @return Mean number of shots the winner fired in completed matches, 0 if there are none
+		 */
+		public double meanShotsToWin() {
+			long total = 0, shots = 0;
+			for (int i=0; i<shotsToWin.length; i++) {
+				total += shotsToWin[i];
+				shots += i * shotsToWin[i];
+			}
+			return total == 0 ? 0 : (double) shots / total;
+		}
+
+		private static void add(long[] to, long[] from) {
+			for (int i=0; i<to.length; i++)
+				to[i] += from[i];
+		}
+	}
+
+	/**
+	 * Result of analyzing a range of segments
+	 */
+	protected static class Analysis {
+		/** Counters over the matches finished in the range */
+		final Statistics statistics = new Statistics();
+		/** Matches running at the end of the range, by id */
+		final Map<Long, JournalReader.Replay> running = new HashMap<Long, JournalReader.Replay>();
+		/** Events of matches started before the range, by match id */
+		final Map<Long, List<JournalReader.Event>> continued = new HashMap<Long, List<JournalReader.Event>>();
+		/** Server run of the first record in the range, -1 if the range is empty */
+		long firstRun = -1;
+		/** Records read */
+		long records;
+
+		/**
+		 * Applies an event read in the range
+		 * @param event Event
+		 */
+		void event(JournalReader.Event event) {
+			records++;
+			if (firstRun < 0)
+				firstRun = event.match >>> 32;
+			JournalReader.Replay replay = running.get(event.match);
+			if (replay == null) {
+				if (event.type != MatchJournal.START) {
+					List<JournalReader.Event> events = continued.get(event.match);
+					if (events == null)
+						continued.put(event.match, events = new ArrayList<JournalReader.Event>());
+					events.add(event.copy());
+					return;
+				}
+				replay = new JournalReader.Replay(event.match);
+				running.put(event.match, replay);
+			}
+			replay.apply(event);
+			if (event.type == MatchJournal.END) {
+				running.remove(event.match);
+				statistics.add(replay);
+			}
+		}
+
+		/**
+		 * Joins the result of the range following this one
+		 * @param next Result of the next range
+		 */
+		void join(Analysis next) {
+			for (Map.Entry<Long, List<JournalReader.Event>> entry : next.continued.entrySet()) {
+				JournalReader.Replay replay = running.get(entry.getKey());
+				if (replay != null) {
+					for (JournalReader.Event event : entry.getValue())
+						replay.apply(event);
+					if (replay.state >= 0) {
+						running.remove(entry.getKey());
+						statistics.add(replay);
+					}
+				}
+				else {
+					List<JournalReader.Event> events = continued.get(entry.getKey());
+					if (events == null)
+						continued.put(entry.getKey(), entry.getValue());
+					else
+						events.addAll(entry.getValue());
+				}
+			}
+			// a match of an earlier server run cannot continue once a later run has started writing
+			if (next.firstRun >= 0) {
+				for (Iterator<Long> i = running.keySet().iterator(); i.hasNext();) {
+					if (i.next() >>> 32 < next.firstRun) {
+						i.remove();
+						statistics.unfinished++;
+					}
+				}
+			}
+			running.putAll(next.running);
+			statistics.add(next.statistics);
+			records += next.records;
+			if (firstRun < 0)
+				firstRun = next.firstRun;
+		}
+
+		/**
+		 * Counts the matches left without their start or end once the whole journal has been joined
+		 */
+		void finish() {
+			statistics.unfinished += running.size();
+			statistics.unstarted += continued.size();
+			running.clear();
+			continued.clear();
+		}
+	}
+
+	/**
+	 * Analyzes a range of segment files, splitting it in halves down to single files
+	 */
+	protected static class AnalysisTask extends RecursiveTask<Analysis> {
+		private static final long serialVersionUID = 1L;
+
+		/** Segment files in the order they were written */
+		final File[] files;
+		/** First file of the range */
+		final int from;
+		/** End of the range, exclusive */
+		final int to;
+
+		AnalysisTask(File[] files, int from, int to) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Analysis compute() {
+			if (to - from <= 1) {
+				final Analysis analysis = new Analysis();
+				if (from < to) {
+					try {
+						JournalReader.read(files[from], new JournalReader.Listener() {
+							public void event(JournalReader.Event event) {
+								analysis.event(event);
+							}
+						});
+					} catch (IOException e) {
+						throw new AnalysisException(files[from], e);
+					}
+				}
+				return analysis;
+			}
+			int middle = (from + to) >>> 1;
+			AnalysisTask second = new AnalysisTask(files, middle, to);
+			second.fork();
+			Analysis analysis = new AnalysisTask(files, from, middle).compute();
+			analysis.join(second.join());
+			return analysis;
+		}
+	}
+
+	/**
+	 * Carries a segment read failure out of the fork/join pool
+	 */
+	protected static class AnalysisException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		AnalysisException(File file, IOException cause) {
+			super(file.getName() + ": " + cause.getMessage(), cause);
+		}
+	}
+
+	/** Directory holding the segment files */
+	protected final File directory;
+	/** Number of segments analyzed at the same time */
+	protected final int threads;
+	/** Records read by the last analysis */
+	protected long records;
+	/** Segments read by the last analysis */
+	protected int segments;
+
+	/**
+	 * @param directory Journal directory
+	 * @param threads Number of segments analyzed at the same time
+	 */
+	public JournalAnalyzer(File directory, int threads) {
+		this.directory = directory;
+		this.threads = threads;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			if (args.length != 1 && args.length != 3)
+				throw new IllegalArgumentException();
+			if (args.length == 3) {
+				if (!args[1].equals("-threads"))
+					throw new IllegalArgumentException();
+				threads = Integer.parseInt(args[2]);
+				if (threads < 1)
+					throw new IllegalArgumentException();
+			}
+		} catch (RuntimeException e) {
+			System.out.println(USAGE);
+			return;
+		}
+		JournalAnalyzer analyzer = new JournalAnalyzer(new File(args[0]), threads);
+		long started = System.nanoTime();
+		Statistics statistics = analyzer.analyze();
+		long elapsed = (System.nanoTime() - started) / 1000000;
+
+		StringBuilder ended = new StringBuilder();
+		for (int state=GameSession.COMPLETED; state<GameSession.STATE_NAMES.length; state++)
+			ended.append(", ").append(statistics.ended[state]).append(' ').append(GameSession.STATE_NAMES[state]);
+		System.out.println(analyzer.getSegments() + " segments, " + analyzer.getRecords() + " records in " + elapsed + " ms");
+		System.out.println(statistics.matches + " matches" + ended + ", " + statistics.unfinished + " without an end, "
+				+ statistics.unstarted + " without a start" + (statistics.mismatches > 0 ? ", " + statistics.mismatches
+				+ " results differ from the journal" : ""));
+		System.out.println(String.format("Shots to win: mean %.1f, median %d, 90%% %d, min %d, max %d",
+				statistics.meanShotsToWin(), statistics.shotsToWin(50), statistics.shotsToWin(90),
+				statistics.shotsToWin(0), statistics.shotsToWin(100)));
+		long[] rates = new long[Board.CELLS];
+		for (int cell=0; cell<Board.CELLS; cell++)
+			rates[cell] = statistics.cellShots[cell] == 0 ? 0 : 100 * statistics.cellHits[cell] / statistics.cellShots[cell];
+		System.out.println("Hits per shot, percent:");
+		System.out.print(grid(rates));
+		long firsts = 0;
+		for (long count : statistics.firstShots)
+			firsts += count;
+		long[] shares = new long[Board.CELLS];
+		for (int cell=0; cell<Board.CELLS; cell++)
+			shares[cell] = firsts == 0 ? 0 : Math.round(1000.0 * statistics.firstShots[cell] / firsts);
+		System.out.println("First shots, per mille:");
+		System.out.print(grid(shares));
+	}
+
+	/**
+	 * Replays every match of the journal
+	 * @return Counters over all matches
+	 * @throws IOException if a segment cannot be read
+	 */
+	public Statistics analyze() throws IOException {
+		File[] files = MatchJournal.segmentFiles(directory);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			Analysis analysis = pool.invoke(new AnalysisTask(files, 0, files.length));
+			analysis.finish();
+			records = analysis.records;
+			segments = files.length;
+			return analysis.statistics;
+		} catch (AnalysisException e) {
+			throw (IOException) e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @return Records read by the last analysis
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return Segments read by the last analysis
+	 */
+	public int getSegments() {
+		return segments;
+	}
+
+	/**
+	 * @param values One value per cell
+	 * @return Values laid out as the board, a row per line
+	 */
+	protected static String grid(long[] values) {
+		StringBuilder out = new StringBuilder();
+		for (int row=0; row<Board.SIZE; row++) {
+			for (int column=0; column<Board.SIZE; column++)
+				out.append(String.format("%5d", values[row * Board.SIZE + column]));
+			out.append(String.format("%n"));
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,366 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Journal reader goes through the segment files of a match journal in the order they were written
+ * and decodes every record into an event. A match is reconstructed by replaying its events up to
+ * a sequence number on fresh boards, with the same Board rules the game session played them with.
+ * MatchJournal.RULES records are decoded as START events carrying the rules of the match.
+ * Segments are mapped one at a time and read in place.
+ * Started from main it prints journal totals, or a match's boards after a given event.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class JournalReader {
+
+	protected static final String USAGE = "Usage: java JournalReader directory [run:session [sequence number]]";
+
+	/**
+	 * Decoded record. The reader reuses one event for all records.
+	 */
+	public static class Event {
+		/** Match id */
+		public long match;
+		/** Sequence number within the match */
+		public int seq;
+		/** MatchJournal.START, TURN, SHOT or END */
+		public int type;
+		/** Milliseconds since the match started */
+		public int time;
+		/** START: time the match started, in milliseconds */
+		public long started;
+		/** START: rules of the match */
+		public GameRules rules = GameRules.DEFAULT;
+		/** START: placements of player 1's ships followed by player 2's */
+		public int[] placements = new int[2 * Board.FLEET.length];
+		/** TURN and SHOT: player number */
+		public int player;
+		/** SHOT: row, column and Board result code */
+		public int row, column, result;
+		/** END: GameSession state the match has ended in */
+		public int state;
+		/** END: winner's player number, 0 if none */
+		public int winner;
+
+		/**
+		 * @return Copy of the event which stays valid after the listener call
+		 */
+		public Event copy() {
+			Event copy = new Event();
+			copy.match = match;
+			copy.seq = seq;
+			copy.type = type;
+			copy.time = time;
+			copy.started = started;
+			copy.rules = rules;
+			copy.placements = placements.clone();
+			copy.player = player;
+			copy.row = row;
+			copy.column = column;
+			copy.result = result;
+			copy.state = state;
+			copy.winner = winner;
+			return copy;
+		}
+	}
+
+	/**
+	 * Receives decoded events
+	 */
+	public interface Listener {
+		/**
+		 * @param event Decoded event, only valid during the call
+		 */
+		void event(Event event);
+	}
+
+	/**
+	 * State of a match rebuilt from its events
+	 */
+	public static class Replay {
+		/** Match id */
+		public final long match;
+		/** Player 1's and player 2's boards, made for the rules of the match at its start */
+		public final Board[] boards = {new Board(), new Board()};
+		/** Player whose turn it is, 0 before the first turn */
+		public int turn;
+		/** Sequence number of the last event applied, -1 if none */
+		public int seq = -1;
+		/** Shots applied, rejected shots included */
+		public int shots;
+		/** Shots applied by player 1 and player 2 */
+		public final int[] playerShots = new int[2];
+		/** Cell of player 1's and player 2's first shot, -1 if none */
+		public final int[] firstShots = {-1, -1};
+		/** Shots whose recorded result differs from the replayed one */
+		public int mismatches;
+		/** Time the match started, in milliseconds, 0 if the start has not been seen */
+		public long started;
+		/** GameSession state the match has ended in, -1 while running */
+		public int state = -1;
+		/** Winner's player number, 0 if none */
+		public int winner;
+
+		/**
+		 * @param match Match id
+		 */
+		public Replay(long match) {
+			this.match = match;
+		}
+
+		/**
+		 * Applies an event of the match
+		 * @param event Event
+		 */
+		public void apply(Event event) {
+			seq = event.seq;
+			switch (event.type) {
+				case MatchJournal.START:
+					started = event.started;
+					int ships = event.rules.getShips();
+					for (int b=0; b<2; b++) {
+						if (!boards[b].getRules().equals(event.rules))
+							boards[b] = new Board(event.rules);
+						boards[b].clear();
+						for (int i=0; i<ships; i++) {
+							int placement = event.placements[b * ships + i];
+							if (placement != Board.EMPTY)
+								boards[b].placeShip(i, placement);
+						}
+					}
+					break;
+				case MatchJournal.TURN:
+					turn = event.player;
+					break;
+				case MatchJournal.SHOT:
+					shots++;
+					if (event.player == 1 || event.player == 2) {
+						if (playerShots[event.player - 1]++ == 0)
+							firstShots[event.player - 1] = event.row * boards[0].getRules().getSize() + event.column;
+					}
+					if (boards[event.player == 1 ? 1 : 0].shoot(event.row, event.column) != event.result)
+						mismatches++;
+					break;
+				case MatchJournal.END:
+					state = event.state;
+					winner = event.winner;
+					break;
+			}
+		}
+
+		/**
+		 * @return Both boards side by side: ships, hits, misses and water
+		 */
+		public String render() {
+			StringBuilder out = new StringBuilder();
+			int size = boards[0].getRules().getSize();
+			out.append(String.format("%-" + (size * 2 + 2) + "s%s%n", "Player 1", "Player 2"));
+			for (int row=0; row<size; row++) {
+				for (int b=0; b<2; b++) {
+					for (int column=0; column<size; column++) {
+						boolean ship = boards[b].isShip(row, column), shot = boards[b].isShot(row, column);
+						out.append(ship ? (shot ? 'X' : '#') : (shot ? 'o' : '.')).append(' ');
+					}
+					out.append("  ");
+				}
+				out.append(String.format("%n"));
+			}
+			return out.toString();
+		}
+	}
+
+	/** Directory holding the segment files */
+	protected final File directory;
+
+	/**
+	 * @param directory Journal directory
+	 */
+	public JournalReader(File directory) {
+		this.directory = directory;
+	}
+
+	public static void main(String[] args) throws IOException {
+		long match = -1;
+		int seq = Integer.MAX_VALUE;
+		try {
+			if (args.length < 1 || args.length > 3)
+				throw new IllegalArgumentException();
+			if (args.length > 1)
+				match = parseMatchId(args[1]);
+			if (args.length > 2)
+				seq = Integer.parseInt(args[2]);
+		} catch (RuntimeException e) {
+			System.out.println(USAGE);
+			return;
+		}
+		JournalReader reader = new JournalReader(new File(args[0]));
+		if (match >= 0) {
+			Replay replay = reader.replay(match, seq);
+			if (replay.seq < 0) {
+				System.out.println("Match " + formatMatchId(match) + " is not in the journal.");
+				return;
+			}
+			System.out.println("Match " + formatMatchId(match) + " after event " + replay.seq + ": " + replay.shots
+					+ " shots, " + (replay.state < 0 ? "running, player " + replay.turn + " to shoot"
+					: GameSession.STATE_NAMES[replay.state] + (replay.winner > 0 ? ", player " + replay.winner + " won" : ""))
+					+ (replay.mismatches > 0 ? ", " + replay.mismatches + " results differ from the journal" : ""));
+			System.out.print(replay.render());
+			return;
+		}
+
+		final long[] totals = new long[2 + GameSession.STATE_NAMES.length];
+		int segments = reader.read(new Listener() {
+			public void event(Event event) {
+				totals[0]++;
+				if (event.type == MatchJournal.START)
+					totals[1]++;
+				else if (event.type == MatchJournal.END && event.state >= 0 && event.state < GameSession.STATE_NAMES.length)
+					totals[2 + event.state]++;
+			}
+		});
+		StringBuilder ended = new StringBuilder();
+		for (int state=GameSession.COMPLETED; state<GameSession.STATE_NAMES.length; state++)
+			ended.append(", ").append(totals[2 + state]).append(' ').append(GameSession.STATE_NAMES[state]);
+		System.out.println(segments + " segments, " + totals[0] + " records, " + totals[1] + " matches" + ended);
+	}
+
+	/**
+	 * Reads every segment of the journal
+	 * @param listener Receives the events
+	 * @return Number of segments read
+	 * @throws IOException if a segment cannot be read
+	 */
+	public int read(Listener listener) throws IOException {
+		File[] files = MatchJournal.segmentFiles(directory);
+		for (File file : files)
+			read(file, listener);
+		return files.length;
+	}
+
+	/**
+	 * Rebuilds a match
+	 * @param match Match id
+	 * @param seq Last event to apply
+	 * @return Match state after the event, with a sequence number of -1 if no event of the match has been found
+	 * @throws IOException if a segment cannot be read
+	 */
+	public Replay replay(final long match, final int seq) throws IOException {
+		final Replay replay = new Replay(match);
+		read(new Listener() {
+			public void event(Event event) {
+				if (event.match == match && event.seq <= seq)
+					replay.apply(event);
+			}
+		});
+		return replay;
+	}
+
+	/**
+	 * Reads one segment file
+	 * @param file Segment file
+	 * @param listener Receives the events
+	 * @return Number of records read
+	 * @throws IOException if the file cannot be read
+	 */
+	public static int read(File file, Listener listener) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer, listener);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads records from a buffer until its end or the first empty record
+	 * @param buffer Segment data
+	 * @param listener Receives the events
+	 * @return Number of records read
+	 * @throws IOException if a record is malformed
+	 */
+	public static int read(ByteBuffer buffer, Listener listener) throws IOException {
+		Event event = new Event();
+		int count = 0;
+		while (buffer.remaining() >= MatchJournal.HEADER_SIZE) {
+			int length = buffer.getShort() & 0xFFFF;
+			if (length == 0 || length > buffer.remaining())
+				break;
+			int end = buffer.position() + length;
+			try {
+				decode(buffer, event);
+			} catch (RuntimeException e) {
+				throw new IOException("Malformed record at " + (end - length - MatchJournal.HEADER_SIZE), e);
+			}
+			buffer.position(end);
+			listener.event(event);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Decodes a record body
+	 * @param buffer Buffer positioned at the body
+	 * @param event Event to decode into
+	 */
+	protected static void decode(ByteBuffer buffer, Event event) {
+		event.match = MatchJournal.getVarlong(buffer);
+		event.seq = WireFormat.getVarint(buffer);
+		event.type = buffer.get();
+		event.time = WireFormat.getVarint(buffer);
+		switch (event.type) {
+			case MatchJournal.START:
+			case MatchJournal.RULES:
+				event.started = MatchJournal.getVarlong(buffer);
+				event.rules = event.type == MatchJournal.RULES ? WireFormat.getRules(buffer) : GameRules.DEFAULT;
+				event.type = MatchJournal.START;
+				if (event.placements.length != 2 * event.rules.getShips())
+					event.placements = new int[2 * event.rules.getShips()];
+				for (int i=0; i<event.placements.length; i++)
+					event.placements[i] = WireFormat.getVarint(buffer);
+				break;
+			case MatchJournal.TURN:
+				event.player = WireFormat.getVarint(buffer);
+				break;
+			case MatchJournal.SHOT:
+				event.player = WireFormat.getVarint(buffer);
+				event.row = WireFormat.getVarint(buffer);
+				event.column = WireFormat.getVarint(buffer);
+				event.result = WireFormat.getVarint(buffer);
+				break;
+			case MatchJournal.END:
+				event.state = WireFormat.getVarint(buffer);
+				event.winner = WireFormat.getVarint(buffer);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown event type " + event.type);
+		}
+	}
+
+	/**
+	 * @param id Match id written as run:session
+	 * @return Match id
+	 * @throws IllegalArgumentException if the id is malformed
+	 */
+	public static long parseMatchId(String id) {
+		int colon = id.indexOf(':');
+		if (colon < 0)
+			throw new IllegalArgumentException(id);
+		return MatchJournal.matchId(Integer.parseInt(id.substring(0, colon)), Long.parseLong(id.substring(colon + 1)));
+	}
+
+	/**
+	 * @param match Match id
+	 * @return Match id written as run:session
+	 */
+	public static String formatMatchId(long match) {
+		return (match >>> 32) + ":" + (match & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,252 @@
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Layout pool keeps boards with freshly placed fleets ready for new game sessions,
+ * so placing fleets is not part of the time to the first turn.
+ * A background producer refills the pool to capacity whenever it drops below the low-water mark.
+ * Layouts are handed out oldest first and layouts older than the maximum age are evicted.
+ * When the pool is empty a layout is placed on the caller's thread with the thread's own placer,
+ * so a caller never waits for the producer.
+ * A failed placement is logged and retried after a pause, the producer keeps running.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class LayoutPool implements Runnable {
+
+	/** Pause after a failed placement before the producer tries again, in milliseconds */
+	protected static final long RETRY_DELAY = 1000;
+
+	/**
+	 * Pooled board and the time it was placed
+	 */
+	protected static class Layout {
+		final Board board;
+		final long created;
+
+		Layout(Board board, long created) {
+			this.board = board;
+			this.created = created;
+		}
+	}
+
+	/** Places fleets for the producer */
+	protected final FleetPlacer placer;
+	/** Places fleets on a miss, one placer for each calling thread */
+	protected final ThreadLocal<FleetPlacer> callerPlacers;
+	/** Log destination */
+	protected final ServerLog log;
+	/** Maximum number of layouts kept */
+	protected final int capacity;
+	/** Pool is refilled when fewer layouts are left */
+	protected final int lowWater;
+	/** Maximum age of a layout in milliseconds */
+	protected final long maxAge;
+	/** Layouts ready to be taken, oldest first */
+	protected final LinkedBlockingQueue<Layout> layouts;
+	/** Background producer */
+	protected Thread producer;
+	/** Indicates whether the producer should keep running */
+	protected volatile boolean running;
+	/** Time the pool dropped below the low-water mark, 0 if it has not */
+	protected final AtomicLong belowSince = new AtomicLong();
+
+	/** Layouts taken from the pool */
+	protected final AtomicLong hits = new AtomicLong();
+	/** Layouts placed on the caller's thread because the pool was empty */
+	protected final AtomicLong misses = new AtomicLong();
+	/** Layouts discarded because they were too old */
+	protected final AtomicLong evicted = new AtomicLong();
+	/** Placements the producer has given up on */
+	protected final AtomicLong failures = new AtomicLong();
+	/** Time the last refill took from dropping below the low-water mark, in milliseconds */
+	protected volatile long lastRefillLag;
+	/** Longest refill so far, in milliseconds */
+	protected volatile long maxRefillLag;
+
+	/**
+	 * @param placer Fleet placer of the producer, callers get placers for the same rules
+	 * @param log Log destination
+	 * @param capacity Maximum number of layouts kept
+	 * @param lowWater Pool is refilled when fewer layouts are left
+	 * @param maxAge Maximum age of a layout in milliseconds
+	 */
+	public LayoutPool(FleetPlacer placer, ServerLog log, int capacity, int lowWater, long maxAge) {
+		if (lowWater < 1 || lowWater > capacity)
+			throw new IllegalArgumentException("Low-water mark must be between 1 and capacity");
+		this.placer = placer;
+		final GameRules rules = placer.getRules();
+		callerPlacers = new ThreadLocal<FleetPlacer>() {
+			protected FleetPlacer initialValue() {
+				return new FleetPlacer(rules, new Random());
+			}
+		};
+		this.log = log;
+		this.capacity = capacity;
+		this.lowWater = lowWater;
+		this.maxAge = maxAge;
+		layouts = new LinkedBlockingQueue<Layout>(capacity);
+	}
+
+	/**
+	 * Starts the background producer
+	 */
+	public void start() {
+		running = true;
+		belowSince.set(System.currentTimeMillis());
+		producer = new Thread(this, "layout-producer");
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	/**
+	 * Stops the background producer
+	 */
+	public void stop() {
+		running = false;
+		if (producer != null)
+			producer.interrupt();
+	}
+
+	/**
+	 * Takes a board with a placed fleet
+	 * @return Board ready for a new game, owned by the caller
+	 * @throws IllegalStateException if the pool is empty and the fleet could not be placed
+	 */
+	public Board take() {
+		long now = System.currentTimeMillis();
+		Layout layout;
+		while ((layout = layouts.poll()) != null) {
+			if (now - layout.created <= maxAge)
+				break;
+			evicted.incrementAndGet();
+		}
+		if (layouts.size() < lowWater && belowSince.compareAndSet(0, now)) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+		if (layout != null) {
+			hits.incrementAndGet();
+			return layout.board;
+		}
+		misses.incrementAndGet();
+		return place(callerPlacers.get());
+	}
+
+	/**
+	 * Producer loop: evicts stale layouts and refills the pool when it runs low
+	 */
+	public void run() {
+		while (running) {
+			try {
+				synchronized (this) {
+					if (belowSince.get() == 0)
+						wait(Math.max(1, maxAge / 2));
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			evictStale();
+			if (layouts.size() >= lowWater && belowSince.get() == 0)
+				continue;
+			belowSince.compareAndSet(0, System.currentTimeMillis());
+			try {
+				while (running && layouts.remainingCapacity() > 0) {
+					layouts.offer(new Layout(place(placer), System.currentTimeMillis()));
+				}
+			} catch (IllegalStateException e) {
+				failures.incrementAndGet();
+				log.log("Layout pool could not place a fleet: " + e.getMessage() + ". Retrying...");
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch (InterruptedException i) {
+					return;
+				}
+				continue;
+			}
+			long lag = System.currentTimeMillis() - belowSince.getAndSet(0);
+			lastRefillLag = lag;
+			if (lag > maxRefillLag)
+				maxRefillLag = lag;
+		}
+	}
+
+	/**
+	 * Discards layouts older than the maximum age from the head of the pool
+	 */
+	protected void evictStale() {
+		long now = System.currentTimeMillis();
+		Layout oldest;
+		while ((oldest = layouts.peek()) != null && now - oldest.created > maxAge) {
+			if (layouts.remove(oldest))
+				evicted.incrementAndGet();
+		}
+		if (layouts.size() < lowWater)
+			belowSince.compareAndSet(0, now);
+	}
+
+	/**
+	 * Places a fleet on a new board
+	 * @param placer Placer owned by the calling thread
+	 * @return Board with placed fleet
+	 * @throws IllegalStateException if the fleet could not be placed
+	 */
+	protected Board place(FleetPlacer placer) {
+		Board board = new Board(placer.getRules());
+		placer.place(board);
+		return board;
+	}
+
+	/**
+	 * @return Rules the layouts are placed for
+	 */
+	public GameRules getRules() {
+		return placer.getRules();
+	}
+
+	/**
+	 * @return Number of layouts ready
+	 */
+	public int size() {
+		return layouts.size();
+	}
+
+	/**
+	 * @return Share of layouts served from the pool, between 0 and 1
+	 */
+	public double getHitRate() {
+		long h = hits.get(), m = misses.get();
+		return h + m == 0 ? 1 : h / (double)(h + m);
+	}
+
+	/**
+	 * @return Layouts discarded because they were too old
+	 */
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	/**
+	 * @return Placements the producer has given up on
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return Time the last refill took, in milliseconds
+	 */
+	public long getLastRefillLag() {
+		return lastRefillLag;
+	}
+
+	/**
+	 * @return Longest refill so far, in milliseconds
+	 */
+	public long getMaxRefillLag() {
+		return maxRefillLag;
+	}
+}
@@ -0,0 +1,86 @@
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Log buffer keeps the most recent server log lines in a bounded ring.
+ * Logging only stores a line and never blocks on output, so it is cheap on the accept and session paths.
+ * Appenders and viewers read the lines they have not seen yet by sequence number on their own threads;
+ * a reader which falls more than a ring behind is told how many lines it has missed.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class LogBuffer implements ServerLog {
+
+	/** Number of lines kept by default */
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/** Ring of log lines */
+	protected final String[] lines;
+	/** Number of lines logged so far, the next line's sequence number */
+	protected long written;
+	/** Number of readers waiting for new lines */
+	protected int waiting;
+	/** Formats time stamps */
+	protected final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+	/** Reused for time stamps */
+	protected final Date date = new Date();
+
+	/**
+	 * @param capacity Number of lines kept
+	 */
+	public LogBuffer(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive");
+		lines = new String[capacity];
+	}
+
+	@Override
+	public synchronized void log(String message) {
+		date.setTime(System.currentTimeMillis());
+		lines[(int)(written % lines.length)] = format.format(date) + " " + message;
+		written++;
+		if (waiting > 0)
+			notifyAll();
+	}
+
+	/**
+	 * Copies lines logged since a sequence number, waiting for new lines if there are none
+	 * @param from Sequence number of the first line wanted
+	 * @param into List to add the lines to
+	 * @param timeout Time to wait for new lines in milliseconds, 0 not to wait
+	 * @return Sequence number to read from next time
+	 * @throws InterruptedException if the reader is interrupted while waiting
+	 */
+	public synchronized long read(long from, List<String> into, long timeout) throws InterruptedException {
+		if (written <= from && timeout > 0) {
+			waiting++;
+			try {
+				wait(timeout);
+			} finally {
+				waiting--;
+			}
+		}
+		long first = Math.max(from, written - lines.length);
+		if (first > from)
+			into.add("... " + (first - from) + " lines dropped");
+		for (long i=first; i<written; i++)
+			into.add(lines[(int)(i % lines.length)]);
+		return written;
+	}
+
+	/**
+	 * @return Number of lines kept
+	 */
+	public int getCapacity() {
+		return lines.length;
+	}
+
+	/**
+	 * @return Number of lines logged so far
+	 */
+	public synchronized long getWritten() {
+		return written;
+	}
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log writer copies lines from a log buffer to a file or the console on a background thread.
+ * Lines are written in batches and flushed once per batch.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class LogWriter implements Runnable {
+
+	/** Time to wait for new lines before checking whether to stop, in milliseconds */
+	protected static final long POLL_INTERVAL = 1000;
+
+	/** Source of log lines */
+	protected LogBuffer buffer;
+	/** Destination of log lines */
+	protected Writer out;
+	/** Background writer */
+	protected Thread thread;
+	/** Indicates whether the writer should keep running */
+	protected volatile boolean running;
+	/** Sequence number of the next line to write */
+	protected long next;
+
+	/**
+	 * @param buffer Source of log lines
+	 * @param out Destination of log lines, flushed after each batch
+	 */
+	public LogWriter(LogBuffer buffer, Writer out) {
+		this.buffer = buffer;
+		this.out = out;
+	}
+
+	/**
+	 * Starts the background writer
+	 */
+	public void start() {
+		running = true;
+		thread = new Thread(this, "log-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Writes the remaining lines and stops the background writer
+	 */
+	public void stop() {
+		running = false;
+		if (thread == null)
+			return;
+		thread.interrupt();
+		try {
+			thread.join(POLL_INTERVAL);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writer loop
+	 */
+	public void run() {
+		List<String> batch = new ArrayList<String>();
+		try {
+			while (running) {
+				try {
+					next = buffer.read(next, batch, POLL_INTERVAL);
+				} catch (InterruptedException e) {
+					break;
+				}
+				write(batch);
+			}
+			next = buffer.read(next, batch, 0);
+			write(batch);
+		} catch (InterruptedException e) {
+			//Not waiting, cannot happen
+		} catch (IOException e) {
+			System.err.println("Could not write server log: " + e);
+		}
+	}
+
+	/**
+	 * Writes and clears a batch of lines
+	 * @param batch Lines to write
+	 * @throws IOException if the lines cannot be written
+	 */
+	protected void write(List<String> batch) throws IOException {
+		if (batch.isEmpty())
+			return;
+		for (String line : batch) {
+			out.write(line);
+			out.write(System.getProperty("line.separator"));
+		}
+		out.flush();
+		batch.clear();
+	}
+}
@@ -0,0 +1,483 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Match journal appends the events of every match to memory-mapped segment files:
+ * fleet placements, turn switches, shots with their results and the end of the game.
+ * A writer reserves space in the current segment with one atomic add and copies its record into the mapping,
+ * so session threads never wait for a lock or the disk. Only the writer running past the end of a segment
+ * takes a lock to map the next one. Segments are forced to disk by the server's reporter thread.
+ *
+ * A record is a 2 byte length followed by the body: match id, sequence number within the match,
+ * event type, milliseconds since the match started and the event's values, all variable length integers.
+ * The length is written last, a zero length marks the end of the data in a segment.
+ * Matches played by other than the default rules start with a RULES record instead of START,
+ * its size grows with the fleet and is bounded by the 2 byte length.
+ * Segments are never reopened for writing, a restarted server starts a new one.
+ * Session ids start from 1 whenever the server starts, so a match id is the number of the first segment
+ * written by the server run in the upper 32 bits and the session id in the lower.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class MatchJournal {
+
+	/** Default segment size in bytes */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	/** Segment file name prefix, the segment number follows */
+	public static final String PREFIX = "matches-";
+	/** Segment file name suffix */
+	public static final String SUFFIX = ".journal";
+	/** Size of the record header holding the body length */
+	public static final int HEADER_SIZE = 2;
+	/** Largest record body, RULES records aside */
+	protected static final int MAX_RECORD = 128;
+	/** Largest RULES record body */
+	protected static final int MAX_RULES_RECORD = 0xFFFF;
+
+	/** Match has started: fleet placements of both boards, time of the start in milliseconds */
+	public static final int START = 1;
+	/** A player's turn has started: player number */
+	public static final int TURN = 2;
+	/** A shot has been resolved: player number, row, column and Board result code */
+	public static final int SHOT = 3;
+	/** Match has ended: GameSession state and winner's player number, 0 if none */
+	public static final int END = 4;
+	/** Match has started by other rules than the default: time of the start in milliseconds, board size,
+	 * number of ships, ship lengths and the fleet placements of both boards */
+	public static final int RULES = 5;
+
+	/**
+	 * Memory-mapped segment file
+	 */
+	protected static class Segment {
+		/** Segment number */
+		final int number;
+		/** Segment file */
+		final File file;
+		/** File channel, kept open to truncate the last segment */
+		final FileChannel channel;
+		/** Mapping of the whole segment */
+		final MappedByteBuffer buffer;
+		/** Bytes reserved by writers, may run past the end when the segment is full */
+		final AtomicInteger reserved = new AtomicInteger();
+
+		Segment(int number, File file, FileChannel channel, MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * Records the events of one match. Used by the session thread only.
+	 */
+	public class Recorder {
+		/** Match id */
+		protected final long match;
+		/** Time the match started, in milliseconds */
+		protected long started;
+		/** Sequence number of the next event */
+		protected int seq;
+		/** Holds the record being encoded */
+		protected final ByteBuffer buffer = ByteBuffer.allocate(MAX_RECORD);
+
+		Recorder(long match) {
+			this.match = match;
+		}
+
+		/**
+		 * Records the start of the match
+		 * @param board1 Player 1's board
+		 * @param board2 Player 2's board
+		 */
+		public void start(Board board1, Board board2) {
+			started = System.currentTimeMillis();
+			GameRules rules = board1.getRules();
+			ByteBuffer record = buffer;
+			if (rules.isDefault()) {
+				begin(record, START);
+				putVarlong(record, started);
+			}
+			else {
+				record = ByteBuffer.allocate(Math.min(MAX_RULES_RECORD,
+						MAX_RECORD + 3 * rules.getShips() * WireFormat.MAX_VARINT_SIZE));
+				begin(record, RULES);
+				putVarlong(record, started);
+				WireFormat.putRules(record, rules);
+			}
+			for (int i=0; i<rules.getShips(); i++)
+				WireFormat.putVarint(record, board1.placement(i));
+			for (int i=0; i<rules.getShips(); i++)
+				WireFormat.putVarint(record, board2.placement(i));
+			append(record);
+		}
+
+		/**
+		 * Records the start of a player's turn
+		 * @param player Player number
+		 */
+		public void turn(int player) {
+			begin(TURN);
+			WireFormat.putVarint(buffer, player);
+			append(buffer);
+		}
+
+		/**
+		 * Records a resolved shot
+		 * @param player Shooter's player number
+		 * @param row Row number
+		 * @param column Column number
+		 * @param result Board.MISS, HIT, SUNK, REPEATED or INVALID
+		 */
+		public void shot(int player, int row, int column, int result) {
+			begin(SHOT);
+			WireFormat.putVarint(buffer, player);
+			WireFormat.putVarint(buffer, row);
+			WireFormat.putVarint(buffer, column);
+			WireFormat.putVarint(buffer, result);
+			append(buffer);
+		}
+
+		/**
+		 * Records the end of the match
+		 * @param state GameSession state the match has ended in
+		 * @param winner Winner's player number, 0 if none
+		 */
+		public void end(int state, int winner) {
+			begin(END);
+			WireFormat.putVarint(buffer, state);
+			WireFormat.putVarint(buffer, winner);
+			append(buffer);
+		}
+
+		/**
+		 * Starts a record
+		 * @param type Event type
+		 */
+		protected void begin(int type) {
+			begin(buffer, type);
+		}
+
+		/**
+		 * Starts a record in a buffer
+		 * @param record Buffer to encode the record in
+		 * @param type Event type
+		 */
+		protected void begin(ByteBuffer record, int type) {
+			record.clear();
+			putVarlong(record, match);
+			WireFormat.putVarint(record, seq++);
+			record.put((byte)type);
+			WireFormat.putVarint(record, type == START || type == RULES ? 0 : (int)(System.currentTimeMillis() - started));
+		}
+	}
+
+	/** Directory holding the segment files */
+	protected final File directory;
+	/** Segment size in bytes */
+	protected final int segmentSize;
+	/** Number of the first segment of this server run, the upper half of match ids */
+	protected final int run;
+	/** Segment records are appended to */
+	protected volatile Segment current;
+	/** Segments filled up and not forced to disk yet */
+	protected final List<Segment> filled = new ArrayList<Segment>();
+	/** Serialises forcing segments to disk and closing, writers never take it */
+	protected final Object flushLock = new Object();
+	/** Number of appends in progress */
+	protected final AtomicInteger writers = new AtomicInteger();
+	/** Set once the journal has been closed */
+	protected volatile boolean closed;
+	/** Number of records appended */
+	protected final AtomicLong records = new AtomicLong();
+	/** Number of bytes appended, headers included */
+	protected final AtomicLong bytes = new AtomicLong();
+	/** Number of records dropped because the journal was closed or could not be extended, or the record did not fit in a segment */
+	protected final AtomicLong dropped = new AtomicLong();
+	/** Number of segments opened */
+	protected final AtomicInteger segments = new AtomicInteger();
+
+	/**
+	 * Opens a journal and maps a new segment
+	 * @param directory Directory holding the segment files, created if missing
+	 * @param segmentSize Segment size in bytes
+	 * @throws IOException if the directory or the segment cannot be created
+	 */
+	public MatchJournal(File directory, int segmentSize) throws IOException {
+		if (segmentSize < HEADER_SIZE + MAX_RECORD)
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		int last = 0;
+		for (File file : segmentFiles(directory))
+			last = Math.max(last, segmentNumber(file));
+		run = last + 1;
+		current = open(run);
+	}
+
+	/**
+	 * @param session Session id
+	 * @return Recorder of the match's events
+	 */
+	public Recorder recorder(long session) {
+		return new Recorder(matchId(run, session));
+	}
+
+	/**
+	 * @param run Number of the first segment written by the server run
+	 * @param session Session id
+	 * @return Match id
+	 */
+	public static long matchId(int run, long session) {
+		return (long)run << 32 | session & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Appends a record
+	 * @param record Buffer holding the record body from index 0 to its position
+	 * @return true if the record has been appended
+	 */
+	protected boolean append(ByteBuffer record) {
+		int length = record.position();
+		int size = HEADER_SIZE + length;
+		if (length > MAX_RULES_RECORD || size > segmentSize) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		writers.incrementAndGet();
+		try {
+			while (!closed) {
+				Segment segment = current;
+				int at = segment.reserved.getAndAdd(size);
+				if (at >= 0 && at <= segmentSize - size) {
+					ByteBuffer target = segment.buffer.duplicate();
+					target.position(at + HEADER_SIZE);
+					target.put(record.array(), 0, length);
+					target.putShort(at, (short)length);
+					records.incrementAndGet();
+					bytes.addAndGet(size);
+					return true;
+				}
+				if (!roll(segment))
+					break;
+			}
+		} finally {
+			writers.decrementAndGet();
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Maps the next segment unless another writer has done so already
+	 * @param full Segment found full
+	 * @return false if the next segment cannot be created
+	 */
+	protected synchronized boolean roll(Segment full) {
+		if (current != full)
+			return true;
+		if (closed)
+			return false;
+		try {
+			current = open(full.number + 1);
+		} catch (IOException e) {
+			return false;
+		}
+		filled.add(full);
+		return true;
+	}
+
+	/**
+	 * Creates and maps a segment file
+	 * @param number Segment number
+	 * @return Segment
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	protected Segment open(int number) throws IOException {
+		File file = new File(directory, String.format("%s%08d%s", PREFIX, number, SUFFIX));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			segments.incrementAndGet();
+			return new Segment(number, file, channel, buffer);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Forces the segments written since the last call to disk. Run by a background thread.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			List<Segment> done;
+			synchronized (this) {
+				if (closed)
+					return;
+				done = new ArrayList<Segment>(filled);
+				filled.clear();
+			}
+			for (Segment segment : done) {
+				segment.buffer.force();
+				closeQuietly(segment.channel);
+			}
+			current.buffer.force();
+		}
+	}
+
+	/**
+	 * Stops appending, forces all segments to disk and cuts the last one to the data written.
+	 * Records appended afterwards are dropped.
+	 */
+	public void close() {
+		synchronized (flushLock) {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+			while (writers.get() > 0)
+				Thread.yield();
+			for (Segment segment : filled) {
+				segment.buffer.force();
+				closeQuietly(segment.channel);
+			}
+			filled.clear();
+			Segment last = current;
+			last.buffer.force();
+			try {
+				last.channel.truncate(Math.min(segmentSize, last.reserved.get()));
+			} catch (IOException e) {
+				//The tail stays zero filled, readers stop at the first empty record
+			}
+			closeQuietly(last.channel);
+		}
+	}
+
+	/**
+	 * @return Number of records appended
+	 */
+	public long getRecords() {
+		return records.get();
+	}
+
+	/**
+	 * @return Number of bytes appended, headers included
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return Number of records dropped
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of segments opened
+	 */
+	public int getSegments() {
+		return segments.get();
+	}
+
+	/**
+	 * @return Directory holding the segment files
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Lists the segment files of a journal
+	 * @param directory Journal directory
+	 * @return Segment files in the order they were written
+	 */
+	public static File[] segmentFiles(File directory) {
+		File[] files = directory.listFiles();
+		List<File> found = new ArrayList<File>();
+		if (files != null) {
+			for (File file : files) {
+				if (segmentNumber(file) > 0)
+					found.add(file);
+			}
+		}
+		File[] sorted = found.toArray(new File[found.size()]);
+		//Names are zero padded, so sorting by name sorts by number
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @param file Journal file
+	 * @return Segment number, 0 if the file is not a segment
+	 */
+	protected static int segmentNumber(File file) {
+		String name = file.getName();
+		if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+			return 0;
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Writes a non-negative variable length long
+	 * @param buffer Target buffer
+	 * @param value Value to write
+	 */
+	public static void putVarlong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+	}
+
+	/**
+	 * Reads a non-negative variable length long
+	 * @param buffer Source buffer
+	 * @return Decoded value
+	 * @throws IllegalArgumentException if the value is malformed
+	 */
+	public static long getVarlong(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = buffer.get();
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varlong");
+	}
+
+	/**
+	 * Closes a channel quietly
+	 * @param channel File channel
+	 */
+	protected static void closeQuietly(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			//Already closed
+		}
+	}
+}
@@ -0,0 +1,585 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Matchmaker keeps players waiting for an opponent and pairs them by rating and round trip time,
+ * so close games are played and a fast player's turns are not held up by a slow connection.
+ * Waiting players are kept in buckets of similar rating, so finding an opponent only looks
+ * at the few buckets within the accepted rating difference however many players are waiting.
+ * The accepted differences widen the longer a player waits, after MATCH_ANYONE_AFTER any opponent is accepted.
+ * When a paired player leaves before the game starts, the opponent goes back to the pool
+ * keeping the time already waited, clients reading lobby messages are told first and announced again when paired.
+ * Nobody reads from a player who has pressed play while he waits, so he is sent a keepalive every
+ * KEEPALIVE_INTERVAL and dropped if it cannot be sent or he has waited for the idle timeout.
+ * A closed matchmaker turns every player away.
+ * A player left waiting for the AI timeout is paired with the server's AI player instead.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class Matchmaker {
+
+	/** Round trip time of clients which have not been measured */
+	public static final int UNKNOWN_RTT = -1;
+	/** Width of a rating bucket */
+	protected static final int BUCKET_WIDTH = 50;
+	/** Rating difference accepted straight away */
+	protected static final int RATING_TOLERANCE = 100;
+	/** Round trip time difference accepted straight away, in milliseconds */
+	protected static final int RTT_TOLERANCE = 30;
+	/** Time after which the accepted differences widen by one step, in milliseconds */
+	protected static final long WIDEN_INTERVAL = 5000;
+	/** Time after which any opponent is accepted, in milliseconds */
+	protected static final long MATCH_ANYONE_AFTER = 30000;
+	/** Rating points weighed the same as one millisecond of round trip time difference */
+	protected static final int RTT_WEIGHT = 2;
+	/** Interval between keepalives sent to players who have pressed play and wait, in milliseconds */
+	protected static final long KEEPALIVE_INTERVAL = PlayerConnection.HEARTBEAT_INTERVAL;
+
+	/**
+	 * Starts a game for two players who have both pressed play
+	 */
+	public interface Launcher {
+		/**
+		 * @param player1 Player who has waited longer
+		 * @param player2 Opponent
+		 */
+		void launch(PlayerConnection player1, PlayerConnection player2);
+	}
+
+	/**
+	 * Matchmaking state of one player
+	 */
+	protected static class Ticket {
+		final PlayerConnection player;
+		final int rating;
+		final int rtt;
+		/** Time the player joined, in milliseconds */
+		final long joined;
+		/** Widening step of the last search for an opponent */
+		int step;
+		/** Player has pressed play */
+		boolean ready;
+		/** Time the player pressed play, in milliseconds */
+		long readySince;
+		/** Time of the last keepalive, in milliseconds */
+		long lastKeepAlive;
+		/** Player has been told that an opponent has joined, this is only done once */
+		boolean announced;
+		/** Player is in the pool */
+		boolean waiting;
+		/** Paired opponent, null while waiting */
+		Ticket opponent;
+
+		Ticket(PlayerConnection player, int rating, int rtt, long joined) {
+			this.player = player;
+			this.rating = rating;
+			this.rtt = rtt;
+			this.joined = joined;
+		}
+	}
+
+	/**
+	 * Pairing made while holding the lock, announced and launched after releasing it
+	 */
+	protected static class Match {
+		Ticket first, second;
+		boolean announceFirst, announceSecond, launch;
+	}
+
+	/** Log destination */
+	protected ServerLog log;
+	/** Starts games */
+	protected Launcher launcher;
+	/** Player ratings */
+	protected RatingTable ratings;
+	/** Waiting players by rating bucket, oldest first within a bucket */
+	protected final TreeMap<Integer, LinkedHashSet<Ticket>> pool = new TreeMap<Integer, LinkedHashSet<Ticket>>();
+	/** Waiting players in the order they entered the pool */
+	protected final LinkedHashSet<Ticket> queue = new LinkedHashSet<Ticket>();
+	/** Players waiting or paired, until their game starts or they leave */
+	protected final Set<Ticket> tickets = new HashSet<Ticket>();
+	/** Milliseconds from joining to being paired */
+	protected final LatencyHistogram timeToMatch = new LatencyHistogram();
+	/** Players put back in the pool after their opponent left */
+	protected long requeued;
+	/** Largest number of players waiting at once */
+	protected int maxWaiting;
+	/** Set once the matchmaker has been closed */
+	protected boolean closed;
+	/** Time after which a waiting player is paired with the AI player, in milliseconds, 0 for never */
+	protected long aiTimeout;
+	/** Players paired with the AI player */
+	protected long aiMatches;
+	/** Time a player who has pressed play may wait, in milliseconds, 0 for no limit */
+	protected long idleTimeout;
+	/** Players dropped while waiting after pressing play */
+	protected long dropped;
+
+	/**
+	 * @param log Log destination
+	 * @param launcher Starts games
+	 * @param ratings Player ratings
+	 */
+	public Matchmaker(ServerLog log, Launcher launcher, RatingTable ratings) {
+		this.log = log;
+		this.launcher = launcher;
+		this.ratings = ratings;
+	}
+
+	/**
+	 * @param player Player connection
+	 * @return Key the player's rating is kept under, null for clients which have announced no identity
+	 */
+	public static String key(PlayerConnection player) {
+		if (player instanceof AiPlayer)
+			return AiPlayer.RATING_KEY;
+		return player.getIdentity() != 0 ? "player:" + Long.toHexString(player.getIdentity()) : null;
+	}
+
+	/**
+	 * Adds a player who has just connected, pairing him straight away if a suitable opponent is waiting
+	 * @param player Player who has joined
+	 * @param rtt Round trip time of the greeting in milliseconds, UNKNOWN_RTT if it has not been measured
+	 */
+	public void join(PlayerConnection player, int rtt) {
+		Ticket ticket = new Ticket(player, ratings.get(key(player)), rtt, System.currentTimeMillis());
+		Match match = null;
+		boolean accepted;
+		synchronized (this) {
+			accepted = !closed;
+			if (accepted) {
+				player.ticket = ticket;
+				tickets.add(ticket);
+				match = place(ticket, ticket.joined);
+			}
+		}
+		if (!accepted) {
+			player.send("disconnect");
+			player.close();
+			return;
+		}
+		if (match == null)
+			log.log("Player " + player + " (rating " + ticket.rating + ", rtt " + rttText(rtt)
+					+ ") has joined. Waiting for an opponent...");
+		complete(match);
+	}
+
+	/**
+	 * Marks a player ready and starts the game if the opponent is ready too.
+	 * A player without an opponent stays in the pool ready to play.
+	 * @param player Player who has pressed play
+	 */
+	public void ready(PlayerConnection player) {
+		Match match = null;
+		synchronized (this) {
+			Ticket ticket = player.ticket;
+			if (ticket == null)
+				return;
+			ticket.ready = true;
+			ticket.readySince = ticket.lastKeepAlive = System.currentTimeMillis();
+			Ticket opponent = ticket.opponent;
+			if (opponent != null && opponent.ready) {
+				match = new Match();
+				match.first = opponent.joined <= ticket.joined ? opponent : ticket;
+				match.second = match.first.opponent;
+				match.launch = true;
+				finish(ticket);
+				finish(opponent);
+			}
+		}
+		complete(match);
+	}
+
+	/**
+	 * Removes a player who has disconnected or left before the game started and closes his connection.
+	 * A paired opponent goes back to the pool.
+	 * @param player Player who has left
+	 */
+	public void leave(PlayerConnection player) {
+		Ticket survivor = null;
+		synchronized (this) {
+			Ticket ticket = player.ticket;
+			if (ticket != null) {
+				remove(ticket);
+				survivor = ticket.opponent;
+				finish(ticket);
+				//The AI player is made for one opponent and does not wait for another
+				if (survivor != null && survivor.player instanceof AiPlayer) {
+					finish(survivor);
+					survivor = null;
+				}
+				if (survivor != null) {
+					survivor.opponent = null;
+					requeued++;
+				}
+			}
+		}
+		player.close();
+		if (survivor != null)
+			requeue(survivor);
+	}
+
+	/**
+	 * Tells a player whose opponent has left and puts him back in the pool.
+	 * He is out of the pool until he has been told, so no new opponent is announced before.
+	 * @param survivor Player whose opponent has left
+	 */
+	protected void requeue(Ticket survivor) {
+		PlayerConnection player = survivor.player;
+		if (player.isLobbyOpen() && !player.send(WireFormat.OPPONENT_LEFT)) {
+			leave(player);
+			return;
+		}
+		Match match;
+		synchronized (this) {
+			if (!tickets.contains(survivor))
+				return;
+			if (player.isLobbyOpen())
+				survivor.announced = false;
+			match = place(survivor, System.currentTimeMillis());
+		}
+		if (match == null)
+			log.log("Opponent of " + player + " has left. Back to waiting for an opponent...");
+		complete(match);
+	}
+
+	/**
+	 * Stops matchmaking. Players who have not pressed play are told to look for another server,
+	 * all players waiting or paired are disconnected.
+	 */
+	public void close() {
+		List<Ticket> turnedAway;
+		synchronized (this) {
+			closed = true;
+			turnedAway = new ArrayList<Ticket>(tickets);
+			for (Ticket ticket : turnedAway) {
+				ticket.waiting = false;
+				finish(ticket);
+			}
+			queue.clear();
+			pool.clear();
+		}
+		for (Ticket ticket : turnedAway) {
+			if (!ticket.ready || ticket.player.isLobbyOpen())
+				ticket.player.send("disconnect");
+			ticket.player.close();
+		}
+		if (!turnedAway.isEmpty())
+			log.log("Matchmaking closed, " + turnedAway.size() + " players turned away.");
+	}
+
+	/**
+	 * @param aiTimeout Time after which a waiting player is paired with the AI player, in milliseconds, 0 for never
+	 */
+	public synchronized void setAiTimeout(long aiTimeout) {
+		this.aiTimeout = aiTimeout;
+	}
+
+	/**
+	 * @param idleTimeout Time a player who has pressed play may wait, in milliseconds, 0 for no limit
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Checks on waiting players who have pressed play, searches again for players whose accepted differences
+	 * have widened since their last search and pairs players who have waited for the AI timeout with the AI player.
+	 * Called periodically.
+	 */
+	public void sweep() {
+		List<Match> matches = new ArrayList<Match>();
+		long now = System.currentTimeMillis();
+		keepAlive(now);
+		synchronized (this) {
+			for (Ticket ticket : queue.toArray(new Ticket[queue.size()])) {
+				if (!ticket.waiting)
+					continue;
+				if (aiTimeout > 0 && now - ticket.joined >= aiTimeout) {
+					remove(ticket);
+					matches.add(pairWithAi(ticket, now));
+					continue;
+				}
+				if (step(ticket, now) == ticket.step)
+					continue;
+				remove(ticket);
+				Match match = place(ticket, now);
+				if (match != null)
+					matches.add(match);
+			}
+		}
+		for (Match match : matches)
+			complete(match);
+	}
+
+	/**
+	 * Sends keepalives to waiting players who have pressed play and drops those who are gone or have waited too long.
+	 * A player is out of the pool while his keepalive is sent, so no game starts writing to him meanwhile.
+	 * @param now Current time in milliseconds
+	 */
+	protected void keepAlive(long now) {
+		List<Ticket> due = new ArrayList<Ticket>();
+		long timeout;
+		synchronized (this) {
+			timeout = idleTimeout;
+			for (Ticket ticket : queue.toArray(new Ticket[queue.size()])) {
+				if (ticket.ready && now - ticket.lastKeepAlive >= KEEPALIVE_INTERVAL) {
+					remove(ticket);
+					due.add(ticket);
+				}
+			}
+		}
+		for (Ticket ticket : due) {
+			ticket.lastKeepAlive = now;
+			boolean idle = timeout > 0 && now - ticket.readySince >= timeout;
+			if (idle || !ticket.player.keepAlive()) {
+				synchronized (this) {
+					dropped++;
+				}
+				log.log("Player " + ticket.player + (idle ? " has waited too long for an opponent." : " has gone while waiting for an opponent."));
+				leave(ticket.player);
+				continue;
+			}
+			Match match = null;
+			synchronized (this) {
+				if (tickets.contains(ticket))
+					match = place(ticket, now);
+			}
+			complete(match);
+		}
+	}
+
+	/**
+	 * Pairs a ticket with the best opponent waiting or adds it to the pool. Must hold the lock.
+	 * @param ticket Player looking for an opponent
+	 * @param now Current time in milliseconds
+	 * @return Pairing made, null if the player waits
+	 */
+	protected Match place(Ticket ticket, long now) {
+		ticket.step = step(ticket, now);
+		Ticket opponent = find(ticket);
+		if (opponent == null) {
+			add(ticket);
+			return null;
+		}
+		remove(opponent);
+		ticket.opponent = opponent;
+		opponent.opponent = ticket;
+		timeToMatch.record(now - ticket.joined);
+		timeToMatch.record(now - opponent.joined);
+
+		Match match = new Match();
+		match.first = opponent.joined <= ticket.joined ? opponent : ticket;
+		match.second = match.first.opponent;
+		match.announceFirst = !match.first.announced;
+		match.announceSecond = !match.second.announced;
+		match.first.announced = true;
+		match.second.announced = true;
+		if (ticket.ready && opponent.ready) {
+			match.launch = true;
+			finish(ticket);
+			finish(opponent);
+		}
+		return match;
+	}
+
+	/**
+	 * Pairs a player taken out of the pool with a new AI player, which is always ready. Must hold the lock.
+	 * @param ticket Player who has waited for the AI timeout
+	 * @param now Current time in milliseconds
+	 * @return Pairing made
+	 */
+	protected Match pairWithAi(Ticket ticket, long now) {
+		AiPlayer ai = new AiPlayer();
+		Ticket opponent = new Ticket(ai, ratings.get(AiPlayer.RATING_KEY), UNKNOWN_RTT, now);
+		opponent.ready = true;
+		opponent.announced = true;
+		ai.ticket = opponent;
+		ticket.opponent = opponent;
+		opponent.opponent = ticket;
+		timeToMatch.record(now - ticket.joined);
+		aiMatches++;
+
+		Match match = new Match();
+		match.first = ticket;
+		match.second = opponent;
+		match.announceFirst = !ticket.announced;
+		ticket.announced = true;
+		if (ticket.ready) {
+			match.launch = true;
+			finish(ticket);
+			finish(opponent);
+		}
+		return match;
+	}
+
+	/**
+	 * Finds the waiting player closest in rating and round trip time within the accepted differences
+	 * @param ticket Player looking for an opponent
+	 * @return Opponent, null if none is acceptable
+	 */
+	protected Ticket find(Ticket ticket) {
+		boolean anyone = ticket.step < 0;
+		int ratingTolerance = RATING_TOLERANCE * (ticket.step + 1);
+		int rttTolerance = RTT_TOLERANCE * (ticket.step + 1);
+		Map<Integer, LinkedHashSet<Ticket>> buckets = anyone ? pool
+				: pool.subMap(bucket(ticket.rating - ratingTolerance), true, bucket(ticket.rating + ratingTolerance), true);
+		Ticket best = null;
+		long bestCost = Long.MAX_VALUE;
+		for (LinkedHashSet<Ticket> bucket : buckets.values()) {
+			for (Ticket candidate : bucket) {
+				int ratingDifference = Math.abs(candidate.rating - ticket.rating);
+				int rttDifference = ticket.rtt == UNKNOWN_RTT || candidate.rtt == UNKNOWN_RTT ? 0
+						: Math.abs(candidate.rtt - ticket.rtt);
+				if (!anyone && (ratingDifference > ratingTolerance || rttDifference > rttTolerance))
+					continue;
+				long cost = ratingDifference + (long)RTT_WEIGHT * rttDifference;
+				if (cost < bestCost) {
+					best = candidate;
+					bestCost = cost;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param ticket Waiting player
+	 * @param now Current time in milliseconds
+	 * @return Number of times the accepted differences have widened, -1 once any opponent is accepted
+	 */
+	protected static int step(Ticket ticket, long now) {
+		long waited = now - ticket.joined;
+		return waited >= MATCH_ANYONE_AFTER ? -1 : (int)(waited / WIDEN_INTERVAL);
+	}
+
+	/**
+	 * @param rating Rating
+	 * @return Bucket number
+	 */
+	protected static int bucket(int rating) {
+		return Math.max(0, rating) / BUCKET_WIDTH;
+	}
+
+	/**
+	 * Adds a ticket to the pool. Must hold the lock.
+	 * @param ticket Waiting player
+	 */
+	protected void add(Ticket ticket) {
+		LinkedHashSet<Ticket> bucket = pool.get(bucket(ticket.rating));
+		if (bucket == null) {
+			bucket = new LinkedHashSet<Ticket>();
+			pool.put(bucket(ticket.rating), bucket);
+		}
+		bucket.add(ticket);
+		queue.add(ticket);
+		ticket.waiting = true;
+		maxWaiting = Math.max(maxWaiting, queue.size());
+	}
+
+	/**
+	 * Removes a ticket from the pool if it is there. Must hold the lock.
+	 * @param ticket Player
+	 */
+	protected void remove(Ticket ticket) {
+		if (!ticket.waiting)
+			return;
+		ticket.waiting = false;
+		queue.remove(ticket);
+		LinkedHashSet<Ticket> bucket = pool.get(bucket(ticket.rating));
+		bucket.remove(ticket);
+		if (bucket.isEmpty())
+			pool.remove(bucket(ticket.rating));
+	}
+
+	/**
+	 * Detaches a ticket from its player once the game starts or the player leaves. Must hold the lock.
+	 * @param ticket Player's ticket
+	 */
+	protected void finish(Ticket ticket) {
+		tickets.remove(ticket);
+		ticket.player.ticket = null;
+	}
+
+	/**
+	 * Tells paired players that an opponent has joined and starts the game if both are ready.
+	 * Called without holding the lock, sending may block.
+	 * @param match Pairing made, may be null
+	 */
+	protected void complete(Match match) {
+		if (match == null)
+			return;
+		if (match.announceFirst)
+			match.first.player.send("player2");
+		if (match.announceSecond)
+			match.second.player.send("player2");
+		if (match.launch) {
+			launcher.launch(match.first.player, match.second.player);
+		}
+		else {
+			log.log("Player " + match.second.player + " (rating " + match.second.rating + ", rtt "
+					+ rttText(match.second.rtt) + ") has been paired with " + match.first.player + " (rating "
+					+ match.first.rating + ", rtt " + rttText(match.first.rtt) + "). Waiting for both to press play...");
+		}
+	}
+
+	/**
+	 * @param winner Winner's connection
+	 * @param loser Loser's connection
+	 */
+	public void recordWin(PlayerConnection winner, PlayerConnection loser) {
+		ratings.recordWin(key(winner), key(loser));
+	}
+
+	private static String rttText(int rtt) {
+		return rtt == UNKNOWN_RTT ? "unknown" : rtt + " ms";
+	}
+
+	/**
+	 * @return Number of players waiting for an opponent
+	 */
+	public synchronized int getWaiting() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Largest number of players waiting at once
+	 */
+	public synchronized int getMaxWaiting() {
+		return maxWaiting;
+	}
+
+	/**
+	 * @return Number of players put back in the pool after their opponent left
+	 */
+	public synchronized long getRequeued() {
+		return requeued;
+	}
+
+	/**
+	 * @return Number of players dropped while waiting after pressing play
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return Number of players paired with the AI player
+	 */
+	public synchronized long getAiMatches() {
+		return aiMatches;
+	}
+
+	/**
+	 * @return Milliseconds from joining to being paired
+	 */
+	public LatencyHistogram getTimeToMatch() {
+		return timeToMatch;
+	}
+}
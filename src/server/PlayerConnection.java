@@ -0,0 +1,565 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+
+/**
+ * Player connection wraps a client socket and its object streams.
+ * It is owned by the server engine while the player is in the lobby
+ * and handed over to a game session once the game starts.
+ * Clients which announce binary protocol support in the lobby are switched
+ * to binary frames when the game starts, other clients keep receiving serialised objects.
+ * From protocol version 2 turn results are sent as incremental updates carrying only
+ * the changed ship, with a full snapshot every SNAPSHOT_INTERVAL messages or when the client asks for one.
+ * From protocol version 4 a player who is quiet for HEARTBEAT_INTERVAL while his turn is awaited is pinged,
+ * one who has not been heard of for HEARTBEAT_TIMEOUT is considered gone.
+ * From protocol version 5 a player is given a resume token and the frames sent to him are journaled:
+ * if his connection drops he may reconnect within RESUME_TIMEOUT and is sent the frames he has missed.
+ * From protocol version 8 the server answers the hello and the client keeps reading lobby messages
+ * until the game starts, so a player who has pressed play can be told that his opponent has left.
+ * A write blocking for longer than WRITE_TIMEOUT closes the socket, as if the connection had dropped.
+ * Players without a client socket, such as the server's AI player, extend it and take over the methods a game session calls.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class PlayerConnection {
+
+	/** Number of incremental updates sent between two full snapshots */
+	protected static final int SNAPSHOT_INTERVAL = 32;
+	/** Quiet time after which a player is pinged, in milliseconds */
+	protected static final int HEARTBEAT_INTERVAL = 5000;
+	/** Quiet time after which a player answering pings is considered gone, in milliseconds */
+	protected static final long HEARTBEAT_TIMEOUT = 15000;
+	/** Time a player whose connection has dropped has to reconnect, in milliseconds */
+	protected static final long RESUME_TIMEOUT = 30000;
+	/** Longest time a write to the player may block before his socket is closed, in milliseconds */
+	protected static final long WRITE_TIMEOUT = 10000;
+
+	/** Generates resume tokens */
+	protected static final SecureRandom tokens = new SecureRandom();
+
+	/**
+	 * Player has not answered in time
+	 */
+	public static class TimeoutException extends SocketTimeoutException {
+		private static final long serialVersionUID = 1L;
+		/** true if the player stopped answering pings, false if he took too long for his turn */
+		protected final boolean heartbeatMissed;
+
+		TimeoutException(String message, boolean heartbeatMissed) {
+			super(message);
+			this.heartbeatMissed = heartbeatMissed;
+		}
+
+		/**
+		 * @return true if the player stopped answering pings, false if he took too long for his turn
+		 */
+		public boolean isHeartbeatMissed() {
+			return heartbeatMissed;
+		}
+	}
+
+	/** Client socket, replaced when the player resumes */
+	protected volatile Socket socket;
+	/** Socket input, counting bytes received */
+	protected volatile CountingInputStream input;
+	/** Socket output, counting bytes sent */
+	protected volatile CountingOutputStream output;
+	/** Socket output closing the socket when a write blocks for too long */
+	protected volatile DeadlineOutputStream deadline;
+	/** Bytes received over connections replaced by resuming */
+	protected volatile long receivedBefore;
+	/** Bytes sent over connections replaced by resuming */
+	protected volatile long sentBefore;
+	/** Enables object output to player */
+	protected ObjectOutputStream out;
+	/** Enables object input from player */
+	protected ObjectInputStream in;
+	/** Matchmaking state, null before joining and once the game has started */
+	protected Matchmaker.Ticket ticket;
+	/** Negotiated binary protocol version, 0 if the client only understands serialised objects */
+	protected int version;
+	/** Identity announced by the client, 0 if it has announced none */
+	protected long identity;
+	/** Set once the server has answered the hello, the client reads lobby messages until START */
+	protected volatile boolean lobbyOpen;
+	/** Binary frames, used once the game has started if a version has been negotiated */
+	protected FrameIO frames;
+	/** Incremental updates sent since the last full snapshot */
+	protected int updatesSinceSnapshot;
+	/** Indicates that the client has asked for a full snapshot */
+	protected volatile boolean resyncRequested;
+	/** Token the player resumes the game with, 0 if the client cannot resume */
+	protected long token;
+	/** Frames with a journal, null if the client cannot resume */
+	protected ReplayFrameIO replay;
+	/** Number of times the player has resumed */
+	protected volatile int generation;
+	/** Set once the connection has been closed for good */
+	protected boolean closed;
+
+	/**
+	 * Opens object streams on a client socket.
+	 * Blocks until the client's stream header arrives or the socket times out.
+	 *
+	 * @param socket Client socket
+	 * @throws IOException if the streams cannot be opened
+	 */
+	public PlayerConnection(Socket socket) throws IOException {
+		this.socket = socket;
+		input = new CountingInputStream(socket.getInputStream());
+		deadline = new DeadlineOutputStream(socket, WRITE_TIMEOUT);
+		output = new CountingOutputStream(deadline);
+		out = new ObjectOutputStream(output);
+		out.flush();
+		in = new ObjectInputStream(input);
+	}
+
+	/**
+	 * For players without a client socket, they override every method using it
+	 */
+	protected PlayerConnection() {
+	}
+
+	/**
+	 * Sends a message to the player
+	 * @param message Message object
+	 * @return true if the message has been sent
+	 */
+	public synchronized boolean send(Object message) {
+		try {
+			out.writeObject(message);
+			out.flush();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads next message from the player
+	 * @return Message object
+	 * @throws IOException if the connection is broken
+	 * @throws ClassNotFoundException if the object cannot be deserialised
+	 */
+	public Object read() throws IOException, ClassNotFoundException {
+		return in.readObject();
+	}
+
+	/**
+	 * Records the protocol version and identity announced by the client
+	 * @param clientVersion Highest version the client speaks
+	 * @param identity Identity carried by the hello, 0 for none
+	 */
+	public void negotiate(int clientVersion, long identity) {
+		version = Math.min(clientVersion, WireFormat.VERSION);
+		if (version >= WireFormat.IDENTITY_VERSION)
+			this.identity = identity;
+	}
+
+	/**
+	 * Answers the hello of a client which keeps reading lobby messages until the game starts
+	 * @return false if the answer could not be sent
+	 */
+	public boolean openLobby() {
+		if (version < WireFormat.LOBBY_VERSION)
+			return true;
+		lobbyOpen = true;
+		return send(WireFormat.HELLO + WireFormat.VERSION);
+	}
+
+	/**
+	 * @return true if the client reads lobby messages until the game starts
+	 */
+	public boolean isLobbyOpen() {
+		return lobbyOpen;
+	}
+
+	/**
+	 * Tells a client reading lobby messages that the game starts, binary frames follow
+	 */
+	public void sendStart() {
+		if (lobbyOpen)
+			send(WireFormat.START);
+	}
+
+	/**
+	 * Checks on a player who has pressed play and waits for an opponent, nobody reads from him meanwhile.
+	 * Clients reading lobby messages are sent a keepalive, protocol version 4 clients a PING frame,
+	 * their PONG is left for the game session, which skips it. Other clients cannot be checked.
+	 * @return false if the connection is broken
+	 */
+	public boolean keepAlive() {
+		if (lobbyOpen)
+			return send(WireFormat.KEEPALIVE);
+		if (frames == null || frames.getVersion() < WireFormat.HEARTBEAT_VERSION)
+			return true;
+		try {
+			frames.sendPing();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return Identity announced by the client, 0 if it has announced none
+	 */
+	public long getIdentity() {
+		return identity;
+	}
+
+	/**
+	 * Switches the connection to binary frames if a protocol version has been negotiated.
+	 * Called after the player has pressed play, no serialised objects are exchanged afterwards.
+	 * Clients able to resume are given a resume token, unless a game by the rules is too long to be journaled.
+	 * The journal is sized for the default rules as well, which the game falls back to if the opponent does not know the rules.
+	 * @param rules Rules the engine's games are played by
+	 */
+	public void startGame(GameRules rules) {
+		long journal = Math.max(ReplayFrameIO.journalSize(GameRules.DEFAULT), supportsRules(rules) ? ReplayFrameIO.journalSize(rules) : 0);
+		if (version >= WireFormat.RESUME_VERSION && journal <= ReplayFrameIO.MAX_JOURNAL) {
+			frames = replay = new ReplayFrameIO(input, output, version, (int)journal);
+			while (token == 0)
+				token = tokens.nextLong();
+		}
+		else if (version > 0) {
+			frames = new FrameIO(input, output, version);
+		}
+	}
+
+	/**
+	 * @return Token the player resumes the game with, 0 if the client cannot resume
+	 */
+	public long getToken() {
+		return token;
+	}
+
+	/**
+	 * Sends the resume token, if the client can resume
+	 * @throws IOException if the token cannot be sent
+	 */
+	public void sendResumeToken() throws IOException {
+		if (replay != null)
+			frames.sendResumeToken(token);
+	}
+
+	/**
+	 * Takes over the connection of a player who has reconnected with this player's resume token.
+	 * The dropped connection is closed, the client is told that the game resumes
+	 * and sent the frames it has missed. Frames sent by the game meanwhile wait for the replay.
+	 * @param replacement Connection the player has reconnected on
+	 * @param received Number of frames the client has received
+	 * @return Number of frames replayed, -1 if the game cannot be resumed
+	 */
+	public int resume(PlayerConnection replacement, int received) {
+		synchronized (this) {
+			if (replay == null || closed || !replay.canReplay(received))
+				return -1;
+		}
+		//Unblocks the session thread if it is reading from or writing to the dropped connection
+		closeSocket(socket);
+		int replayed = -1;
+		try {
+			synchronized (replay) {
+				if (!replacement.send(WireFormat.RESUMED))
+					return -1;
+				replacement.socket.setSoTimeout(0);
+				receivedBefore += input.getCount();
+				sentBefore += output.getCount();
+				socket = replacement.socket;
+				input = replacement.input;
+				output = replacement.output;
+				deadline = replacement.deadline;
+				in = replacement.in;
+				out = replacement.out;
+				replayed = replay.reconnect(input, output, received);
+			}
+		} catch (IOException e) {
+			//New connection has dropped too, the player may try again
+		} finally {
+			synchronized (this) {
+				generation++;
+				if (closed)
+					closeSocket(socket);
+				notifyAll();
+			}
+		}
+		return replayed;
+	}
+
+	/**
+	 * Waits for the player to resume after his connection has dropped
+	 * @param seen Resume count before the connection dropped
+	 * @param deadline Time by which the player's turn must arrive, in milliseconds
+	 * @return true if the player has resumed meanwhile
+	 */
+	protected synchronized boolean awaitResume(int seen, long deadline) {
+		if (replay == null)
+			return false;
+		long until = Math.min(deadline, System.currentTimeMillis() + RESUME_TIMEOUT);
+		while (generation == seen && !closed) {
+			long left = until - System.currentTimeMillis();
+			if (left <= 0)
+				return false;
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return !closed;
+	}
+
+	/**
+	 * @param rules Game rules
+	 * @return true if the player can play by the rules, clients older than WireFormat.RULES_VERSION know the default rules only
+	 */
+	public boolean supportsRules(GameRules rules) {
+		return rules.isDefault() || version >= WireFormat.RULES_VERSION;
+	}
+
+	/**
+	 * Sends the rules of the game to clients which know about rules, others are not told
+	 * @param rules Game rules
+	 * @throws IOException if the rules cannot be sent
+	 */
+	public void sendRules(GameRules rules) throws IOException {
+		if (frames != null && frames.getVersion() >= WireFormat.RULES_VERSION)
+			frames.sendRules(rules);
+	}
+
+	/**
+	 * Sends a board: ship placements to clients which know about rules, the whole field to others
+	 * @param board Board to send
+	 * @throws IOException if the board cannot be sent
+	 */
+	public void sendBoard(Board board) throws IOException {
+		if (frames != null && frames.getVersion() >= WireFormat.RULES_VERSION)
+			frames.sendFleet(board.placements());
+		else
+			sendField(board.toField());
+	}
+
+	/**
+	 * Sends game field
+	 * @param field Game field including label row and column
+	 * @throws IOException if the field cannot be sent
+	 */
+	public void sendField(int[][] field) throws IOException {
+		if (frames != null) {
+			frames.sendField(field);
+		}
+		else synchronized (this) {
+			out.writeObject(field);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Sends turn results.
+	 * Clients speaking protocol version 2 get an incremental update unless a snapshot is due.
+	 * @param x Row number
+	 * @param y Column number
+	 * @param result Result code
+	 * @param myShips Cells alive of the player's ships
+	 * @param ships Cells alive of the opponent's ships
+	 * @param owner Owner of the ship changed by this turn: NO_SHIP, MY_SHIP or ENEMY_SHIP
+	 * @param ship Index of the changed ship
+	 * @throws IOException if the results cannot be sent
+	 */
+	public void sendTurnResults(int x, int y, int result, int[] myShips, int[] ships, int owner, int ship) throws IOException {
+		//Held by the frames while writing anyway, keeps the snapshot count right when several threads send
+		if (frames != null) synchronized (frames) {
+			if (frames.getVersion() >= WireFormat.DELTA_VERSION && !resyncRequested
+					&& updatesSinceSnapshot < SNAPSHOT_INTERVAL) {
+				int cells = owner == WireFormat.MY_SHIP ? myShips[ship] : owner == WireFormat.ENEMY_SHIP ? ships[ship] : 0;
+				frames.sendUpdate(x, y, result, owner, ship, cells);
+				updatesSinceSnapshot++;
+			}
+			else {
+				resyncRequested = false;
+				updatesSinceSnapshot = 0;
+				frames.sendTurnResults(x, y, result, myShips, ships);
+			}
+			return;
+		}
+		Integer[][] results = new Integer[3][Math.max(3, myShips.length)];
+		results[0][0] = x;
+		results[0][1] = y;
+		results[0][2] = result;
+		for (int i=0; i<myShips.length; i++) {
+			results[1][i] = myShips[i];
+			results[2][i] = ships[i];
+		}
+		synchronized (this) {
+			out.writeObject(results);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Checks whether the client resolves its own shots and needs the opponent's field for that.
+	 * Serialised object clients and protocol versions before 3 do.
+	 * @return true if the client needs the opponent's field
+	 */
+	public boolean needsOpponentField() {
+		return frames == null || frames.getVersion() < WireFormat.SHOT_VERSION;
+	}
+
+	/**
+	 * Sends result of the player's own shot. Only understood by protocol version 3 clients.
+	 * @param x Row number
+	 * @param y Column number
+	 * @param result One of the SHOT_ result codes
+	 * @param shape Tile shape of the cell hit, -1 if no ship has been hit
+	 * @param ship Index of the ship hit
+	 * @param cells Cells alive of the ship hit
+	 * @throws IOException if the result cannot be sent
+	 */
+	public void sendShotResult(int x, int y, int result, int shape, int ship, int cells) throws IOException {
+		frames.sendShotResult(x, y, result, shape, ship, cells);
+	}
+
+	/**
+	 * Reads player's turn.
+	 * Shots of protocol version 3 clients carry no claimed result, a LEAVE frame is read as EXIT.
+	 * Protocol version 4 clients are pinged while the turn is awaited.
+	 * If the connection of a protocol version 5 client drops, the turn is awaited on the connection he resumes with.
+	 * @param turn Array to read row, column and claimed result into
+	 * @param deadline Time by which the turn must arrive, in milliseconds
+	 * @return Player's turn
+	 * @throws TimeoutException if the deadline passes or the player stops answering pings
+	 * @throws IOException if the connection is broken and not resumed or the message is malformed
+	 * @throws ClassNotFoundException if the object cannot be deserialised
+	 */
+	public int[] readTurn(int[] turn, long deadline) throws IOException, ClassNotFoundException {
+		if (frames != null) {
+			boolean heartbeats = frames.getVersion() >= WireFormat.HEARTBEAT_VERSION;
+			long lastHeard = System.currentTimeMillis();
+			while (true) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					throw new TimeoutException("Turn timed out", false);
+				int seen = generation;
+				int type;
+				try {
+					socket.setSoTimeout((int)Math.min(heartbeats ? HEARTBEAT_INTERVAL : Integer.MAX_VALUE, left));
+					type = frames.read();
+				} catch (SocketTimeoutException e) {
+					if (heartbeats) {
+						if (System.currentTimeMillis() - lastHeard >= HEARTBEAT_TIMEOUT)
+							throw new TimeoutException("Heartbeat missed", true);
+						frames.sendPing();
+					}
+					continue;
+				} catch (IOException e) {
+					if (!awaitResume(seen, deadline))
+						throw e;
+					lastHeard = System.currentTimeMillis();
+					continue;
+				}
+				lastHeard = System.currentTimeMillis();
+				if (type == WireFormat.RESYNC) {
+					resyncRequested = true;
+				}
+				else if (type == WireFormat.SHOT) {
+					WireFormat.getShot(frames.payload(), turn);
+					turn[2] = WireFormat.SHOT_HIT;
+					return turn;
+				}
+				else if (type == WireFormat.LEAVE) {
+					turn[2] = GameSession.EXIT;
+					return turn;
+				}
+				else if (type == WireFormat.TURN) {
+					WireFormat.getTurn(frames.payload(), turn);
+					return turn;
+				}
+				else if (type != WireFormat.PONG) {
+					throw new IOException("Unexpected frame " + type);
+				}
+			}
+		}
+		long left = deadline - System.currentTimeMillis();
+		if (left <= 0)
+			throw new TimeoutException("Turn timed out", false);
+		socket.setSoTimeout((int)Math.min(Integer.MAX_VALUE, left));
+		Object message;
+		try {
+			message = in.readObject();
+		} catch (SocketTimeoutException e) {
+			throw new TimeoutException("Turn timed out", false);
+		}
+		if (!(message instanceof int[]) || ((int[])message).length < 3)
+			throw new IOException("Malformed turn");
+		return (int[])message;
+	}
+
+	/**
+	 * @return Sizes of the socket's send and receive buffers, 0 if the socket is closed
+	 */
+	public int getSocketBuffers() {
+		try {
+			return socket.getSendBufferSize() + socket.getReceiveBufferSize();
+		} catch (SocketException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Shortens the time writes to the player may block, such as when the server shuts down.
+	 * A player who resumes afterwards gets WRITE_TIMEOUT again.
+	 * @param timeout Longest time a write may block, in milliseconds
+	 */
+	public void setWriteTimeout(long timeout) {
+		deadline.setTimeout(timeout);
+	}
+
+	/**
+	 * @return Bytes received from the player, lobby messages included
+	 */
+	public long getBytesReceived() {
+		return receivedBefore + input.getCount();
+	}
+
+	/**
+	 * @return Bytes sent to the player, lobby messages included
+	 */
+	public long getBytesSent() {
+		return sentBefore + output.getCount();
+	}
+
+	/**
+	 * Closes the connection quietly, a player waited for to resume is no longer waited for
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		closeSocket(socket);
+	}
+
+	/**
+	 * Closes a socket quietly
+	 * @param s Socket
+	 */
+	protected static void closeSocket(Socket s) {
+		try {
+			s.close();
+		} catch (IOException e) {
+			//Already closed
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(socket.getRemoteSocketAddress());
+	}
+}
@@ -0,0 +1,55 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rating table keeps an Elo rating for every player the server has seen.
+ * Clients do not log in, they are told apart by the random identity they announce in the hello,
+ * so players sharing a network address are rated apart.
+ * Clients older than WireFormat.IDENTITY_VERSION have no key: they play at the initial rating
+ * and their games change nobody's rating.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class RatingTable {
+
+	/** Rating of players not seen before */
+	public static final int INITIAL_RATING = 1500;
+	/** Largest rating change of one game */
+	protected static final int K_FACTOR = 32;
+
+	/** Rating by player key */
+	protected final ConcurrentHashMap<String, Integer> ratings = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * @param key Player key, null for players who are not rated
+	 * @return Player's rating
+	 */
+	public int get(String key) {
+		if (key == null)
+			return INITIAL_RATING;
+		Integer rating = ratings.get(key);
+		return rating != null ? rating : INITIAL_RATING;
+	}
+
+	/**
+	 * Moves rating from the loser to the winner, more when the winner was expected to lose
+	 * @param winner Winner's key, null if not rated
+	 * @param loser Loser's key, null if not rated
+	 */
+	public synchronized void recordWin(String winner, String loser) {
+		if (winner == null || loser == null || winner.equals(loser))
+			return;
+		int winnerRating = get(winner), loserRating = get(loser);
+		double expected = 1 / (1 + Math.pow(10, (loserRating - winnerRating) / 400.0));
+		int change = (int)Math.round(K_FACTOR * (1 - expected));
+		ratings.put(winner, winnerRating + change);
+		ratings.put(loser, Math.max(0, loserRating - change));
+	}
+
+	/**
+	 * @return Number of players rated
+	 */
+	public int size() {
+		return ratings.size();
+	}
+}
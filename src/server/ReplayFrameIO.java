@@ -0,0 +1,125 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Replay frame IO keeps a journal of the frames sent to a player, so that a player whose connection
+ * has dropped can reconnect and be sent only the frames he has missed.
+ * Frames are journaled before they are written, a frame lost with the connection is replayed as well.
+ * Heartbeats and resume tokens are not journaled, the client does not count them.
+ * The journal is sized from the rules for a game in which every cell is shot once by each player,
+ * games which would need more than MAX_JOURNAL are not journaled and their players are given no resume token.
+ * A journal outgrowing its size, with shots rejected over and over, stops recording
+ * and the game can no longer be resumed.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class ReplayFrameIO extends FrameIO {
+
+	/** Largest journal size in bytes */
+	protected static final int MAX_JOURNAL = 4 << 20;
+	/** Frames sent to a player once the game is over, or again after he has resumed */
+	protected static final int END_FRAMES = 8;
+
+	/** Journal size in bytes */
+	protected final int maxJournal;
+	/** Frames sent, back to back as they went on the wire */
+	protected byte[] journal;
+	/** Bytes used in the journal */
+	protected int journalSize;
+	/** Number of frames in the journal */
+	protected int journaled;
+	/** Set once the journal has outgrown its size */
+	protected boolean overflowed;
+
+	/**
+	 * @param in Socket input stream
+	 * @param out Socket output stream
+	 * @param version Negotiated protocol version
+	 * @param maxJournal Journal size in bytes, see journalSize()
+	 */
+	public ReplayFrameIO(InputStream in, OutputStream out, int version, int maxJournal) {
+		super(in, out, version);
+		this.maxJournal = maxJournal;
+		journal = new byte[Math.min(1024, maxJournal)];
+	}
+
+	/**
+	 * Bytes sent to a player in a game in which every cell is shot once by each player.
+	 * The player is sent the rules and the fields, a turn result when every turn starts,
+	 * one frame for every shot and a full snapshot every SNAPSHOT_INTERVAL updates.
+	 * A turn starts after every miss, so there are no more turns than shots.
+	 * @param rules Game rules
+	 * @return Journal size in bytes
+	 */
+	public static long journalSize(GameRules rules) {
+		long cells = rules.getCells(), ships = rules.getShips();
+		long setup = 3 * WireFormat.HEADER_SIZE + (2 + ships + 2 * (cells + 1)) * WireFormat.MAX_VARINT_SIZE;
+		long frames = 2 * cells + (2 * cells + 1) + END_FRAMES;
+		long update = WireFormat.HEADER_SIZE + 6 * WireFormat.MAX_VARINT_SIZE;
+		long snapshot = WireFormat.HEADER_SIZE + (4 + 2 * ships) * WireFormat.MAX_VARINT_SIZE;
+		return setup + frames * update + (frames / PlayerConnection.SNAPSHOT_INTERVAL + 1) * snapshot;
+	}
+
+	/**
+	 * @param rules Game rules
+	 * @return true if games by the rules fit in a journal of at most MAX_JOURNAL
+	 */
+	public static boolean canJournal(GameRules rules) {
+		return journalSize(rules) <= MAX_JOURNAL;
+	}
+
+	@Override
+	protected void sent(byte[] frame, int length) {
+		int type = frame[1] & 0xFF;
+		if (overflowed || type == WireFormat.PING || type == WireFormat.RESUME_TOKEN)
+			return;
+		if (journalSize + length > maxJournal) {
+			overflowed = true;
+			journal = null;
+			return;
+		}
+		if (journalSize + length > journal.length) {
+			byte[] grown = new byte[Math.min(maxJournal, Math.max(journal.length * 2, journalSize + length))];
+			System.arraycopy(journal, 0, grown, 0, journalSize);
+			journal = grown;
+		}
+		System.arraycopy(frame, 0, journal, journalSize, length);
+		journalSize += length;
+		journaled++;
+	}
+
+	/**
+	 * @param received Number of frames the client has received
+	 * @return true if the frames the client has missed are in the journal
+	 */
+	public synchronized boolean canReplay(int received) {
+		return !overflowed && received >= 0 && received <= journaled;
+	}
+
+	/**
+	 * Switches to the streams of a new connection and sends the frames the client has missed.
+	 * Frames sent meanwhile wait for the replay to finish.
+	 * @param in New socket input stream
+	 * @param out New socket output stream
+	 * @param received Number of frames the client has received
+	 * @return Number of frames replayed
+	 * @throws IOException if the journal does not hold the missed frames or they cannot be sent
+	 */
+	public synchronized int reconnect(InputStream in, OutputStream out, int received) throws IOException {
+		if (!canReplay(received))
+			throw new IOException("Frames missed are no longer available");
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.out = new BufferedOutputStream(out);
+		int offset = 0;
+		for (int i=0; i<received; i++)
+			offset += WireFormat.HEADER_SIZE + ((journal[offset + 2] & 0xFF) << 8 | journal[offset + 3] & 0xFF);
+		this.out.write(journal, offset, journalSize - offset);
+		this.out.flush();
+		return journaled - received;
+	}
+}
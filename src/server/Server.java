@@ -1,157 +1,205 @@
-import java.awt.BorderLayout;
-import java.awt.event.WindowEvent;
-import java.awt.event.WindowListener;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Random;
 
-import javax.swing.JFrame;
-import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 
 /** Server class is used by clients to connect to.
- * It creates game session for each pair of clients connected.
- * Displays server log window.
- * 
+ * It runs the server engine which creates game session for each pair of clients connected.
+ * The server runs headless: log lines go to a bounded log buffer and are written to a file or the console
+ * on a background thread. The server log window is an optional viewer attached to the buffer.
+ * Live numbers are served as JSON on a loopback port for monitoring.
+ * Matches are recorded in a match journal if a journal directory is given.
+ * Players left without an opponent for the AI timeout play the server's AI player.
+ * Board size and fleet may be changed with -rules, clients too old to play by them get the default rules.
+ * Shutting the JVM down, by closing the window or interrupting the process, drains the server:
+ * no new players are accepted and running games have until the drain deadline to finish
+ * before their players are notified, so a server can be restarted without dropping games.
+ *
  * @author Dmitri Samoilov
  *
  */
-public class Server extends JFrame implements WindowListener{
-	
-	private static final long serialVersionUID = 1L;
-	protected static final int SHUTDOWN = -2;
-	/** Enables network communication */
-	protected ServerSocket server;
-	/** Player 1 connection */
-	protected Socket player1;
-	/** Player 2 connection */
-	protected Socket player2;
-	/** Game Session */
-	protected GameSession game;
-	/** Enable object input from players */
-	protected ObjectInputStream fromPlayer1,fromPlayer2;
-	/** Enable object output to players */
-	protected ObjectOutputStream toPlayer1,toPlayer2;
-	
-	public static void main(String[] args) {
-		new Server();
-	}
+public class Server {
+
+	protected static final String USAGE = "Usage: java Server [-headless] [-log file] [-lines count]"
+			+ " [-stats port, 0 for none] [-drain seconds games have to finish on shutdown]"
+			+ " [-turnTimeout seconds per shot, 0 for none] [-idleTimeout seconds without progress, 0 for none]"
+			+ " [-journal directory to record matches in] [-ai seconds a player waits before playing the AI, 0 for never]"
+			+ " [-rules size:ship lengths, comma separated, at most " + GameRules.MAX_SIZE + ":...]";
+	/** Default time running games have to finish on shutdown, in seconds */
+	protected static final int DEFAULT_DRAIN = 30;
+	/** Longest time the fleet placed at startup to check the rules may take, in milliseconds */
+	protected static final long TRIAL_TIME_LIMIT = 100;
+
+	/** Networking and matchmaking core */
+	protected ServerEngine engine;
+	/** Recent log lines */
+	protected LogBuffer log;
+	/** Writes log lines to a file or the console */
+	protected LogWriter writer;
+	/** Serves live numbers, null if disabled */
+	protected StatsServer stats;
+	/** Records matches, null if disabled */
+	protected MatchJournal journal;
+	/** Time running games have to finish on shutdown, in milliseconds */
+	protected long drainTimeout = DEFAULT_DRAIN * 1000L;
+	/** Indicates whether the server has been shut down */
+	protected boolean shutDown;
+
 	/**
-	 * Constructor creates server window, server socket and waits for players to connect.
-	 * When 2 players are ready to play, it starts the game session.
+	 * Starts the server. Without a display or with -headless no window is shown
+	 * and the log goes to the console unless a log file is given.
+	 * @param args Command line options
 	 */
-	public Server() {
-		
-		//Creating window
-		addWindowListener(this);
-		JTextArea serverLog = new JTextArea();		
-		JScrollPane scrollPane = new JScrollPane(serverLog);		
-		add(scrollPane, BorderLayout.CENTER);		
-		setSize(300,300);
-		setTitle("Battleships Server");
-		setVisible(true);
-		
+	public static void main(String[] args) {
+		boolean headless = GraphicsEnvironment.isHeadless();
+		String logFile = null, journalDir = null;
+		int lines = LogBuffer.DEFAULT_CAPACITY;
+		int statsPort = StatsServer.DEFAULT_PORT;
+		int drain = DEFAULT_DRAIN;
+		long aiTimeout = 0;
+		GameRules rules = GameRules.DEFAULT;
+		long turnTimeout = ServerEngine.DEFAULT_TURN_TIMEOUT / 1000, idleTimeout = ServerEngine.DEFAULT_IDLE_TIMEOUT / 1000;
 		try {
-			//Server Socket on port 3319
-			server = new ServerSocket(3319);
-			
-			serverLog.append("Server started at port 3319.\n");
-			serverLog.append("SERVER IP ADDRESS : "+InetAddress.getLocalHost()+"\n");
-			
-			int noOfPlayers = 0;
-			while (true) {
-				//Wait for player 1 to connect
-				if (noOfPlayers == 0) {
-					player1 = server.accept();
-					toPlayer1 = new ObjectOutputStream(player1.getOutputStream());		
-					fromPlayer1 = new ObjectInputStream(player1.getInputStream());
-					sendMessage("connect", toPlayer1);	
-					
-					serverLog.append("Player 1 has joined. Waiting for Player 2...\n");
-					noOfPlayers++;
-				}
-				//Wait for player 2 to connect
-				else if (noOfPlayers == 1) {
-					player2 = server.accept();
-					toPlayer2 = new ObjectOutputStream(player2.getOutputStream());
-					fromPlayer2 = new ObjectInputStream(player2.getInputStream());
-					sendMessage("player2", toPlayer1);
-					sendMessage("connect", toPlayer2);
-					sendMessage("player2", toPlayer2);
-					serverLog.append("Player 2 has joined. Starting the game session...\n");
-					noOfPlayers++;
-				}
-				//When 2 players are connected, start the game
-				else if (noOfPlayers == 2) {
-					String input1 = (String)fromPlayer1.readObject();
-					String input2 = (String)fromPlayer2.readObject();
-					if (input1.equals("play") && input2.equals("play")) {
-						(new GameSession(toPlayer1,toPlayer2,fromPlayer1,fromPlayer2)).start();
-						serverLog.append("Game session has been launched!\n");
-						noOfPlayers = 0;
-					}
-					//If players disconnect, abort game launch
-					else {
-						serverLog.append("Game sesssion launch aborted.\n");
-						sendMessage("disconnect", toPlayer1);
-						sendMessage("disconnect", toPlayer2);
-						noOfPlayers = 0;
-					}
-				}
-			}			
-		} catch (IOException e) {
-			serverLog.append("Server has ran into an exception! Stopping server...\n");
-			System.exit(0);
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-headless")) headless = true;
+				else if (args[i].equals("-log")) logFile = args[++i];
+				else if (args[i].equals("-lines")) lines = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-stats")) statsPort = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-drain")) drain = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-turnTimeout")) turnTimeout = Long.parseLong(args[++i]);
+				else if (args[i].equals("-idleTimeout")) idleTimeout = Long.parseLong(args[++i]);
+				else if (args[i].equals("-journal")) journalDir = args[++i];
+				else if (args[i].equals("-ai")) aiTimeout = Long.parseLong(args[++i]);
+				else if (args[i].equals("-rules")) rules = GameRules.parse(args[++i]);
+				else throw new IllegalArgumentException(args[i]);
+			}
+			if (lines < 1)
+				throw new IllegalArgumentException("Number of lines must be positive");
+			if (statsPort < 0 || statsPort > 0xFFFF)
+				throw new IllegalArgumentException("Invalid port " + statsPort);
+			if (drain < 0 || turnTimeout < 0 || idleTimeout < 0 || aiTimeout < 0)
+				throw new IllegalArgumentException("Times must not be negative");
+		} catch (RuntimeException e) {
+			System.out.println(USAGE);
+			return;
 		}
-		
-	}
-	
-	protected void sendMessage(String message, ObjectOutputStream player) {
+		//The rules only check the fleet's area, one bounded placement tells whether the fleet can be placed in time
+		String unplayable = null;
+		long trialStart = System.currentTimeMillis();
+		try {
+			new FleetPlacer(rules, new Random()).place(new Board(rules));
+			if (System.currentTimeMillis() - trialStart > TRIAL_TIME_LIMIT)
+				unplayable = "placing it takes more than " + TRIAL_TIME_LIMIT + " ms";
+		} catch (IllegalStateException e) {
+			unplayable = e.getMessage();
+		}
+		if (unplayable != null) {
+			System.out.println("Fleet does not fit on a board of " + rules.getSize() + " by " + rules.getSize() + " cells: " + unplayable);
+			return;
+		}
+
+		Server server;
 		try {
-			player.writeObject(message);
-			player.flush();
+			server = new Server(lines, logFile, headless, statsPort);
 		} catch (IOException e) {
-			System.out.println("Error sending message to player!");
+			System.out.println("Could not open log file " + logFile + "!");
+			return;
 		}
-		
-	}
-	@Override
-	public void windowActivated(WindowEvent arg0) {		
-	}
-	@Override
-	public void windowClosed(WindowEvent arg0) {
-	}
-	@Override
-	public void windowClosing(WindowEvent arg0) {
-		if (toPlayer1 != null && toPlayer2 != null) {
-			Integer [][] output = new Integer[1][3];
-			output[0][2] = SHUTDOWN;
+		server.drainTimeout = drain * 1000L;
+		server.engine.setTimeouts(turnTimeout * 1000, idleTimeout * 1000);
+		server.engine.setAiTimeout(aiTimeout * 1000);
+		server.engine.setRules(rules);
+		if (journalDir != null) {
 			try {
-				toPlayer1.writeObject(output);
-				toPlayer1.flush();
-				toPlayer2.writeObject(output);
-				toPlayer2.flush();
+				server.journal = new MatchJournal(new File(journalDir), MatchJournal.DEFAULT_SEGMENT_SIZE);
 			} catch (IOException e) {
-				System.out.println("Could not send shutdown command to clients");
+				System.out.println("Could not open match journal in " + journalDir + "!");
+				return;
 			}
+			server.engine.setJournal(server.journal);
 		}
-		System.exit(0);		
-	}
-	@Override
-	public void windowDeactivated(WindowEvent arg0) {
+		server.run();
 	}
-	@Override
-	public void windowDeiconified(WindowEvent arg0) {
+
+	/**
+	 * Constructor sets up logging and the server engine
+	 * @param lines Number of log lines kept in memory
+	 * @param logFile Log file to append to, null for none
+	 * @param headless true not to show the server window
+	 * @param statsPort Port of the stats server, 0 for none
+	 * @throws IOException if the log file cannot be opened
+	 */
+	public Server(int lines, String logFile, boolean headless, int statsPort) throws IOException {
+		log = new LogBuffer(lines);
+		Writer out = null;
+		if (logFile != null)
+			out = new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8");
+		else if (headless)
+			out = new OutputStreamWriter(System.out);
+		if (out != null) {
+			writer = new LogWriter(log, out);
+			writer.start();
+		}
+		if (!headless) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					new ServerWindow(log);
+				}
+			});
+		}
+		engine = new ServerEngine(log);
+		if (statsPort > 0)
+			stats = new StatsServer(engine, statsPort);
 	}
-	@Override
-	public void windowIconified(WindowEvent arg0) {
+
+	/**
+	 * Runs the server engine on the calling thread until the server socket is closed
+	 */
+	public void run() {
+		try {
+			log.log("SERVER IP ADDRESS : "+InetAddress.getLocalHost());
+		} catch (UnknownHostException e) {
+			log.log("Could not resolve server IP address.");
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				shutdown();
+			}
+		}, "server-shutdown"));
+		if (stats != null) {
+			try {
+				stats.start();
+				log.log("Stats available at http://127.0.0.1:" + stats.port + "/stats");
+			} catch (IOException e) {
+				log.log("Could not open stats port " + stats.port + "!");
+			}
+		}
+		engine.run();
 	}
-	@Override
-	public void windowOpened(WindowEvent arg0) {
+
+	/**
+	 * Drains the server engine and writes the remaining log lines
+	 */
+	public synchronized void shutdown() {
+		if (shutDown)
+			return;
+		shutDown = true;
+		log.log("Server is shutting down.");
+		engine.drain(drainTimeout);
+		if (journal != null) {
+			journal.close();
+			log.log("Match journal closed: " + journal.getRecords() + " records, " + journal.getBytes() + " bytes.");
+		}
+		if (stats != null)
+			stats.stop();
+		if (writer != null)
+			writer.stop();
 	}
 }
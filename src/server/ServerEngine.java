@@ -0,0 +1,560 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server engine accepts client connections, performs the lobby handshake
+ * and launches game sessions for players paired by the matchmaker.
+ * Each connection is handled by its own lobby task, so a slow or idle client
+ * never holds up the accept loop or other players.
+ * Lobby tasks run on a bounded pool, connections beyond it are closed at once and clients retry later.
+ * Players quiet in the lobby for the idle timeout are dropped and a session reaper
+ * stops game sessions making no progress for as long.
+ * A player whose connection has dropped reconnects through the lobby with his resume token
+ * and is handed back to his game session.
+ * Players waiting for an opponent longer than the AI timeout play the server's AI player.
+ * Game sessions record their matches in a match journal if one is set, it is forced to disk every second.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class ServerEngine implements Runnable, Matchmaker.Launcher {
+
+	/** Port clients connect to */
+	protected static final int PORT = 3319;
+	/** Time a new client has to send its stream header, in milliseconds */
+	protected static final int HANDSHAKE_TIMEOUT = 10000;
+	/**
+	 * Time a client has to answer the greeting with a hello before it joins without a round trip time,
+	 * clients without binary frames do not answer and wait this long before matchmaking
+	 */
+	protected static final int HELLO_TIMEOUT = 250;
+	/** Interval between searches with widened matchmaking tolerances, in milliseconds */
+	protected static final long SWEEP_INTERVAL = 1000;
+	/** Stack size of lobby threads, they only run the handshake */
+	protected static final long LOBBY_STACK_SIZE = 128 * 1024;
+	/** Maximum number of players in the lobby at the same time */
+	protected static final int MAX_LOBBY = 10000;
+	/** Stack size of session threads, a session only keeps a few frames on its stack */
+	protected static final long SESSION_STACK_SIZE = 256 * 1024;
+	/** Maximum number of game sessions running at the same time */
+	protected static final int MAX_SESSIONS = 10000;
+	/** Number of fleet layouts kept ready for new sessions */
+	protected static final int LAYOUT_POOL_SIZE = 256;
+	/** Layout pool is refilled when fewer layouts are left */
+	protected static final int LAYOUT_LOW_WATER = 64;
+	/** Layouts older than this are discarded, in milliseconds */
+	protected static final long LAYOUT_MAX_AGE = 10 * 60 * 1000;
+	/** Interval between throughput reports, in seconds */
+	protected static final int REPORT_INTERVAL = 10;
+	/** Interval between progress reports while draining, in milliseconds */
+	protected static final long DRAIN_REPORT_INTERVAL = 5000;
+	/** Time allowed for telling players of unfinished games about the shutdown, in milliseconds */
+	protected static final long BROADCAST_TIMEOUT = 2000;
+	/** Default time a player has for a shot, in milliseconds */
+	public static final long DEFAULT_TURN_TIMEOUT = 2 * 60 * 1000;
+	/** Default time a lobby player or a game session may stay without progress, in milliseconds */
+	public static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+	/** Interval between searches for idle sessions, in seconds */
+	protected static final int REAP_INTERVAL = 10;
+	/** Interval between forcing the match journal to disk, in milliseconds */
+	protected static final long JOURNAL_FLUSH_INTERVAL = 1000;
+
+	/** Enables network communication */
+	protected ServerSocket server;
+	/** Log destination */
+	protected ServerLog log;
+	/** Runs lobby handshakes */
+	protected ExecutorService lobby;
+	/** Runs game sessions */
+	protected ExecutorService sessions;
+	/** Fleet layouts ready for new sessions */
+	protected LayoutPool layouts;
+	/** Publishes throughput numbers */
+	protected ScheduledExecutorService reporter;
+	/** Pairs waiting players */
+	protected Matchmaker matchmaker;
+	/** Player ratings */
+	protected RatingTable ratings = new RatingTable();
+	/** Game sessions from launch until they end */
+	protected final SessionRegistry registry = new SessionRegistry();
+	/** Time the engine was created, in milliseconds */
+	protected final long started = System.currentTimeMillis();
+	/** Set once the engine drains, no game is launched afterwards */
+	protected volatile boolean draining;
+	/** Time a player has for a shot, in milliseconds, 0 for no limit */
+	protected volatile long turnTimeout = DEFAULT_TURN_TIMEOUT;
+	/** Time a lobby player may stay quiet, in milliseconds, 0 for no limit */
+	protected volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	/** Rules games are played by when both players can play by them */
+	protected volatile GameRules rules = GameRules.DEFAULT;
+	/** Records matches, null for none */
+	protected volatile MatchJournal journal;
+	/** Stops sessions making no progress */
+	protected final SessionReaper reaper;
+	/** Number of players dropped from the lobby for being quiet too long */
+	protected final AtomicLong lobbyTimeouts = new AtomicLong();
+	/** Number of games resumed by players after their connection had dropped */
+	protected final AtomicLong resumes = new AtomicLong();
+	/** Number of resume requests turned down */
+	protected final AtomicLong resumesExpired = new AtomicLong();
+	/** Number of connections accepted */
+	protected final AtomicLong connections = new AtomicLong();
+	/** Number of connections closed at once because the lobby was full */
+	protected final AtomicLong lobbyRejected = new AtomicLong();
+	/** Number of game sessions launched */
+	protected final AtomicLong matchesStarted = new AtomicLong();
+
+	/**
+	 * @param log Log destination
+	 */
+	public ServerEngine(ServerLog log) {
+		this.log = log;
+		matchmaker = new Matchmaker(log, this, ratings);
+		matchmaker.setIdleTimeout(idleTimeout);
+		reaper = new SessionReaper(registry, log, idleTimeout);
+	}
+
+	/**
+	 * @param turnTimeout Time a player has for a shot, in milliseconds, 0 for no limit
+	 * @param idleTimeout Time a lobby player or a game session may stay without progress, in milliseconds,
+	 * 0 for no limit
+	 */
+	public void setTimeouts(long turnTimeout, long idleTimeout) {
+		this.turnTimeout = turnTimeout;
+		this.idleTimeout = idleTimeout;
+		reaper.setIdleTimeout(idleTimeout);
+		matchmaker.setIdleTimeout(idleTimeout);
+	}
+
+	/**
+	 * @param aiTimeout Time after which a waiting player is paired with the AI player, in milliseconds, 0 for never
+	 */
+	public void setAiTimeout(long aiTimeout) {
+		matchmaker.setAiTimeout(aiTimeout);
+	}
+
+	/**
+	 * Sets the rules games are played by, must be called before the engine runs
+	 * @param rules Game rules
+	 */
+	public void setRules(GameRules rules) {
+		this.rules = rules;
+		if (!ReplayFrameIO.canJournal(rules))
+			log.log("Games on a board of " + rules.getSize() + " by " + rules.getSize()
+					+ " cells are too long to journal, players will not be able to resume them.");
+	}
+
+	/**
+	 * Sets the journal matches are recorded in, must be called before the engine runs
+	 * @param journal Match journal, null for none
+	 */
+	public void setJournal(MatchJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @return Match journal, null if matches are not recorded
+	 */
+	public MatchJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Opens server socket and runs the accept loop until the socket is closed
+	 */
+	public void run() {
+		try {
+			server = new ServerSocket(PORT);
+		} catch (IOException e) {
+			log.log("Could not open port " + PORT + "! Stopping server...");
+			return;
+		}
+		log.log("Server started at port " + PORT + ".");
+
+		if (!rules.isDefault())
+			log.log("Playing by rules " + rules + ".");
+		layouts = new LayoutPool(new FleetPlacer(rules, new Random()), log, LAYOUT_POOL_SIZE, LAYOUT_LOW_WATER, LAYOUT_MAX_AGE);
+		layouts.start();
+		lobby = new ThreadPoolExecutor(0, MAX_LOBBY, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), threadFactory("lobby-", LOBBY_STACK_SIZE));
+		sessions = new ThreadPoolExecutor(0, MAX_SESSIONS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), threadFactory("session-", SESSION_STACK_SIZE));
+		startReporter();
+
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				connections.incrementAndGet();
+				try {
+					lobby.execute(new Runnable() {
+						public void run() {
+							handshake(socket);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					//Lobby is full, the client retries with backoff
+					lobbyRejected.incrementAndGet();
+					closeQuietly(socket);
+				}
+			} catch (IOException e) {
+				if (!server.isClosed()) {
+					log.log("Server has ran into an exception! Stopping server...");
+					stop();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates daemon threads with a reduced stack size
+	 * @param prefix Thread name prefix
+	 * @param stackSize Stack size in bytes
+	 * @return Thread factory
+	 */
+	protected static ThreadFactory threadFactory(final String prefix, final long stackSize) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(null, r, prefix + count.incrementAndGet(), stackSize);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Stops accepting connections
+	 */
+	public void stop() {
+		try {
+			if (server != null)
+				server.close();
+		} catch (IOException e) {
+			//Already closed
+		}
+		if (reporter != null)
+			reporter.shutdownNow();
+		if (layouts != null)
+			layouts.stop();
+	}
+
+	/**
+	 * Drains the server for a restart: stops accepting players, turns away players in the lobby
+	 * and lets running games finish. Players of games still running at the deadline are told
+	 * in parallel that the server is shutting down and their sessions are stopped.
+	 * A failing session only ends itself, the others keep running until they finish or the deadline passes.
+	 * @param timeout Time running games have to finish, in milliseconds
+	 * @return true if all games have finished in time
+	 */
+	public boolean drain(long timeout) {
+		draining = true;
+		stop();
+		matchmaker.close();
+		long deadline = System.currentTimeMillis() + timeout;
+		boolean drained = registry.size() == 0;
+		try {
+			long left;
+			while (!drained && (left = deadline - System.currentTimeMillis()) > 0) {
+				log.log("Draining: " + registry.size() + " games running, " + (left + 999) / 1000 + " s left.");
+				drained = registry.awaitEmpty(Math.min(DRAIN_REPORT_INTERVAL, left));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (drained) {
+			log.log("All games have finished.");
+			return true;
+		}
+		log.log(registry.size() + " games still running, notifying players...");
+		if (!registry.notifyShutdown(BROADCAST_TIMEOUT))
+			log.log("Some players could not be notified in time.");
+		registry.shutdownAll();
+		return false;
+	}
+
+	/**
+	 * Lobby handshake for one connection.
+	 * Greets the player, hands him to the matchmaker and waits for the player to press play.
+	 * Clients supporting binary frames reply to the greeting with a hello carrying their protocol version,
+	 * the time the reply takes is the round trip time used for matchmaking.
+	 * Other clients say nothing until paired, they are matched without a round trip time.
+	 * A hello arriving after HELLO_TIMEOUT is still taken before the play message, without a round trip time.
+	 * A timely hello from protocol version 8 is answered, the client then reads lobby messages until the game starts.
+	 *
+	 * @param socket Client socket
+	 */
+	protected void handshake(Socket socket) {
+		PlayerConnection player;
+		try {
+			//Turn switches send two small frames back to back, do not let them wait for an acknowledgement
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+			player = new PlayerConnection(socket);
+		} catch (IOException e) {
+			closeQuietly(socket);
+			return;
+		}
+		if (!player.send("connect")) {
+			player.close();
+			return;
+		}
+
+		try {
+			long greeted = System.nanoTime();
+			int rtt = Matchmaker.UNKNOWN_RTT;
+			Object input = null;
+			try {
+				socket.setSoTimeout(HELLO_TIMEOUT);
+				input = player.read();
+				long[] request = WireFormat.parseResume(input);
+				if (request != null) {
+					resume(player, request);
+					return;
+				}
+				int version = WireFormat.parseHello(input);
+				if (version > 0) {
+					rtt = (int)((System.nanoTime() - greeted) / 1000000);
+					player.negotiate(version, WireFormat.parseIdentity(input));
+					input = null;
+					if (!player.openLobby()) {
+						player.close();
+						return;
+					}
+				}
+			} catch (SocketTimeoutException e) {
+				//Client without binary frames
+			}
+			socket.setSoTimeout(0);
+			if (input != null) {
+				player.close();
+				return;
+			}
+			matchmaker.join(player, rtt);
+
+			while (true) {
+				socket.setSoTimeout((int)Math.min(Integer.MAX_VALUE, idleTimeout));
+				input = player.read();
+				socket.setSoTimeout(0);
+				int version = player.version == 0 ? WireFormat.parseHello(input) : 0;
+				if (version > 0) {
+					//Hello slower than HELLO_TIMEOUT, the player keeps waiting without a round trip time.
+					//It is not answered, the client may already have been told about an opponent
+					player.negotiate(version, WireFormat.parseIdentity(input));
+					continue;
+				}
+				if ("play".equals(input)) {
+					player.startGame(rules);
+					matchmaker.ready(player);
+					return;
+				}
+				break;
+			}
+		} catch (SocketTimeoutException e) {
+			lobbyTimeouts.incrementAndGet();
+			log.log("Player " + player + " has been quiet in the lobby for too long.");
+		} catch (IOException e) {
+			//Player has disconnected
+		} catch (ClassNotFoundException e) {
+			//Unexpected message
+		}
+		matchmaker.leave(player);
+	}
+
+	/**
+	 * Hands a player who has reconnected back to his game session, or turns him away if the game has ended
+	 * @param player Connection the player has reconnected on
+	 * @param request Version, resume token and number of frames received
+	 */
+	protected void resume(PlayerConnection player, long[] request) {
+		GameSession game = registry.findByToken(request[1]);
+		int replayed = game != null ? game.resume(request[1], player, (int)request[2]) : -1;
+		if (replayed < 0) {
+			resumesExpired.incrementAndGet();
+			if (game != null)
+				log.log("Player " + player + " could not resume game session " + game.getId() + ", the frames he has missed are no longer available.");
+			player.send(WireFormat.EXPIRED);
+			player.close();
+			return;
+		}
+		resumes.incrementAndGet();
+		log.log("Player " + player + " has resumed game session " + game.getId() + ", " + replayed + " frames replayed.");
+	}
+
+	/**
+	 * Starts a game session for two players
+	 * @param player1 First player
+	 * @param player2 Second player
+	 */
+	public void launch(PlayerConnection player1, PlayerConnection player2) {
+		GameSession game = new GameSession(this, player1, player2);
+		registry.register(game);
+		try {
+			if (draining)
+				throw new RejectedExecutionException();
+			sessions.execute(game);
+		} catch (RejectedExecutionException e) {
+			registry.unregister(game);
+			log.log(draining ? "Server is draining. Game sesssion launch aborted." : "Server is full. Game sesssion launch aborted.");
+			player1.send("disconnect");
+			player2.send("disconnect");
+			player1.close();
+			player2.close();
+			return;
+		}
+		matchesStarted.incrementAndGet();
+		log.log("Game session " + game.getId() + " has been launched!");
+	}
+
+	/**
+	 * Called by a game session when it has finished
+	 * @param game Finished game session
+	 */
+	protected void sessionEnded(GameSession game) {
+		registry.unregister(game);
+	}
+
+
+	/**
+	 * Periodically logs matches started per second, concurrent sessions and matchmaking,
+	 * lets the matchmaker search again with widened tolerances and the reaper look for idle sessions
+	 */
+	protected void startReporter() {
+		reporter = Executors.newSingleThreadScheduledExecutor(threadFactory("stats-reporter-", 0));
+		reporter.scheduleAtFixedRate(new Runnable() {
+			private long lastMatches;
+			public void run() {
+				long matches = matchesStarted.get();
+				double rate = (matches - lastMatches) / (double)REPORT_INTERVAL;
+				lastMatches = matches;
+				if (rate > 0 || registry.size() > 0 || matchmaker.getWaiting() > 0) {
+					log.log(String.format("Matches started: %.1f/s, sessions running: %d, connections: %d, turned away: %d, writes timed out: %d",
+							rate, registry.size(), connections.get(), lobbyRejected.get(), DeadlineOutputStream.getExpired()));
+					log.log(String.format("Layouts: %d ready, hit rate %.1f%%, refill lag %d ms (max %d ms), evicted %d, failed %d",
+							layouts.size(), layouts.getHitRate() * 100, layouts.getLastRefillLag(),
+							layouts.getMaxRefillLag(), layouts.getEvicted(), layouts.getFailures()));
+					log.log(String.format("Matchmaking: %d waiting (max %d), requeued %d, dropped %d, paired with AI %d, time to match %s",
+							matchmaker.getWaiting(), matchmaker.getMaxWaiting(), matchmaker.getRequeued(),
+							matchmaker.getDropped(), matchmaker.getAiMatches(), matchmaker.getTimeToMatch().summary("ms")));
+				}
+			}
+		}, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+		reporter.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				matchmaker.sweep();
+			}
+		}, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+		reporter.scheduleWithFixedDelay(reaper, REAP_INTERVAL, REAP_INTERVAL, TimeUnit.SECONDS);
+		if (journal != null) {
+			reporter.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					journal.flush();
+				}
+			}, JOURNAL_FLUSH_INTERVAL, JOURNAL_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return Number of game sessions currently running
+	 */
+	public int getActiveSessions() {
+		return registry.size();
+	}
+
+	/**
+	 * @return Game sessions from launch until they end
+	 */
+	public SessionRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @return Time a player has for a shot, in milliseconds, 0 for no limit
+	 */
+	public long getTurnTimeout() {
+		return turnTimeout;
+	}
+
+	/**
+	 * @return Stops sessions making no progress
+	 */
+	public SessionReaper getReaper() {
+		return reaper;
+	}
+
+	/**
+	 * @return Number of players dropped from the lobby for being quiet too long
+	 */
+	public long getLobbyTimeouts() {
+		return lobbyTimeouts.get();
+	}
+
+	/**
+	 * @return Number of games resumed by players after their connection had dropped
+	 */
+	public long getResumes() {
+		return resumes.get();
+	}
+
+	/**
+	 * @return Number of resume requests turned down
+	 */
+	public long getResumesExpired() {
+		return resumesExpired.get();
+	}
+
+	/**
+	 * @return Pairs waiting players
+	 */
+	public Matchmaker getMatchmaker() {
+		return matchmaker;
+	}
+
+	/**
+	 * @return Number of connections accepted
+	 */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * @return Number of connections closed at once because the lobby was full
+	 */
+	public long getLobbyRejected() {
+		return lobbyRejected.get();
+	}
+
+	/**
+	 * @return Time the engine was created, in milliseconds
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * @return Number of game sessions launched since start
+	 */
+	public long getMatchesStarted() {
+		return matchesStarted.get();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			//Already closed
+		}
+	}
+}
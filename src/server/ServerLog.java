@@ -0,0 +1,14 @@
+/**
+ * Destination for server log messages
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public interface ServerLog {
+
+	/**
+	 * Appends a line to the log
+	 * @param message Log message
+	 */
+	void log(String message);
+}
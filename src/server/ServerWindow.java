@@ -0,0 +1,109 @@
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowEvent;
+import java.awt.event.WindowListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JFrame;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/** Server window displays the server log.
+ * It is an optional viewer attached to the log buffer: new lines are picked up by a Swing timer
+ * on the event dispatch thread, so logging never waits for the window.
+ * The text area keeps as many lines as the log buffer.
+ * Closing the window exits the server.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class ServerWindow extends JFrame implements WindowListener, ActionListener {
+
+	private static final long serialVersionUID = 1L;
+	/** Interval between log refreshes, in milliseconds */
+	protected static final int REFRESH_INTERVAL = 250;
+
+	/** Source of log lines */
+	protected LogBuffer buffer;
+	/** Server log window */
+	protected JTextArea serverLog;
+	/** Refreshes the log */
+	protected Timer timer;
+	/** Sequence number of the next line to display */
+	protected long next;
+	/** Lines read from the buffer, reused by each refresh */
+	protected List<String> lines = new ArrayList<String>();
+
+	/**
+	 * Creates the window, must be called on the event dispatch thread
+	 * @param buffer Source of log lines
+	 */
+	public ServerWindow(LogBuffer buffer) {
+		this.buffer = buffer;
+		addWindowListener(this);
+		serverLog = new JTextArea();
+		serverLog.setEditable(false);
+		JScrollPane scrollPane = new JScrollPane(serverLog);
+		add(scrollPane, BorderLayout.CENTER);
+		setSize(300,300);
+		setTitle("Battleships Server");
+		setVisible(true);
+		timer = new Timer(REFRESH_INTERVAL, this);
+		timer.start();
+	}
+
+	/**
+	 * Appends lines logged since the last refresh and drops the oldest lines beyond the buffer's capacity
+	 */
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		try {
+			next = buffer.read(next, lines, 0);
+		} catch (InterruptedException e1) {
+			return;
+		}
+		if (lines.isEmpty())
+			return;
+		StringBuilder text = new StringBuilder();
+		for (String line : lines)
+			text.append(line).append('\n');
+		lines.clear();
+		serverLog.append(text.toString());
+		int excess = serverLog.getLineCount() - 1 - buffer.getCapacity();
+		if (excess > 0) {
+			try {
+				serverLog.replaceRange(null, 0, serverLog.getLineEndOffset(excess - 1));
+			} catch (BadLocationException e1) {
+				//Text has changed, trimmed on the next refresh
+			}
+		}
+	}
+
+	@Override
+	public void windowActivated(WindowEvent arg0) {
+	}
+	@Override
+	public void windowClosed(WindowEvent arg0) {
+	}
+	@Override
+	public void windowClosing(WindowEvent arg0) {
+		timer.stop();
+		System.exit(0);
+	}
+	@Override
+	public void windowDeactivated(WindowEvent arg0) {
+	}
+	@Override
+	public void windowDeiconified(WindowEvent arg0) {
+	}
+	@Override
+	public void windowIconified(WindowEvent arg0) {
+	}
+	@Override
+	public void windowOpened(WindowEvent arg0) {
+	}
+}
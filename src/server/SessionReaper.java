@@ -0,0 +1,76 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Session reaper stops game sessions which have made no progress for the idle timeout.
+ * Turn timeouts and heartbeats end games whose players have gone quiet, the reaper is the backstop
+ * for sessions they cannot reach, such as a session thread stuck writing to a player who no longer reads.
+ * Stopping a session closes both players' sockets, which frees its thread, its socket buffers and its boards.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class SessionReaper implements Runnable {
+
+	/** Sessions checked */
+	protected SessionRegistry registry;
+	/** Log destination */
+	protected ServerLog log;
+	/** Time without progress after which a session is reaped, in milliseconds, 0 for never */
+	protected volatile long idleTimeout;
+	/** Number of sessions reaped */
+	protected final AtomicLong reaped = new AtomicLong();
+	/** Estimated memory held by the sessions reaped, in bytes */
+	protected final AtomicLong reclaimedBytes = new AtomicLong();
+
+	/**
+	 * @param registry Sessions checked
+	 * @param log Log destination
+	 * @param idleTimeout Time without progress after which a session is reaped, in milliseconds, 0 for never
+	 */
+	public SessionReaper(SessionRegistry registry, ServerLog log, long idleTimeout) {
+		this.registry = registry;
+		this.log = log;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Reaps every session idle for longer than the idle timeout. Called periodically.
+	 */
+	public void run() {
+		if (idleTimeout <= 0)
+			return;
+		long now = System.currentTimeMillis();
+		for (GameSession session : registry.snapshot()) {
+			long idle = now - session.getLastProgress();
+			if (idle < idleTimeout)
+				continue;
+			long footprint = session.getFootprint();
+			if (!session.reap())
+				continue;
+			reaped.incrementAndGet();
+			reclaimedBytes.addAndGet(footprint);
+			log.log("Game session " + session.getId() + " has made no progress for " + idle / 1000 + " s, reaped.");
+		}
+	}
+
+	/**
+	 * @param idleTimeout Time without progress after which a session is reaped, in milliseconds, 0 for never
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return Number of sessions reaped
+	 */
+	public long getReaped() {
+		return reaped.get();
+	}
+
+	/**
+	 * @return Estimated memory held by the sessions reaped, in bytes
+	 */
+	public long getReclaimedBytes() {
+		return reclaimedBytes.get();
+	}
+}
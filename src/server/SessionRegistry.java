@@ -0,0 +1,203 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Session registry keeps every game session from launch until it ends, so running matches
+ * can be counted, listed, waited for and shut down.
+ * Sessions are also found by their players' resume tokens.
+ * Counters of finished sessions are added up when they leave.
+ * The shutdown command is sent to every player separately and in parallel, a player with a full socket buffer
+ * holds up one broadcast thread for BROADCAST_WRITE_TIMEOUT at most, then his socket is closed.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class SessionRegistry {
+
+	/** Largest number of threads sending the shutdown command */
+	protected static final int BROADCAST_THREADS = 32;
+	/** Longest time sending the shutdown command may block on one player, in milliseconds */
+	protected static final long BROADCAST_WRITE_TIMEOUT = 250;
+
+	/** Running sessions by id */
+	protected final ConcurrentHashMap<Long, GameSession> sessions = new ConcurrentHashMap<Long, GameSession>();
+	/** Running sessions by their players' resume tokens */
+	protected final ConcurrentHashMap<Long, GameSession> tokens = new ConcurrentHashMap<Long, GameSession>();
+	/** Last session id handed out */
+	protected final AtomicLong lastId = new AtomicLong();
+	/** Sessions ended, by the state they ended in */
+	protected final AtomicLongArray ended = new AtomicLongArray(GameSession.STATE_NAMES.length);
+	/** Turns played in finished sessions */
+	protected final AtomicLong turns = new AtomicLong();
+	/** Bytes sent to players of finished sessions */
+	protected final AtomicLong bytesSent = new AtomicLong();
+	/** Bytes received from players of finished sessions */
+	protected final AtomicLong bytesReceived = new AtomicLong();
+	/** Turn latencies of finished sessions, in microseconds */
+	protected final LatencyHistogram turnLatency = new LatencyHistogram();
+
+	/**
+	 * Adds a session about to be launched and gives it an id
+	 * @param session Game session
+	 */
+	public void register(GameSession session) {
+		session.id = lastId.incrementAndGet();
+		sessions.put(session.id, session);
+		for (PlayerConnection player : session.getPlayers()) {
+			if (player.getToken() != 0)
+				tokens.put(player.getToken(), session);
+		}
+	}
+
+	/**
+	 * Removes a session which has ended or could not be launched and adds up its counters
+	 * @param session Game session
+	 */
+	public void unregister(GameSession session) {
+		if (sessions.remove(session.id) == null)
+			return;
+		for (PlayerConnection player : session.getPlayers())
+			tokens.remove(player.getToken());
+		if (sessions.isEmpty()) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+		ended.incrementAndGet(session.getState());
+		turns.addAndGet(session.getTurns());
+		bytesSent.addAndGet(session.getBytesSent());
+		bytesReceived.addAndGet(session.getBytesReceived());
+		turnLatency.add(session.getTurnLatency());
+	}
+
+	/**
+	 * @param id Session id
+	 * @return Running session, null if there is none with the id
+	 */
+	public GameSession get(long id) {
+		return sessions.get(id);
+	}
+
+	/**
+	 * @param token Resume token of one of the players
+	 * @return Running session, null if there is none with the token
+	 */
+	public GameSession findByToken(long token) {
+		return tokens.get(token);
+	}
+
+	/**
+	 * @return Running sessions at the time of the call
+	 */
+	public List<GameSession> snapshot() {
+		return new ArrayList<GameSession>(sessions.values());
+	}
+
+	/**
+	 * @return Number of running sessions
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Waits until no session is running
+	 * @param timeout Longest time to wait, in milliseconds
+	 * @return true if no session is running
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitEmpty(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (this) {
+			while (!sessions.isEmpty()) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					return false;
+				wait(left);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the shutdown command to the players of every running session in parallel, one player at a time per thread
+	 * @param timeout Longest time to wait for the commands to be sent, in milliseconds
+	 * @return true if all commands have been sent in time
+	 */
+	public boolean notifyShutdown(long timeout) {
+		List<GameSession> running = snapshot();
+		if (running.isEmpty())
+			return true;
+		ExecutorService broadcast = Executors.newFixedThreadPool(Math.min(BROADCAST_THREADS, 2 * running.size()),
+				ServerEngine.threadFactory("shutdown-", 0));
+		for (final GameSession session : running) {
+			for (int player=1; player<=2; player++) {
+				final int number = player;
+				broadcast.execute(new Runnable() {
+					public void run() {
+						session.sendShutdown(number, BROADCAST_WRITE_TIMEOUT);
+					}
+				});
+			}
+		}
+		broadcast.shutdown();
+		try {
+			return broadcast.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			broadcast.shutdownNow();
+		}
+	}
+
+	/**
+	 * Stops every running session
+	 */
+	public void shutdownAll() {
+		for (GameSession session : sessions.values())
+			session.shutdown();
+	}
+
+	/**
+	 * @param state COMPLETED, ABORTED, FORFEITED or REAPED
+	 * @return Number of sessions ended in the state
+	 */
+	public long getEnded(int state) {
+		return ended.get(state);
+	}
+
+	/**
+	 * @return Turns played in finished sessions
+	 */
+	public long getTurns() {
+		return turns.get();
+	}
+
+	/**
+	 * @return Bytes sent to players of finished sessions
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * @return Bytes received from players of finished sessions
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return Turn latencies of finished sessions, in microseconds
+	 */
+	public LatencyHistogram getTurnLatency() {
+		return turnLatency;
+	}
+}
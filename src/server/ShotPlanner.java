@@ -0,0 +1,219 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Shot planner picks the shots of the server's AI player by probability density.
+ * Every cell is weighted by the number of positions of the ships still afloat which cover it
+ * and agree with what is known: missed cells, sunk ships and the ring around them, where no ship may lie.
+ * While a ship has been hit but not sunk only its own positions covering all its hits are counted,
+ * so the planner targets it until it sinks, then goes back to hunting over the whole fleet.
+ * Shot results name the ship hit, the same as clients are told, so hits of different ships are never mixed up.
+ * Positions are FleetPlacer's precomputed masks, a move is a few hundred AND operations,
+ * so the planner plays boards of up to FleetPlacer.MASK_CELLS cells only.
+ *
+ * A planner is not thread safe, each AI player uses its own.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class ShotPlanner {
+
+	/** Game rules */
+	protected final GameRules rules;
+	/** Number of rows and columns */
+	protected final int size;
+	/** FleetPlacer's positions for each ship length */
+	protected final FleetPlacer.Positions[] positions;
+	/** Random number generator, breaks ties between cells of equal weight */
+	protected Random random;
+	/** Cells shot at */
+	protected long shot0, shot1;
+	/** Cells where no ship may lie: misses, sunk ships and their rings */
+	protected long blocked0, blocked1;
+	/** Hits of ships not sunk yet */
+	protected long afloat0, afloat1;
+	/** Cells hit of each ship */
+	protected final long[] hits0, hits1;
+	/** Ships sunk */
+	protected final boolean[] sunk;
+	/** Ships afloat and not hit, by length */
+	protected final int[] unhit;
+	/** Weight of each cell */
+	protected final int[] density;
+
+	public ShotPlanner() {
+		this(new Random());
+	}
+
+	/**
+	 * @param random Random number generator
+	 */
+	public ShotPlanner(Random random) {
+		this(GameRules.DEFAULT, random);
+	}
+
+	/**
+	 * @param rules Game rules
+	 * @param random Random number generator
+	 * @throws IllegalArgumentException if the planner does not support the rules
+	 */
+	public ShotPlanner(GameRules rules, Random random) {
+		if (!supports(rules))
+			throw new IllegalArgumentException("Board too large for the shot planner");
+		this.rules = rules;
+		this.random = random;
+		size = rules.getSize();
+		positions = FleetPlacer.positions(rules);
+		hits0 = new long[rules.getShips()];
+		hits1 = new long[rules.getShips()];
+		sunk = new boolean[rules.getShips()];
+		unhit = new int[positions.length];
+		density = new int[rules.getCells()];
+		reset();
+	}
+
+	/**
+	 * @param rules Game rules
+	 * @return true if a planner can play by the rules
+	 */
+	public static boolean supports(GameRules rules) {
+		return rules.getCells() <= FleetPlacer.MASK_CELLS;
+	}
+
+	/**
+	 * Forgets everything known about the opponent's board, for a new game
+	 */
+	public void reset() {
+		shot0 = shot1 = blocked0 = blocked1 = afloat0 = afloat1 = 0;
+		Arrays.fill(hits0, 0);
+		Arrays.fill(hits1, 0);
+		Arrays.fill(sunk, false);
+		Arrays.fill(unhit, 0);
+		for (int ship=0; ship<sunk.length; ship++)
+			unhit[rules.length(ship)]++;
+	}
+
+	/**
+	 * Chooses the next shot
+	 * @return Cell number, row times board size plus column, -1 if every cell has been shot at
+	 */
+	public int next() {
+		Arrays.fill(density, 0);
+		if ((afloat0 | afloat1) != 0) {
+			for (int ship=0; ship<sunk.length; ship++) {
+				if (!sunk[ship] && (hits0[ship] | hits1[ship]) != 0)
+					add(rules.length(ship), 1, hits0[ship], hits1[ship], afloat0 & ~hits0[ship], afloat1 & ~hits1[ship]);
+			}
+		}
+		else {
+			for (int length=1; length<unhit.length; length++) {
+				if (unhit[length] > 0)
+					add(length, unhit[length], 0, 0, 0, 0);
+			}
+		}
+
+		int best = -1, bestWeight = -1, ties = 0;
+		for (int cell=0; cell<density.length; cell++) {
+			if (isShot(cell) || density[cell] < bestWeight)
+				continue;
+			if (density[cell] > bestWeight) {
+				best = cell;
+				bestWeight = density[cell];
+				ties = 1;
+			}
+			else if (random.nextInt(++ties) == 0) {
+				best = cell;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Learns the result of a shot
+	 * @param row Row number
+	 * @param column Column number
+	 * @param result Board.MISS, HIT or SUNK, other results are ignored
+	 * @param ship Index of the ship hit, Board.EMPTY for a miss
+	 */
+	public void record(int row, int column, int result, int ship) {
+		if (row < 0 || row >= size || column < 0 || column >= size)
+			return;
+		int cell = row * size + column;
+		long bit0 = cell < 64 ? 1L << cell : 0, bit1 = cell < 64 ? 0 : 1L << (cell - 64);
+		if (result == Board.MISS) {
+			shot0 |= bit0;
+			shot1 |= bit1;
+			blocked0 |= bit0;
+			blocked1 |= bit1;
+			return;
+		}
+		if ((result != Board.HIT && result != Board.SUNK) || ship < 0 || ship >= sunk.length || sunk[ship])
+			return;
+		shot0 |= bit0;
+		shot1 |= bit1;
+		if ((hits0[ship] | hits1[ship]) == 0)
+			unhit[rules.length(ship)]--;
+		hits0[ship] |= bit0;
+		hits1[ship] |= bit1;
+		afloat0 |= bit0;
+		afloat1 |= bit1;
+		if (result == Board.SUNK) {
+			sunk[ship] = true;
+			afloat0 &= ~hits0[ship];
+			afloat1 &= ~hits1[ship];
+			block(hits0[ship], hits1[ship]);
+		}
+	}
+
+	/**
+	 * @param cell Cell number
+	 * @return true if the cell has been shot at
+	 */
+	public boolean isShot(int cell) {
+		return cell < 64 ? (shot0 >>> cell & 1) != 0 : (shot1 >>> (cell - 64) & 1) != 0;
+	}
+
+	/**
+	 * Adds the weight of every position of a ship length agreeing with what is known
+	 * @param length Ship length
+	 * @param weight Weight of each position
+	 * @param need0 Cells 0-63 a position must cover
+	 * @param need1 Cells 64-127 a position must cover
+	 * @param avoid0 Cells 0-63 of other ships a position must not cover or touch
+	 * @param avoid1 Cells 64-127 of other ships a position must not cover or touch
+	 */
+	protected void add(int length, int weight, long need0, long need1, long avoid0, long avoid1) {
+		FleetPlacer.Positions p = positions[length];
+		for (int i=0; i<p.count; i++) {
+			if (((p.cells0[i] & blocked0) | (p.cells1[i] & blocked1)) != 0
+					|| (p.cells0[i] & need0) != need0 || (p.cells1[i] & need1) != need1
+					|| ((p.ring0[i] & avoid0) | (p.ring1[i] & avoid1)) != 0)
+				continue;
+			int step = p.horizontal[i] ? 1 : size;
+			for (int k=0, cell=p.origin[i]; k<length; k++, cell+=step)
+				density[cell] += weight;
+		}
+	}
+
+	/**
+	 * Blocks the cells of a sunk ship and the ring around them
+	 * @param cells0 Ship cells 0-63
+	 * @param cells1 Ship cells 64-127
+	 */
+	protected void block(long cells0, long cells1) {
+		for (int cell=0; cell<density.length; cell++) {
+			if ((cell < 64 ? cells0 >>> cell & 1 : cells1 >>> (cell - 64) & 1) == 0)
+				continue;
+			int row = cell / size, column = cell % size;
+			for (int x=Math.max(0, row-1); x<=Math.min(size-1, row+1); x++) {
+				for (int y=Math.max(0, column-1); y<=Math.min(size-1, column+1); y++) {
+					int around = x * size + y;
+					if (around < 64)
+						blocked0 |= 1L << around;
+					else
+						blocked1 |= 1L << (around - 64);
+				}
+			}
+		}
+	}
+}
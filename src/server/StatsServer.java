@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stats server publishes live server numbers as JSON over HTTP for monitoring.
+ * It listens on the loopback interface only, using the HTTP server built into the JDK.
+ * GET /stats returns engine, matchmaking and session totals, GET /sessions lists the running sessions.
+ *
+ * @author Dmitri Samoilov
+ *
+ */
+public class StatsServer {
+
+	/** Default port of the stats server */
+	public static final int DEFAULT_PORT = 3320;
+
+	/** Server engine the numbers come from */
+	protected ServerEngine engine;
+	/** Port to listen on */
+	protected int port;
+	/** HTTP server */
+	protected HttpServer http;
+	/** Answers requests */
+	protected ExecutorService executor;
+
+	/**
+	 * @param engine Server engine the numbers come from
+	 * @param port Port to listen on
+	 */
+	public StatsServer(ServerEngine engine, int port) {
+		this.engine = engine;
+		this.port = port;
+	}
+
+	/**
+	 * Starts listening
+	 * @throws IOException if the port cannot be opened
+	 */
+	public void start() throws IOException {
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/stats", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, stats());
+			}
+		});
+		http.createContext("/sessions", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, sessions());
+			}
+		});
+		executor = Executors.newSingleThreadExecutor(ServerEngine.threadFactory("stats-http-", 0));
+		http.setExecutor(executor);
+		http.start();
+	}
+
+	/**
+	 * Stops listening
+	 */
+	public void stop() {
+		if (http != null)
+			http.stop(0);
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	/**
+	 * Sends a JSON response, only GET requests are answered
+	 * @param exchange Request and response
+	 * @param json Response body
+	 * @throws IOException if the response cannot be sent
+	 */
+	protected static void respond(HttpExchange exchange, String json) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = json.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return Engine, matchmaking and session totals
+	 */
+	protected String stats() {
+		SessionRegistry registry = engine.getRegistry();
+		Matchmaker matchmaker = engine.getMatchmaker();
+		LatencyHistogram turnLatency = new LatencyHistogram();
+		turnLatency.add(registry.getTurnLatency());
+		long turns = registry.getTurns(), bytesSent = registry.getBytesSent(), bytesReceived = registry.getBytesReceived();
+		for (GameSession session : registry.snapshot()) {
+			turnLatency.add(session.getTurnLatency());
+			turns += session.getTurns();
+			bytesSent += session.getBytesSent();
+			bytesReceived += session.getBytesReceived();
+		}
+
+		StringBuilder json = new StringBuilder(512);
+		json.append("{\"uptimeMs\":").append(System.currentTimeMillis() - engine.getStarted());
+		json.append(",\"connections\":").append(engine.getConnections());
+		json.append(",\"lobbyRejected\":").append(engine.getLobbyRejected());
+		json.append(",\"writesTimedOut\":").append(DeadlineOutputStream.getExpired());
+		json.append(",\"matchesStarted\":").append(engine.getMatchesStarted());
+		json.append(",\"sessions\":{\"running\":").append(registry.size());
+		for (int state=GameSession.COMPLETED; state<GameSession.STATE_NAMES.length; state++)
+			json.append(",\"").append(GameSession.STATE_NAMES[state]).append("\":").append(registry.getEnded(state));
+		json.append('}');
+		json.append(",\"turns\":").append(turns);
+		json.append(",\"bytesSent\":").append(bytesSent);
+		json.append(",\"bytesReceived\":").append(bytesReceived);
+		json.append(",\"turnLatencyUs\":");
+		histogram(json, turnLatency);
+		SessionReaper reaper = engine.getReaper();
+		json.append(",\"reaper\":{\"reaped\":").append(reaper.getReaped());
+		json.append(",\"reclaimedBytes\":").append(reaper.getReclaimedBytes());
+		json.append(",\"lobbyTimeouts\":").append(engine.getLobbyTimeouts()).append('}');
+		json.append(",\"resume\":{\"resumed\":").append(engine.getResumes());
+		json.append(",\"expired\":").append(engine.getResumesExpired()).append('}');
+		MatchJournal journal = engine.getJournal();
+		if (journal != null) {
+			json.append(",\"journal\":{\"records\":").append(journal.getRecords());
+			json.append(",\"bytes\":").append(journal.getBytes());
+			json.append(",\"dropped\":").append(journal.getDropped());
+			json.append(",\"segments\":").append(journal.getSegments()).append('}');
+		}
+		json.append(",\"matchmaking\":{\"waiting\":").append(matchmaker.getWaiting());
+		json.append(",\"maxWaiting\":").append(matchmaker.getMaxWaiting());
+		json.append(",\"requeued\":").append(matchmaker.getRequeued());
+		json.append(",\"dropped\":").append(matchmaker.getDropped());
+		json.append(",\"aiMatches\":").append(matchmaker.getAiMatches());
+		json.append(",\"timeToMatchMs\":");
+		histogram(json, matchmaker.getTimeToMatch());
+		json.append("}}");
+		return json.toString();
+	}
+
+	/**
+	 * @return Running sessions with their counters
+	 */
+	protected String sessions() {
+		long now = System.currentTimeMillis();
+		StringBuilder json = new StringBuilder(4096);
+		json.append('[');
+		boolean first = true;
+		for (GameSession session : engine.getRegistry().snapshot()) {
+			if (!first)
+				json.append(',');
+			first = false;
+			PlayerConnection[] players = session.getPlayers();
+			json.append("{\"id\":").append(session.getId());
+			json.append(",\"state\":\"").append(GameSession.STATE_NAMES[session.getState()]).append('"');
+			json.append(",\"players\":[\"").append(players[0]).append("\",\"").append(players[1]).append("\"]");
+			json.append(",\"ageMs\":").append(now - session.getCreated());
+			json.append(",\"idleMs\":").append(now - session.getLastProgress());
+			json.append(",\"turns\":").append(session.getTurns());
+			json.append(",\"shots\":").append(session.getShots());
+			json.append(",\"bytesSent\":").append(session.getBytesSent());
+			json.append(",\"bytesReceived\":").append(session.getBytesReceived());
+			json.append(",\"turnLatencyUs\":");
+			histogram(json, session.getTurnLatency());
+			json.append('}');
+		}
+		json.append(']');
+		return json.toString();
+	}
+
+	/**
+	 * Appends a histogram's count, mean, percentiles and maximum as a JSON object
+	 * @param json Target
+	 * @param histogram Histogram
+	 */
+	protected static void histogram(StringBuilder json, LatencyHistogram histogram) {
+		json.append("{\"count\":").append(histogram.getCount());
+		json.append(",\"mean\":").append(Math.round(histogram.getMean()));
+		json.append(",\"p50\":").append(histogram.percentile(50));
+		json.append(",\"p90\":").append(histogram.percentile(90));
+		json.append(",\"p99\":").append(histogram.percentile(99));
+		json.append(",\"max\":").append(histogram.getMax()).append('}');
+	}
+}